@@ -43,6 +43,7 @@ import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 @State(Scope.Thread)
@@ -70,7 +71,7 @@ public class JMHSample_13_RunToRun {
 
         @Setup
         public void setup() {
-            sleepTime = (long) (Math.random() * 1000);
+            sleepTime = ThreadLocalRandom.current().nextLong(1000);
         }
     }
 
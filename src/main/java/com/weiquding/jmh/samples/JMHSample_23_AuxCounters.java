@@ -84,9 +84,15 @@ public class JMHSample_23_AuxCounters {
      * 然后让JMH在性能计算中使用它们的值。
      */
 
+    /*
+     * The random input comes from JMHSample_63_RandomGenerators.Rng, one generator per thread:
+     * Math.random() shares one seed between all the threads.
+     * 随机输入来自JMHSample_63_RandomGenerators.Rng，每个线程一个生成器：Math.random()在所有线程之间共享一个种子。
+     */
+
     @Benchmark
-    public void splitBranch(OpCounters counters) {
-        if (Math.random() < 0.1) {
+    public void splitBranch(OpCounters counters, JMHSample_63_RandomGenerators.Rng rng) {
+        if (rng.nextDouble() < 0.1) {
             counters.case1++;
         } else {
             counters.case2++;
@@ -94,8 +100,8 @@ public class JMHSample_23_AuxCounters {
     }
 
     @Benchmark
-    public void runSETI(EventCounters counters) {
-        float random = (float) Math.random();
+    public void runSETI(EventCounters counters, JMHSample_63_RandomGenerators.Rng rng) {
+        float random = (float) rng.nextDouble();
         float wowSignal = (float) Math.PI / 4;
         if (random == wowSignal) {
             // WOW, that's unusual.
@@ -90,6 +90,7 @@ public class JMHSample_33_SecurityManager {
 
     @State(Scope.Benchmark)
     public static class SecurityManagerInstalled {
+        @SuppressWarnings("removal")
         @Setup
         public void setup() throws IOException, NoSuchAlgorithmException, URISyntaxException {
             URI policyFile = JMHSample_33_SecurityManager.class.getResource("/jmh-security.policy").toURI();
@@ -97,6 +98,7 @@ public class JMHSample_33_SecurityManager {
             System.setSecurityManager(new SecurityManager());
         }
 
+        @SuppressWarnings("removal")
         @TearDown
         public void tearDown() {
             System.setSecurityManager(null);
@@ -105,6 +107,7 @@ public class JMHSample_33_SecurityManager {
 
     @State(Scope.Benchmark)
     public static class SecurityManagerEmpty {
+        @SuppressWarnings("removal")
         @Setup
         public void setup() throws IOException, NoSuchAlgorithmException, URISyntaxException {
             System.setSecurityManager(null);
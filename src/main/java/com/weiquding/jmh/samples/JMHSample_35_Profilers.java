@@ -241,7 +241,7 @@ public class JMHSample_35_Profilers {
          * Our own crippled classloader, that can only load a simple class over and over again.
          */
         public static class XLoader extends URLClassLoader {
-            private static final byte[] X_BYTECODE = new byte[]{
+            static final byte[] X_BYTECODE = new byte[]{
                     (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0x00, 0x00, 0x00, 0x34, 0x00, 0x0D, 0x0A, 0x00, 0x03, 0x00,
                     0x0A, 0x07, 0x00, 0x0B, 0x07, 0x00, 0x0C, 0x01, 0x00, 0x06, 0x3C, 0x69, 0x6E, 0x69, 0x74, 0x3E, 0x01, 0x00, 0x03,
                     0x28, 0x29, 0x56, 0x01, 0x00, 0x04, 0x43, 0x6F, 0x64, 0x65, 0x01, 0x00, 0x0F, 0x4C, 0x69, 0x6E, 0x65, 0x4E, 0x75,
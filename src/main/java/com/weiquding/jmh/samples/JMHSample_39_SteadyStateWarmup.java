@@ -0,0 +1,539 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+public class JMHSample_39_SteadyStateWarmup {
+
+    /*
+     * JMHSample_01_HelloWorld shows the defaults: 5 warmup and 5 measurement iterations
+     * of 10 s each, with 5 forks. That is more than 8 minutes for an empty method. For most
+     * benchmarks, the larger part of that warmup is spent after the JIT has already settled;
+     * for some benchmarks, it is not even enough.
+     * JMHSample_01_HelloWorld展示了默认配置：5次预热迭代和5次度量迭代，每次10秒，5个fork。
+     * 对于一个空方法来说，这就超过了8分钟。对于大多数基准测试，
+     * 大部分预热时间都花在了JIT已经稳定之后；而对于某些基准测试，这些预热甚至还不够。
+     *
+     * This sample ends the warmup when the forked JVM is in steady state instead:
+     *  a) compilation activity has stopped: CompilationMXBean reports no compile time, and
+     *     the compile queue (jcmd Compiler.queue) is empty at the end of the iteration, and
+     *  b) the last iteration scores pass a stationarity test (Mann-Kendall trend test).
+     * 这个示例改为在fork出的JVM进入稳态时结束预热：
+     *  a) 编译活动已经停止：CompilationMXBean报告没有编译时间，并且迭代结束时编译队列(jcmd Compiler.queue)为空，并且
+     *  b) 最近几次迭代的分数通过了平稳性检验（Mann-Kendall趋势检验）。
+     *
+     * JMH itself cannot stop the warmup early. Therefore, we do the forking ourselves:
+     * every fork is a fresh JVM that runs the benchmark in-process (forks = 0) one iteration
+     * at a time. Since all iterations run in the same JVM, the JIT state carries over from
+     * one iteration to the next, as it would in the usual JMH fork.
+     * JMH本身无法提前结束预热。因此我们自己来fork：每个fork都是一个新的JVM，
+     * 它在进程内(forks = 0)一次运行一个迭代。由于所有迭代都运行在同一个JVM中，
+     * JIT状态会从一次迭代延续到下一次迭代，这与通常的JMH fork是一样的。
+     */
+
+    /**
+     * Steady state detection settings for a single benchmark.
+     * 单个基准测试的稳态检测配置。
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface SteadyState {
+
+        /**
+         * @return the maximum number of warmup iterations, even if steady state is never reached
+         */
+        int maxWarmupIterations() default 20;
+
+        /**
+         * @return the number of trailing iterations the tests are applied to
+         */
+        int window() default 6;
+
+        /**
+         * @return warmup iteration time, in milliseconds
+         */
+        int iterationMillis() default 1000;
+
+        /**
+         * @return the share of the window time the compilers are still allowed to run, in percent
+         */
+        double compileQuietPercent() default 2.0;
+    }
+
+    /*
+     * The first workload settles almost immediately: this is JMHSample_01_HelloWorld.
+     * 第一个负载几乎立刻就稳定了：这就是JMHSample_01_HelloWorld。
+     */
+
+    @Benchmark
+    @SteadyState
+    public void wellHelloThere() {
+        // this method was intentionally left blank.
+    }
+
+    /*
+     * The second workload needs a while to settle: the recursion from JMHSample_25_API_GA
+     * walks through the several compilation tiers, and every tier changes the score.
+     * 第二个负载需要一段时间才能稳定：来自JMHSample_25_API_GA的递归会经历多个编译层级，
+     * 每个层级都会改变分数。
+     */
+
+    private int v;
+
+    @Benchmark
+    @SteadyState(maxWarmupIterations = 30)
+    public int deepRecursion() {
+        return veryImportantCode(1000, v);
+    }
+
+    public int veryImportantCode(int d, int v) {
+        if (d == 0) {
+            return v;
+        } else {
+            return veryImportantCode(d - 1, v);
+        }
+    }
+
+    /*
+     * The third workload is JMHSample_35_Profilers.Maps, the treemap flavor.
+     * 第三个负载是JMHSample_35_Profilers.Maps中的treemap版本。
+     */
+
+    private Map<Integer, Integer> map;
+
+    @Setup
+    public void setup() {
+        map = new TreeMap<>();
+        for (int i = 0; i < 256; i++) {
+            map.put(i, i);
+        }
+    }
+
+    @Benchmark
+    @SteadyState(maxWarmupIterations = 30, window = 8)
+    public void treeMap(Blackhole bh) {
+        for (int i = 0; i < 256; i++) {
+            bh.consume(map.get(i));
+        }
+    }
+
+    /*
+     * ============================== STEADY STATE DETECTION ==============================
+     */
+
+    /**
+     * Runs in the forked JVM: warms up the benchmark until steady state, then measures it.
+     * The outcome is reported to the host with the "#steady" prefixed lines on stdout.
+     * 在fork出的JVM中运行：预热基准测试直到稳态，然后再度量它。
+     * 结果通过stdout上以"#steady"为前缀的行报告给宿主进程。
+     */
+    public static class ForkedController {
+
+        static final String PREFIX = "#steady ";
+
+        public static void main(String[] args) throws Exception {
+            Class<?> klass = Class.forName(args[0]);
+            Method method = findBenchmark(klass, args[1]);
+            SteadyState cfg = method.getAnnotation(SteadyState.class);
+
+            int cap = (cfg != null) ? cfg.maxWarmupIterations() : 20;
+            int window = (cfg != null) ? cfg.window() : 6;
+            int iterationMillis = (cfg != null) ? cfg.iterationMillis() : 1000;
+            double quietPercent = (cfg != null) ? cfg.compileQuietPercent() : 2.0;
+
+            Options baseOpts = new OptionsBuilder()
+                    .include(benchmarkPattern(klass, method))
+                    .forks(0)
+                    .warmupIterations(0)
+                    .verbosity(VerboseMode.SILENT)
+                    .build();
+
+            Options probeOpts = new OptionsBuilder()
+                    .parent(baseOpts)
+                    .measurementIterations(1)
+                    .measurementTime(TimeValue.milliseconds(iterationMillis))
+                    .addProfiler(CompilationWatcher.class.getName())
+                    .build();
+
+            List<Double> scores = new ArrayList<>();
+            List<Long> compileMillis = new ArrayList<>();
+            List<Long> compileQueue = new ArrayList<>();
+            List<Long> wallMillis = new ArrayList<>();
+
+            int warmup = 0;
+            boolean steady = false;
+            while (warmup < cap && !steady) {
+                RunResult probe = new Runner(probeOpts).runSingle();
+
+                Map<String, Result> secondary = probe.getSecondaryResults();
+                compileMillis.add((long) secondary.get(CompilationWatcher.COMPILE_TIME).getScore());
+                compileQueue.add((long) secondary.get(CompilationWatcher.COMPILE_QUEUE).getScore());
+                wallMillis.add((long) secondary.get(CompilationWatcher.WALL_TIME).getScore());
+                scores.add(probe.getPrimaryResult().getScore());
+                warmup++;
+
+                steady = isCompilationQuiet(compileMillis, compileQueue, wallMillis, window, quietPercent)
+                        && isStationary(scores, window);
+            }
+
+            System.out.println(PREFIX + "warmup " + warmup + " " + (steady ? "steady" : "capped"));
+
+            RunResult measured = new Runner(baseOpts).runSingle();
+            for (BenchmarkResult br : measured.getBenchmarkResults()) {
+                for (IterationResult ir : br.getIterationResults()) {
+                    System.out.println(PREFIX + "score " + ir.getPrimaryResult().getScore());
+                }
+            }
+            System.out.println(PREFIX + "unit " + measured.getPrimaryResult().getScoreUnit());
+        }
+
+        /**
+         * JMH names the benchmarks of a nested class by its canonical name, Outer.Inner, while
+         * Class.getName() is the binary name, Outer$Inner: match either.
+         * JMH用嵌套类的规范名Outer.Inner来命名它的基准测试，而Class.getName()返回的是二进制名Outer$Inner：两者都要匹配。
+         */
+        static String benchmarkPattern(Class<?> klass, Method method) {
+            String names = Pattern.quote(klass.getName());
+            String canonical = klass.getCanonicalName();
+            if (canonical != null && !canonical.equals(klass.getName())) {
+                names = "(" + names + "|" + Pattern.quote(canonical) + ")";
+            }
+            return "^" + names + Pattern.quote("." + method.getName()) + "$";
+        }
+
+        private static Method findBenchmark(Class<?> klass, String name) {
+            for (Method m : klass.getMethods()) {
+                if (m.getName().equals(name) && m.isAnnotationPresent(Benchmark.class)) {
+                    return m;
+                }
+            }
+            throw new IllegalArgumentException("No @Benchmark method " + name + " in " + klass.getName());
+        }
+    }
+
+    /**
+     * Tracks the compiler activity within the iteration itself, so that the work JMH does
+     * between the in-process runs does not count. The compile time only covers the finished
+     * compilations, so the watcher also counts the compile tasks still queued or in progress
+     * when the iteration ends.
+     * 只跟踪迭代本身期间的编译活动，这样JMH在多次进程内运行之间所做的工作就不会被计入。
+     * 编译时间只包括已完成的编译，因此观察器还会统计迭代结束时仍在排队或正在进行的编译任务。
+     */
+    public static class CompilationWatcher implements InternalProfiler {
+
+        static final String COMPILE_TIME = "steady.compile.time";
+        static final String WALL_TIME = "steady.wall.time";
+        static final String COMPILE_QUEUE = "steady.compile.queue";
+
+        private final CompilationMXBean compiler;
+        private final MBeanServer server;
+        private final ObjectName diagnostics;
+        private long compileBefore;
+        private long timeBefore;
+
+        public CompilationWatcher() {
+            compiler = ManagementFactory.getCompilationMXBean();
+            if (compiler == null || !compiler.isCompilationTimeMonitoringSupported()) {
+                throw new IllegalStateException("Compilation time monitoring is not supported by this VM");
+            }
+            server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                diagnostics = new ObjectName("com.sun.management:type=DiagnosticCommand");
+            } catch (MalformedObjectNameException e) {
+                throw new IllegalStateException(e);
+            }
+            if (!server.isRegistered(diagnostics)) {
+                throw new IllegalStateException("The compile queue is not available: this VM has no DiagnosticCommand MBean");
+            }
+        }
+
+        /**
+         * @return the compile tasks in progress or waiting in the C1 and C2 queues
+         */
+        long compileQueueLength() {
+            String queue;
+            try {
+                queue = (String) server.invoke(diagnostics, "compilerQueue",
+                        new Object[]{null}, new String[]{String[].class.getName()});
+            } catch (JMException e) {
+                throw new IllegalStateException("Cannot read the compile queue", e);
+            }
+            long tasks = 0;
+            for (String line : queue.split("\\R")) {
+                String l = line.trim();
+                // "C2 CompilerThread0  1210   !   4   Foo::bar (497 bytes)", or "1211   4   Foo::baz (10 bytes)"
+                if (l.contains("CompilerThread") || (!l.isEmpty() && Character.isDigit(l.charAt(0)))) {
+                    tasks++;
+                }
+            }
+            return tasks;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Compiler activity within the iteration";
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            compileBefore = compiler.getTotalCompilationTime();
+            timeBefore = System.nanoTime();
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            long wall = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - timeBefore);
+            long compile = compiler.getTotalCompilationTime() - compileBefore;
+            return Arrays.asList(
+                    new ScalarResult(COMPILE_TIME, compile, "ms", AggregationPolicy.SUM),
+                    new ScalarResult(WALL_TIME, wall, "ms", AggregationPolicy.SUM),
+                    new ScalarResult(COMPILE_QUEUE, compileQueueLength(), "tasks", AggregationPolicy.MAX));
+        }
+    }
+
+    /**
+     * Compilers are considered quiet when they took no more than the given share
+     * of the wall time over the last window of iterations, and have nothing left to compile.
+     * 如果在最近一个窗口的迭代中，编译器占用的时间不超过墙钟时间的给定比例，并且没有剩余的编译任务，就认为编译已经平静。
+     */
+    static boolean isCompilationQuiet(List<Long> compileMillis, List<Long> compileQueue, List<Long> wallMillis,
+                                      int window, double quietPercent) {
+        if (compileMillis.size() < window || compileQueue.get(compileQueue.size() - 1) > 0) {
+            return false;
+        }
+        long compile = 0;
+        long wall = 0;
+        for (int i = compileMillis.size() - window; i < compileMillis.size(); i++) {
+            compile += compileMillis.get(i);
+            wall += wallMillis.get(i);
+        }
+        return compile * 100.0 <= wall * quietPercent;
+    }
+
+    /**
+     * Mann-Kendall trend test over the last window of scores. The scores are considered
+     * stationary when there is no significant monotonic trend at 95% confidence.
+     * 对最近一个窗口的分数做Mann-Kendall趋势检验。
+     * 如果在95%的置信度下没有显著的单调趋势，就认为分数是平稳的。
+     */
+    static boolean isStationary(List<Double> scores, int window) {
+        if (scores.size() < window) {
+            return false;
+        }
+        List<Double> w = scores.subList(scores.size() - window, scores.size());
+        int n = w.size();
+
+        long s = 0;
+        for (int i = 0; i < n - 1; i++) {
+            for (int j = i + 1; j < n; j++) {
+                s += Long.signum(Double.compare(w.get(j), w.get(i)));
+            }
+        }
+
+        double variance = n * (n - 1) * (2.0 * n + 5) / 18;
+        double z;
+        if (s > 0) {
+            z = (s - 1) / Math.sqrt(variance);
+        } else if (s < 0) {
+            z = (s + 1) / Math.sqrt(variance);
+        } else {
+            z = 0;
+        }
+        return Math.abs(z) < 1.96;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The host launches the forks, collects the steady state warmup lengths, and prints them
+     * next to the scores. Note how wellHelloThere settles after a handful of iterations, while
+     * deepRecursion needs considerably more, or even hits the cap.
+     * 宿主进程启动这些fork，收集每个fork稳态时的预热长度，并把它们和分数一起打印出来。
+     * 注意wellHelloThere在几次迭代后就稳定了，而deepRecursion需要更多的迭代，甚至会达到上限。
+     *
+     * The same controller can drive the benchmarks from other samples, as long as they
+     * have no @Params: pass the benchmark class names as arguments.
+     * 同一个控制器也可以驱动其他示例中的基准测试，只要它们没有@Param：把基准测试类名作为参数传入即可。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -cp target/benchmarks.jar com.weiquding.jmh.samples.JMHSample_39_SteadyStateWarmup
+     *    $ java -cp target/benchmarks.jar com.weiquding.jmh.samples.JMHSample_39_SteadyStateWarmup \
+     *        com.weiquding.jmh.samples.JMHSample_01_HelloWorld
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    static final int FORKS = 3;
+
+    public static void main(String[] args) throws RunnerException, IOException, InterruptedException {
+        List<Class<?>> classes = new ArrayList<>();
+        if (args.length == 0) {
+            classes.add(JMHSample_39_SteadyStateWarmup.class);
+        } else {
+            for (String name : args) {
+                try {
+                    classes.add(Class.forName(name));
+                } catch (ClassNotFoundException e) {
+                    throw new RunnerException("Cannot find benchmark class " + name, e);
+                }
+            }
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classpath = System.getProperty("java.class.path");
+
+        System.out.printf("%-50s %-20s %5s %15s %12s  %s%n", "Benchmark", "Warmup", "Cnt", "Score", "Error", "Units");
+
+        for (Class<?> klass : classes) {
+            for (Method m : klass.getMethods()) {
+                if (!m.isAnnotationPresent(Benchmark.class)) {
+                    continue;
+                }
+
+                ListStatistics stats = new ListStatistics();
+                StringBuilder warmups = new StringBuilder();
+                String unit = "";
+
+                for (int f = 0; f < FORKS; f++) {
+                    Process p = new ProcessBuilder(java, "-cp", classpath,
+                            ForkedController.class.getName(), klass.getName(), m.getName())
+                            .redirectError(ProcessBuilder.Redirect.INHERIT)
+                            .start();
+
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (!line.startsWith(ForkedController.PREFIX)) {
+                                continue;
+                            }
+                            String[] parts = line.substring(ForkedController.PREFIX.length()).split(" ");
+                            switch (parts[0]) {
+                                case "warmup":
+                                    if (warmups.length() > 0) {
+                                        warmups.append(",");
+                                    }
+                                    warmups.append(parts[1]);
+                                    if ("capped".equals(parts[2])) {
+                                        warmups.append("*");
+                                    }
+                                    break;
+                                case "score":
+                                    stats.addValue(Double.parseDouble(parts[1]));
+                                    break;
+                                case "unit":
+                                    unit = parts[1];
+                                    break;
+                                default:
+                                    throw new IllegalStateException("Unknown line: " + line);
+                            }
+                        }
+                    }
+
+                    if (p.waitFor() != 0) {
+                        throw new RunnerException("Fork for " + klass.getSimpleName() + "." + m.getName() + " failed");
+                    }
+                }
+
+                System.out.printf("%-50s %-20s %5d %15.3f %12.3f  %s%n",
+                        klass.getSimpleName() + "." + m.getName(),
+                        warmups,
+                        stats.getN(),
+                        stats.getMean(),
+                        stats.getN() > 2 ? stats.getMeanErrorAt(0.999) : Double.NaN,
+                        unit);
+            }
+        }
+
+        System.out.println();
+        System.out.println("Warmup column lists the warmup iterations used by every fork, '*' marks the forks that hit the cap.");
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.BenchmarkResultMetaData;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JMHSample_40_AppCDS {
+
+    /*
+     * Every fork is a brand new JVM. Before running a single benchmark op, it has to boot
+     * the VM, and load and verify JMH classes along with the benchmark classes. For
+     * JMHSample_13_RunToRun with @Fork(20), or for every chromosome in JMHSample_25_API_GA,
+     * we pay that price over and over again. On large suites, the fork startup adds up to
+     * a considerable share of wall-clock time.
+     * 每个fork都是一个全新的JVM。在运行第一个基准测试操作之前，它必须启动虚拟机，
+     * 加载并校验JMH类以及基准测试类。对于使用@Fork(20)的JMHSample_13_RunToRun，
+     * 或者JMHSample_25_API_GA中的每个染色体，我们都要一次又一次地付出这个代价。
+     * 在大型测试套件中，fork的启动时间累积起来会占据相当大比例的墙钟时间。
+     *
+     * Application Class-Data Sharing (AppCDS) lets the JVM map the pre-parsed classes from
+     * an archive instead of loading them from benchmarks.jar. This launcher creates the
+     * archive for benchmarks.jar once, then passes it to every forked JVM.
+     * 应用类数据共享(AppCDS)让JVM从归档文件中映射预先解析好的类，而不是从benchmarks.jar中加载它们。
+     * 这个启动器只为benchmarks.jar创建一次归档，然后把它传给每个fork出的JVM。
+     *
+     * The archive is produced with:
+     *  - JDK 13+: -XX:ArchiveClassesAtExit, a dynamic archive dumped by a training fork;
+     *  - JDK 10..12: -XX:DumpLoadedClassList from a training fork, then -Xshare:dump;
+     *  - JDK 8 has no AppCDS in OpenJDK builds, and the launcher runs without the archive.
+     * 归档的生成方式：
+     *  - JDK 13+：-XX:ArchiveClassesAtExit，由一个训练用的fork在退出时生成动态归档；
+     *  - JDK 10..12：先由训练用的fork执行-XX:DumpLoadedClassList，再执行-Xshare:dump；
+     *  - JDK 8的OpenJDK构建中没有AppCDS，启动器会在没有归档的情况下运行。
+     */
+
+    /*
+     * This is the training benchmark. It does nothing: the classes loaded by the training
+     * fork are almost exclusively JMH infrastructure, which is the same for all benchmarks.
+     * 这是训练用的基准测试。它什么也不做：训练用的fork加载的类几乎都是JMH的基础设施，
+     * 而这些类对所有基准测试都是一样的。
+     */
+
+    @Benchmark
+    public void training() {
+        // this method was intentionally left blank.
+    }
+
+    /*
+     * The forks we use to estimate the startup cost: no warmup, and the shortest
+     * measurement that still makes the fork go through the entire lifecycle.
+     * 我们用来估计启动开销的fork：没有预热，度量时间也尽可能短，但仍然让fork经历完整的生命周期。
+     */
+
+    static final int PROBE_FORKS = 5;
+
+    static Options probeOptions(String... jvmArgs) {
+        return new OptionsBuilder()
+                .include(JMHSample_40_AppCDS.class.getName() + ".training")
+                .warmupIterations(0)
+                .measurementIterations(1)
+                .measurementTime(TimeValue.milliseconds(10))
+                .forks(PROBE_FORKS)
+                .jvmArgsPrepend(jvmArgs)
+                .verbosity(VerboseMode.SILENT)
+                .build();
+    }
+
+    /**
+     * Creates the archive for the current classpath and JDK, unless there is a fresh one already.
+     * 为当前的classpath和JDK创建归档，除非已经存在一个足够新的归档。
+     *
+     * @return archive file, or null if the current JDK cannot do AppCDS
+     */
+    static File createArchive() throws RunnerException, IOException, InterruptedException {
+        int feature = javaFeatureVersion();
+        if (feature < 10) {
+            return null;
+        }
+
+        String classpath = System.getProperty("java.class.path");
+        File jar = new File(classpath.split(File.pathSeparator)[0]);
+        File dir = jar.isFile() ? jar.getAbsoluteFile().getParentFile() : new File(System.getProperty("java.io.tmpdir"));
+        String base = (jar.isFile() ? jar.getName().replaceFirst("\\.jar$", "") : "benchmarks")
+                + "-jdk" + System.getProperty("java.version");
+        File archive = new File(dir, base + ".jsa");
+
+        if (archive.isFile() && archive.lastModified() >= jar.lastModified()) {
+            return archive;
+        }
+
+        Options training;
+        if (feature >= 13) {
+            training = new OptionsBuilder()
+                    .parent(probeOptions("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath()))
+                    .forks(1)
+                    .build();
+            new Runner(training).run();
+        } else {
+            File classList = new File(dir, base + ".classlist");
+            training = new OptionsBuilder()
+                    .parent(probeOptions("-XX:+UseAppCDS", "-XX:DumpLoadedClassList=" + classList.getAbsolutePath()))
+                    .forks(1)
+                    .build();
+            new Runner(training).run();
+
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            Process dump = new ProcessBuilder(java,
+                    "-XX:+UseAppCDS",
+                    "-Xshare:dump",
+                    "-XX:SharedClassListFile=" + classList.getAbsolutePath(),
+                    "-XX:SharedArchiveFile=" + archive.getAbsolutePath(),
+                    "-cp", classpath)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            if (dump.waitFor() != 0) {
+                throw new RunnerException("Cannot dump the shared archive to " + archive);
+            }
+        }
+
+        if (!archive.isFile()) {
+            throw new RunnerException("Training fork did not produce the shared archive " + archive);
+        }
+        return archive;
+    }
+
+    static String[] archiveOptions(File archive) {
+        if (javaFeatureVersion() < 11) {
+            return new String[]{"-XX:+UseAppCDS", "-XX:SharedArchiveFile=" + archive.getAbsolutePath()};
+        }
+        return new String[]{"-XX:SharedArchiveFile=" + archive.getAbsolutePath()};
+    }
+
+    static int javaFeatureVersion() {
+        String spec = System.getProperty("java.specification.version");
+        if (spec.startsWith("1.")) {
+            spec = spec.substring(2);
+        }
+        return Integer.parseInt(spec);
+    }
+
+    /**
+     * Fork startup time: from the moment the host launches the fork, up to the moment
+     * the fork starts running the benchmark.
+     * fork的启动时间：从宿主进程启动fork开始，到fork开始运行基准测试为止。
+     */
+    static ListStatistics startupTimes(Collection<RunResult> results) {
+        ListStatistics stats = new ListStatistics();
+        for (RunResult rr : results) {
+            for (BenchmarkResult br : rr.getBenchmarkResults()) {
+                BenchmarkResultMetaData md = br.getMetadata();
+                if (md != null) {
+                    stats.addValue(md.getWarmupTime() - md.getStartTime());
+                }
+            }
+        }
+        return stats;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The launcher accepts the usual JMH command line. It creates (or reuses) the archive,
+     * measures the fork startup time with and without the archive, and then runs the requested
+     * benchmarks with the archive attached to every fork. The archive is stored next to
+     * benchmarks.jar and is recreated when the jar or the JDK changes.
+     * 这个启动器接受通常的JMH命令行参数。它会创建(或复用)归档，分别度量有无归档时fork的启动时间，
+     * 然后在每个fork都挂载归档的情况下运行所请求的基准测试。归档保存在benchmarks.jar旁边，
+     * 当jar或JDK变化时会重新创建。
+     *
+     * Note the archive is passed with -jvmArgsPrepend, so that it still composes with the
+     * @Fork(jvmArgsAppend = ...) the benchmarks may have.
+     * 注意归档是通过-jvmArgsPrepend传入的，这样它仍然能与基准测试可能带有的
+     * @Fork(jvmArgsAppend = ...)组合使用。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -cp target/benchmarks.jar com.weiquding.jmh.samples.JMHSample_40_AppCDS JMHSample_13 -wi 0 -i 3
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException, InterruptedException {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+
+        File archive = createArchive();
+        if (archive == null) {
+            System.out.println("AppCDS is not available on JDK " + System.getProperty("java.version") + ", running without the archive.");
+            new Runner(cmdOptions).run();
+            return;
+        }
+
+        ListStatistics cold = startupTimes(new Runner(probeOptions()).run());
+        ListStatistics shared = startupTimes(new Runner(probeOptions(archiveOptions(archive))).run());
+
+        List<String> prepend = new ArrayList<>(Arrays.asList(archiveOptions(archive)));
+        if (cmdOptions.getJvmArgsPrepend().hasValue()) {
+            prepend.addAll(cmdOptions.getJvmArgsPrepend().get());
+        }
+
+        Options opts = new OptionsBuilder()
+                .parent(cmdOptions)
+                .jvmArgsPrepend(prepend.toArray(new String[0]))
+                .build();
+
+        Collection<RunResult> results = new Runner(opts).run();
+
+        int forks = 0;
+        for (RunResult rr : results) {
+            forks += rr.getBenchmarkResults().size();
+        }
+
+        double saved = cold.getMean() - shared.getMean();
+        System.out.println();
+        System.out.println("AppCDS archive: " + archive);
+        System.out.printf("Fork startup without archive: %8.1f ± %6.1f ms%n", cold.getMean(), cold.getMeanErrorAt(0.999));
+        System.out.printf("Fork startup with archive:    %8.1f ± %6.1f ms%n", shared.getMean(), shared.getMeanErrorAt(0.999));
+        System.out.printf("Saved per fork: %.1f ms, over %d forks in this run: %.1f s%n", saved, forks, saved * forks / 1000);
+    }
+
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.openjdk.jmh.runner.options.WarmupMode;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_41_Megamorphic {
+
+    /*
+     * JMHSample_12_Forking and JMHSample_32_BulkWarmup show the profile pollution with
+     * only two Counter implementations. HotSpot handles up to two receiver types at a call
+     * site rather well: monomorphic and bimorphic call sites get inlined behind a cheap type
+     * check. Once the third receiver type shows up, the call site turns megamorphic, and the
+     * compiler falls back to the real virtual/interface dispatch without inlining.
+     * JMHSample_12_Forking和JMHSample_32_BulkWarmup只用两个Counter实现展示了profile污染。
+     * HotSpot能很好地处理一个调用点上最多两种接收者类型：单态和双态调用点会在一个廉价的类型检查之后被内联。
+     * 一旦出现第三种接收者类型，调用点就变成了多态(megamorphic)的，
+     * 编译器会退回到真正的虚方法/接口分派，并且不再内联。
+     *
+     * Plugin-heavy code easily hits 3+ receiver types at its hot call sites. This sample
+     * drives the call site with 1..16 Counter implementations, under controlled receiver
+     * distributions, and compares the several ways to dispatch:
+     *  - interface dispatch (invokeinterface);
+     *  - abstract class dispatch (invokevirtual);
+     *  - switch on a type tag, no dispatch at all;
+     *  - sealed interface: the same classes seen through a sealed type.
+     * 插件繁多的代码很容易在热点调用点上遇到3种以上的接收者类型。这个示例用1..16个Counter实现，
+     * 在受控的接收者分布下驱动调用点，并比较几种分派方式：
+     *  - 接口分派(invokeinterface)；
+     *  - 抽象类分派(invokevirtual)；
+     *  - 对类型标签做switch，完全没有分派；
+     *  - sealed接口：通过sealed类型看到的同一组类。
+     */
+
+    /*
+     * The receivers. All implementations are semantically the same, but they are different
+     * classes from the JVM standpoint. The same objects are used for every dispatch flavor,
+     * only the static type at the call site differs.
+     * 接收者。所有实现在语义上都是相同的，但从JVM的角度来看它们是不同的类。
+     * 每种分派方式使用的都是同一组对象，只有调用点上的静态类型不同。
+     */
+
+    public interface Counter {
+        int inc();
+    }
+
+    public sealed interface SealedCounter permits C01, C02, C03, C04, C05, C06, C07, C08,
+            C09, C10, C11, C12, C13, C14, C15, C16 {
+        int inc();
+    }
+
+    public abstract static class AbstractCounter implements Counter {
+        final int tag;
+        int x;
+
+        AbstractCounter(int tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public abstract int inc();
+    }
+
+    public static final class C01 extends AbstractCounter implements SealedCounter {
+        C01() {
+            super(1);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 1;
+        }
+    }
+
+    public static final class C02 extends AbstractCounter implements SealedCounter {
+        C02() {
+            super(2);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 2;
+        }
+    }
+
+    public static final class C03 extends AbstractCounter implements SealedCounter {
+        C03() {
+            super(3);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 3;
+        }
+    }
+
+    public static final class C04 extends AbstractCounter implements SealedCounter {
+        C04() {
+            super(4);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 4;
+        }
+    }
+
+    public static final class C05 extends AbstractCounter implements SealedCounter {
+        C05() {
+            super(5);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 5;
+        }
+    }
+
+    public static final class C06 extends AbstractCounter implements SealedCounter {
+        C06() {
+            super(6);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 6;
+        }
+    }
+
+    public static final class C07 extends AbstractCounter implements SealedCounter {
+        C07() {
+            super(7);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 7;
+        }
+    }
+
+    public static final class C08 extends AbstractCounter implements SealedCounter {
+        C08() {
+            super(8);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 8;
+        }
+    }
+
+    public static final class C09 extends AbstractCounter implements SealedCounter {
+        C09() {
+            super(9);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 9;
+        }
+    }
+
+    public static final class C10 extends AbstractCounter implements SealedCounter {
+        C10() {
+            super(10);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 10;
+        }
+    }
+
+    public static final class C11 extends AbstractCounter implements SealedCounter {
+        C11() {
+            super(11);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 11;
+        }
+    }
+
+    public static final class C12 extends AbstractCounter implements SealedCounter {
+        C12() {
+            super(12);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 12;
+        }
+    }
+
+    public static final class C13 extends AbstractCounter implements SealedCounter {
+        C13() {
+            super(13);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 13;
+        }
+    }
+
+    public static final class C14 extends AbstractCounter implements SealedCounter {
+        C14() {
+            super(14);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 14;
+        }
+    }
+
+    public static final class C15 extends AbstractCounter implements SealedCounter {
+        C15() {
+            super(15);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 15;
+        }
+    }
+
+    public static final class C16 extends AbstractCounter implements SealedCounter {
+        C16() {
+            super(16);
+        }
+
+        @Override
+        public int inc() {
+            return x++ + 16;
+        }
+    }
+
+    static AbstractCounter newCounter(int tag) {
+        switch (tag) {
+            case 1: return new C01();
+            case 2: return new C02();
+            case 3: return new C03();
+            case 4: return new C04();
+            case 5: return new C05();
+            case 6: return new C06();
+            case 7: return new C07();
+            case 8: return new C08();
+            case 9: return new C09();
+            case 10: return new C10();
+            case 11: return new C11();
+            case 12: return new C12();
+            case 13: return new C13();
+            case 14: return new C14();
+            case 15: return new C15();
+            case 16: return new C16();
+            default:
+                throw new IllegalArgumentException("Unknown tag: " + tag);
+        }
+    }
+
+    /*
+     * The type tag flavor does the same work as the inc() implementations above,
+     * but selects it with a switch instead of a virtual call.
+     * 类型标签的方式和上面的inc()实现做同样的工作，只是用switch而不是虚调用来选择它。
+     */
+
+    static int incByTag(AbstractCounter c) {
+        switch (c.tag) {
+            case 1: return c.x++ + 1;
+            case 2: return c.x++ + 2;
+            case 3: return c.x++ + 3;
+            case 4: return c.x++ + 4;
+            case 5: return c.x++ + 5;
+            case 6: return c.x++ + 6;
+            case 7: return c.x++ + 7;
+            case 8: return c.x++ + 8;
+            case 9: return c.x++ + 9;
+            case 10: return c.x++ + 10;
+            case 11: return c.x++ + 11;
+            case 12: return c.x++ + 12;
+            case 13: return c.x++ + 13;
+            case 14: return c.x++ + 14;
+            case 15: return c.x++ + 15;
+            case 16: return c.x++ + 16;
+            default:
+                throw new IllegalStateException("Unknown tag: " + c.tag);
+        }
+    }
+
+    /*
+     * The receiver distributions:
+     *  - uniform:  all types are equally likely, in random order;
+     *  - skewed:   the first type takes 95% of the calls, the others share the remaining 5%;
+     *  - rotating: the types take turns in long runs, as if the hot type changes over time.
+     * 接收者分布：
+     *  - uniform：所有类型的概率相同，顺序随机；
+     *  - skewed：第一种类型占95%的调用，其余类型分享剩下的5%；
+     *  - rotating：各类型轮流出现，每轮都很长，就像热点类型随时间变化一样。
+     */
+
+    static final int SIZE = 1024;
+
+    @Param({"1", "2", "3", "4", "8", "16"})
+    int types;
+
+    @Param({"uniform", "skewed", "rotating"})
+    String distribution;
+
+    Counter[] interfaces;
+    AbstractCounter[] abstracts;
+    SealedCounter[] sealeds;
+
+    @Setup
+    public void setup() {
+        AbstractCounter[] prototypes = new AbstractCounter[types];
+        for (int t = 0; t < types; t++) {
+            prototypes[t] = newCounter(t + 1);
+        }
+
+        Random r = new Random(42);
+        abstracts = new AbstractCounter[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            int t;
+            switch (distribution) {
+                case "uniform":
+                    t = r.nextInt(types);
+                    break;
+                case "skewed":
+                    t = (types == 1 || r.nextInt(100) < 95) ? 0 : 1 + r.nextInt(types - 1);
+                    break;
+                case "rotating":
+                    t = i * types / SIZE;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown distribution: " + distribution);
+            }
+            abstracts[i] = prototypes[t];
+        }
+
+        interfaces = new Counter[SIZE];
+        sealeds = new SealedCounter[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            interfaces[i] = abstracts[i];
+            sealeds[i] = (SealedCounter) abstracts[i];
+        }
+    }
+
+    /*
+     * Every benchmark method has its own call site, and therefore its own type profile.
+     * 每个基准测试方法都有自己的调用点，因此也有自己的类型profile。
+     */
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int interfaceDispatch() {
+        int s = 0;
+        for (Counter c : interfaces) {
+            s += c.inc();
+        }
+        return s;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int abstractDispatch() {
+        int s = 0;
+        for (AbstractCounter c : abstracts) {
+            s += c.inc();
+        }
+        return s;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int tagSwitch() {
+        int s = 0;
+        for (AbstractCounter c : abstracts) {
+            s += incByTag(c);
+        }
+        return s;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int sealedDispatch() {
+        int s = 0;
+        for (SealedCounter c : sealeds) {
+            s += c.inc();
+        }
+        return s;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * Expect the interface and abstract class flavors to be fast with 1 and 2 types, and
+     * fall off the cliff at 3 types, where the call site goes megamorphic. The skewed
+     * distribution softens the cliff, since C2 still inlines the dominant receiver behind
+     * a guard. The type tag switch degrades gracefully, as there is no type profile
+     * to pollute. The sealed interface behaves like the plain interface: HotSpot does not
+     * use the sealed hierarchy to devirtualize the call.
+     * 预计接口和抽象类方式在1种和2种类型时很快，而在3种类型时调用点变为多态，性能跌下悬崖。
+     * skewed分布会让这个悬崖变得平缓，因为C2仍然会在一个守卫条件之后内联占主导地位的接收者。
+     * 类型标签的switch则平缓地退化，因为它没有可以被污染的类型profile。
+     * sealed接口的表现和普通接口一样：HotSpot不会利用sealed层次结构对调用去虚拟化。
+     *
+     * The main method measures the cliff with WarmupMode.INDI: every fork warms up only
+     * its own benchmark and its own $types, so the call site has seen exactly the types
+     * it is measured with. Then it prints the cliff: the score with 3 types over the score
+     * with 2 types.
+     * main方法使用WarmupMode.INDI测量悬崖：每个fork只预热它自己的基准测试和它自己的$types，
+     * 这样调用点见过的类型恰好就是测量时使用的类型。然后打印悬崖：3种类型时的分数与2种类型时的分数之比。
+     *
+     * Then it repeats the run with WarmupMode.BULK, as the negative control. Bulk warmup runs
+     * every benchmark with every $types combination in each fork, see JMHSample_32_BulkWarmup:
+     * the call sites have seen all 16 types before the measurement starts, every profile is
+     * megamorphic, and the 1 and 2 type scores fall to the megamorphic ones. The cliff is gone,
+     * not because there is none, but because the profiles are polluted.
+     * 然后以WarmupMode.BULK重复运行，作为反面对照。批量预热在每个fork中以每种$types组合运行每个基准测试，
+     * 参见JMHSample_32_BulkWarmup：在测量开始之前，调用点已经见过全部16种类型，每个profile都是多态的，
+     * 1种和2种类型的分数也跌到了多态的水平。悬崖消失了，不是因为它不存在，而是因为profile被污染了。
+     *
+     * Last, it runs WarmupMode.BULK_INDI: the same bulk warmup, then a per-benchmark warmup
+     * with only the measured $types on top. It does not bring the cliff back. The receiver
+     * profile counts the types it has ever seen and forgets none of them, and the compiled
+     * megamorphic call never deoptimizes on the fewer types. Once a profile is polluted, more
+     * warmup does not clean it: only a fresh fork does.
+     * 最后运行WarmupMode.BULK_INDI：同样的批量预热，之后再加上只用被测$types的逐个基准测试预热。
+     * 它并不能让悬崖重新出现。接收者profile记录它见过的所有类型，并且不会忘记任何一个，
+     * 而已编译的多态调用在类型变少时也不会反优化。profile一旦被污染，更多的预热并不能清除它：只有新的fork才行。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_41 -p distribution=uniform
+     *    $ java -jar target/benchmarks.jar JMHSample_41 -p distribution=uniform -wm BULK    (polluted profiles)
+     *    $ java -jar target/benchmarks.jar JMHSample_41 -p distribution=uniform -wm BULK_INDI
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    private static String label(WarmupMode mode) {
+        switch (mode) {
+            case BULK:
+                return ", polluted profiles:";
+            case BULK_INDI:
+                return ", polluted profiles, then per-benchmark warmup:";
+            default:
+                return ":";
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String[] flavors = {"interfaceDispatch", "abstractDispatch", "tagSwitch", "sealedDispatch"};
+        String[] distributions = {"uniform", "skewed", "rotating"};
+        String[] typeCounts = {"1", "2", "3", "4", "8", "16"};
+
+        for (WarmupMode mode : WarmupMode.values()) {
+            for (String distribution : distributions) {
+                Options opt = new OptionsBuilder()
+                        .include(JMHSample_41_Megamorphic.class.getSimpleName())
+                        .param("distribution", distribution)
+                        .param("types", typeCounts)
+                        .warmupMode(mode)
+                        .warmupIterations(3)
+                        .warmupTime(TimeValue.milliseconds(200))
+                        .measurementIterations(3)
+                        .measurementTime(TimeValue.milliseconds(500))
+                        .verbosity(VerboseMode.SILENT)
+                        .build();
+
+                Collection<RunResult> results = new Runner(opt).run();
+
+                // flavor -> types -> score
+                Map<String, Map<Integer, Double>> scores = new TreeMap<>();
+                for (RunResult rr : results) {
+                    String benchmark = rr.getParams().getBenchmark();
+                    String flavor = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+                    int types = Integer.parseInt(rr.getParams().getParam("types"));
+                    scores.computeIfAbsent(flavor, k -> new TreeMap<>()).put(types, rr.getPrimaryResult().getScore());
+                }
+
+                System.out.println();
+                System.out.println("WarmupMode." + mode + ", " + distribution + " receivers, ns/op" + label(mode));
+                System.out.printf("%-20s", "");
+                for (String t : typeCounts) {
+                    System.out.printf("%8s", t);
+                }
+                System.out.printf("%10s%n", "3 vs 2");
+
+                for (String flavor : flavors) {
+                    Map<Integer, Double> row = scores.get(flavor);
+                    if (row == null) {
+                        continue;
+                    }
+                    System.out.printf("%-20s", flavor);
+                    for (String t : typeCounts) {
+                        System.out.printf("%8.2f", row.get(Integer.parseInt(t)));
+                    }
+                    System.out.printf("%9.2fx%n", row.get(3) / row.get(2));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class JMHSample_42_InliningBudget {
+
+    /*
+     * JMHSample_16_CompilerControl toggles the inlining by hand, method by method, and
+     * JMHSample_25_API_GA evolves the inlining flags for a single recursive method. Neither
+     * tells where the inlining actually stops for a given code shape.
+     * JMHSample_16_CompilerControl逐个方法地手动开关内联，JMHSample_25_API_GA则为单个递归方法演化内联参数。
+     * 它们都没有告诉我们，对于给定的代码形状，内联究竟在哪里停止。
+     *
+     * This sample generates the call chains of the given depth, where every callee has
+     * the given bytecode size, and runs them under a grid of FreqInlineSize and MaxInlineLevel
+     * values. For every cell, it also captures the JIT inlining decisions
+     * from -XX:+LogCompilation, so that we can tell *why* the cell is slow.
+     * 这个示例生成给定深度的调用链，链上每个被调用方法都有给定的字节码大小，
+     * 并在FreqInlineSize和MaxInlineLevel的取值网格下运行它们。
+     * 对于每个单元格，它还会从-XX:+LogCompilation中捕获JIT的内联决策，这样我们就能知道这个单元格*为什么*慢。
+     */
+
+    /*
+     * The generated chains implement this interface. The call site in the benchmark method
+     * is monomorphic, and gets inlined; the chain methods themselves are static, so only
+     * the size and depth budgets are in play.
+     * 生成的调用链实现这个接口。基准测试方法中的调用点是单态的，会被内联；
+     * 调用链上的方法本身都是静态的，因此只有大小和深度的预算在起作用。
+     */
+
+    public interface Chain {
+        int call(int x);
+    }
+
+    /*
+     * Every padding statement is "x = x * 31 + k;" with bipush constants, 8 bytes of bytecode.
+     * The call to the next link and the return take 5 more bytes (iload, invokestatic, ireturn);
+     * the last link only returns x, 2 bytes (iload, ireturn). javap -c agrees.
+     * 每条填充语句都是使用bipush常量的"x = x * 31 + k;"，占8字节字节码。
+     * 对下一个链节的调用和返回还要再占5个字节(iload、invokestatic、ireturn)；
+     * 最后一个链节只返回x，占2个字节(iload、ireturn)。javap -c的结果与此一致。
+     */
+
+    static final int STATEMENT_BYTES = 8;
+    static final int CALL_BYTES = 5;
+    static final int RETURN_BYTES = 2;
+
+    @Param({"1", "2", "4", "8", "12", "16"})
+    int depth;
+
+    @Param({"16", "64", "128", "256", "512"})
+    int size;
+
+    Chain chain;
+    int x;
+
+    @Setup
+    public void setup() throws Exception {
+        chain = (Chain) generate(depth, size).getDeclaredConstructor().newInstance();
+        x = 42;
+    }
+
+    @Benchmark
+    public int measure() {
+        return chain.call(x);
+    }
+
+    static String chainName(int depth, int size) {
+        return "InlineChain_d" + depth + "_s" + size;
+    }
+
+    /**
+     * @return the bytecode size of a link, the last one of the chain or any other
+     */
+    static int bytecodeSize(int size, boolean last) {
+        return (last ? RETURN_BYTES : CALL_BYTES) + STATEMENT_BYTES * statements(size);
+    }
+
+    static int statements(int size) {
+        return Math.max(0, (size - CALL_BYTES) / STATEMENT_BYTES);
+    }
+
+    /**
+     * Generates, compiles and loads the chain class.
+     * 生成、编译并加载调用链类。
+     */
+    static Class<?> generate(int depth, int size) throws IOException, ClassNotFoundException {
+        String name = chainName(depth, size);
+
+        StringBuilder src = new StringBuilder();
+        src.append("public class ").append(name).append(" implements ")
+                .append(Chain.class.getCanonicalName()).append(" {\n");
+        src.append("    public int call(int x) { return m1(x); }\n");
+        for (int d = 1; d <= depth; d++) {
+            src.append("    static int m").append(d).append("(int x) {\n");
+            for (int s = 0; s < statements(size); s++) {
+                src.append("        x = x * 31 + ").append(7 + (s + d) % 100).append(";\n");
+            }
+            if (d < depth) {
+                src.append("        return m").append(d + 1).append("(x);\n");
+            } else {
+                src.append("        return x;\n");
+            }
+            src.append("    }\n");
+        }
+        src.append("}\n");
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IllegalStateException("No system Java compiler, run this sample with a JDK");
+        }
+
+        Path dir = Files.createTempDirectory("jmh-inline");
+        Path file = dir.resolve(name + ".java");
+        Files.write(file, src.toString().getBytes(StandardCharsets.UTF_8));
+
+        int rc = javac.run(null, null, null,
+                "-d", dir.toString(),
+                "-cp", System.getProperty("java.class.path"),
+                file.toString());
+        if (rc != 0) {
+            throw new IllegalStateException("Cannot compile " + file);
+        }
+
+        ClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()}, Chain.class.getClassLoader());
+        return Class.forName(name, true, loader);
+    }
+
+    /*
+     * ============================== INLINING DECISIONS ==============================
+     */
+
+    static final Pattern C1_LEVEL = Pattern.compile(" level='[123]'");
+    static final Pattern KLASS = Pattern.compile("<klass id='(\\d+)' name='([^']+)'");
+    static final Pattern METHOD = Pattern.compile("<method id='(\\d+)' holder='(\\d+)' name='([^']+)'");
+    static final Pattern CALL = Pattern.compile("<call method='(\\d+)'");
+    static final Pattern DECISION = Pattern.compile("<inline_(success|fail) reason='([^']+)'");
+
+    /**
+     * Reads the LogCompilation output, and finds the last C2 compilation of the JMH stub
+     * that went into the chain. Then it walks the chain links and reports how far the
+     * inlining got, and why it stopped.
+     * 读取LogCompilation的输出，找到最后一次进入调用链的JMH桩代码的C2编译。
+     * 然后沿着链节遍历，报告内联进行到了哪里，以及为什么停止。
+     *
+     * @return decision summary, e.g. "16/16", "9/16 too deep", "0/16 too big"
+     */
+    static String inliningDecisions(File log, int depth, int size) throws IOException {
+        if (!log.isFile()) {
+            return "n/a";
+        }
+
+        String chain = chainName(depth, size);
+        String summary = "not compiled";
+
+        boolean inC2Task = false;
+        Map<String, String> klasses = new HashMap<>();
+        Map<String, String> methods = new HashMap<>();
+        String pendingCall = null;
+        int inlined = 0;
+        String stop = null;
+        boolean touched = false;
+
+        List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.ISO_8859_1);
+        for (String line : lines) {
+            if (line.startsWith("<task ")) {
+                inC2Task = line.contains("jmhStub") && !C1_LEVEL.matcher(line).find();
+                klasses.clear();
+                methods.clear();
+                pendingCall = null;
+                inlined = 0;
+                stop = null;
+                touched = false;
+                continue;
+            }
+            if (!inC2Task) {
+                continue;
+            }
+            if (line.startsWith("</task>")) {
+                if (touched) {
+                    summary = inlined + "/" + depth + (stop != null ? " " + stop : "");
+                }
+                inC2Task = false;
+                continue;
+            }
+
+            Matcher m;
+            if ((m = KLASS.matcher(line)).find()) {
+                klasses.put(m.group(1), m.group(2));
+            } else if ((m = METHOD.matcher(line)).find()) {
+                if (chain.equals(klasses.get(m.group(2))) && m.group(3).matches("m\\d+")) {
+                    methods.put(m.group(1), m.group(3));
+                }
+            } else if ((m = CALL.matcher(line)).find()) {
+                pendingCall = methods.get(m.group(1));
+            } else if ((m = DECISION.matcher(line)).find() && pendingCall != null) {
+                touched = true;
+                int link = Integer.parseInt(pendingCall.substring(1));
+                if ("success".equals(m.group(1))) {
+                    inlined = Math.max(inlined, link);
+                } else if (stop == null || link <= inlined + 1) {
+                    stop = m.group(2);
+                }
+                pendingCall = null;
+            }
+        }
+        return summary;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method runs every (depth, size) cell in its own fork, under every point of the
+     * flag grid, and prints two heatmaps per grid point: the ns/op scores, and how many chain
+     * links got inlined, with the reason the inlining stopped. The column headers give the
+     * bytecode size of the inner links, and of the last link.
+     * main方法在标志网格的每个取值点下，让每个(depth, size)单元格都在自己的fork中运行，
+     * 并为每个网格点打印两张热力图：ns/op分数，以及有多少个链节被内联、内联停止的原因。
+     * 列标题给出了内部链节以及最后一个链节的字节码大小。
+     *
+     * Note the callees here are hot, and so FreqInlineSize is the budget that matters for them.
+     * MaxInlineSize only affects the cold call sites, and the chain has none, so the grid leaves
+     * it at its default: varying it would only multiply the forks with identical heatmaps.
+     * Also note the JMH stub and the benchmark method take two inlining levels before the chain starts.
+     * 注意这里的被调用方法都是热点方法，因此对它们起作用的预算是FreqInlineSize。
+     * MaxInlineSize只影响冷的调用点，而调用链中没有冷的调用点，所以网格让它保持默认值：改变它只会成倍增加fork，
+     * 得到的却是相同的热力图。还要注意，在调用链开始之前，JMH桩代码和基准测试方法已经占用了两个内联层级。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -cp target/benchmarks.jar com.weiquding.jmh.samples.JMHSample_42_InliningBudget
+     *
+     *    A single cell can also be run directly, e.g.:
+     *    $ java -jar target/benchmarks.jar JMHSample_42 -p depth=8 -p size=128 \
+     *        -jvmArgsAppend "-XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining"
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    static final int[] FREQ_INLINE_SIZE = {100, 325};
+    static final int[] MAX_INLINE_LEVEL = {9, 15};
+
+    static final int[] DEPTHS = {1, 2, 4, 8, 12, 16};
+    static final int[] SIZES = {16, 64, 128, 256, 512};
+
+    static final String SHADES = " .:-=+*#%@";
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        File logDir = Files.createTempDirectory("jmh-inline-logs").toFile();
+
+        for (int freqInlineSize : FREQ_INLINE_SIZE) {
+            for (int maxInlineLevel : MAX_INLINE_LEVEL) {
+                String flags = "-XX:FreqInlineSize=" + freqInlineSize +
+                        " -XX:MaxInlineLevel=" + maxInlineLevel;
+
+                double[][] scores = new double[DEPTHS.length][SIZES.length];
+                String[][] decisions = new String[DEPTHS.length][SIZES.length];
+                double min = Double.MAX_VALUE;
+                double max = 0;
+
+                for (int d = 0; d < DEPTHS.length; d++) {
+                    for (int s = 0; s < SIZES.length; s++) {
+                        File log = new File(logDir, "inline_" + freqInlineSize + "_" +
+                                maxInlineLevel + "_" + chainName(DEPTHS[d], SIZES[s]) + ".log");
+
+                        Options opt = new OptionsBuilder()
+                                .include(JMHSample_42_InliningBudget.class.getSimpleName())
+                                .param("depth", String.valueOf(DEPTHS[d]))
+                                .param("size", String.valueOf(SIZES[s]))
+                                .jvmArgsAppend(
+                                        "-XX:FreqInlineSize=" + freqInlineSize,
+                                        "-XX:MaxInlineLevel=" + maxInlineLevel,
+                                        "-XX:+UnlockDiagnosticVMOptions",
+                                        "-XX:+LogCompilation",
+                                        "-XX:LogFile=" + log.getAbsolutePath())
+                                .verbosity(VerboseMode.SILENT)
+                                .build();
+
+                        RunResult result = new Runner(opt).runSingle();
+                        scores[d][s] = result.getPrimaryResult().getScore();
+                        decisions[d][s] = inliningDecisions(log, DEPTHS[d], SIZES[s]);
+
+                        min = Math.min(min, scores[d][s]);
+                        max = Math.max(max, scores[d][s]);
+                    }
+                }
+
+                System.out.println();
+                System.out.println(flags + ", ns/op:");
+                printHeader();
+                for (int d = 0; d < DEPTHS.length; d++) {
+                    System.out.printf("depth %-4d", DEPTHS[d]);
+                    for (int s = 0; s < SIZES.length; s++) {
+                        int shade = (max > min) ? (int) ((scores[d][s] - min) / (max - min) * (SHADES.length() - 1)) : 0;
+                        System.out.printf("%16s", String.format("%.2f %c", scores[d][s], SHADES.charAt(shade)));
+                    }
+                    System.out.println();
+                }
+
+                System.out.println(flags + ", inlined chain links:");
+                printHeader();
+                for (int d = 0; d < DEPTHS.length; d++) {
+                    System.out.printf("depth %-4d", DEPTHS[d]);
+                    for (int s = 0; s < SIZES.length; s++) {
+                        System.out.printf("%16s", abbreviate(decisions[d][s]));
+                    }
+                    System.out.println();
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("Compilation logs are in " + logDir);
+    }
+
+    private static void printHeader() {
+        System.out.printf("%-10s", "");
+        for (int size : SIZES) {
+            System.out.printf("%16s", size + " (" + bytecodeSize(size, false) + "/" + bytecodeSize(size, true) + " B)");
+        }
+        System.out.println();
+    }
+
+    private static String abbreviate(String decision) {
+        // "inlining too deep" -> "too deep", "hot method too big" -> "too big"
+        String s = decision.replace("inlining ", "").replace("hot method ", "");
+        return s.length() <= 15 ? s : s.substring(0, 15);
+    }
+
+}
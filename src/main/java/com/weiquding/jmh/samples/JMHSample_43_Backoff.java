@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class JMHSample_43_Backoff {
+
+    /*
+     * JMHSample_21_ConsumeCPU shows that Blackhole.consumeCPU(tokens) scales linearly with
+     * the number of tokens. Tokens are not nanoseconds, though, and the relation between them
+     * depends on the hardware, and even on the current CPU frequency.
+     * JMHSample_21_ConsumeCPU展示了Blackhole.consumeCPU(tokens)随token数量线性增长。
+     * 但是token并不是纳秒，它们之间的关系取决于硬件，甚至取决于当前的CPU频率。
+     *
+     * This sample builds a small backoff library on top of consumeCPU:
+     *  - SpinCalibration maps nanoseconds to tokens. It calibrates itself at startup, and
+     *    a background thread re-calibrates it when the CPU frequency changes, or the spins
+     *    drift off the target;
+     *  - BackoffPolicy computes the delay for the given attempt: exponential, or exponential
+     *    with full jitter;
+     *  - Backoff escalates from calibrated spins, to Thread.yield(), to LockSupport.parkNanos()
+     *    as the delays grow.
+     * 这个示例在consumeCPU之上构建了一个小型的退避库：
+     *  - SpinCalibration把纳秒映射为token。它在启动时自我校准，并由一个后台线程在CPU频率变化或自旋偏离目标时重新校准；
+     *  - BackoffPolicy计算给定尝试次数的延迟：指数退避，或者带完全抖动的指数退避；
+     *  - Backoff随着延迟的增长，从校准过的自旋逐步升级到Thread.yield()，再到LockSupport.parkNanos()。
+     */
+
+    /**
+     * Maps nanoseconds to Blackhole.consumeCPU tokens: time(tokens) = overhead + tokens * nanosPerToken.
+     * 把纳秒映射为Blackhole.consumeCPU的token：time(tokens) = overhead + tokens * nanosPerToken。
+     */
+    public static class SpinCalibration implements AutoCloseable {
+
+        private static final Path CPU_FREQ = Paths.get("/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq");
+
+        private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+        private static final double FREQ_TOLERANCE = 0.05;
+        private static final double DRIFT_TOLERANCE = 0.20;
+
+        private static final long SMALL_TOKENS = 1 << 10;
+        private static final long LARGE_TOKENS = 1 << 16;
+        private static final int ROUNDS = 15;
+        private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+        /**
+         * One fit, published as a whole: the spinning threads never see the slope of one
+         * calibration with the overhead of another.
+         * 一次拟合，作为一个整体发布：自旋线程永远不会看到一次校准的斜率搭配另一次校准的开销。
+         */
+        private static final class Fit {
+            final double nanosPerToken;
+            final double overheadNanos;
+
+            Fit(double nanosPerToken, double overheadNanos) {
+                this.nanosPerToken = nanosPerToken;
+                this.overheadNanos = overheadNanos;
+            }
+        }
+
+        private volatile Fit fit;
+        private volatile long cpuFreq;
+        private volatile int calibrations;
+        private ScheduledExecutorService checker;
+
+        public SpinCalibration() {
+            calibrate();
+        }
+
+        /*
+         * The hot path: one volatile read, no checks, no locks. The checks run on the
+         * background thread of startChecks(), or wherever the owner calls maybeRecalibrate().
+         * 热路径：一次volatile读，没有检查，没有锁。检查运行在startChecks()的后台线程上，
+         * 或者在所有者调用maybeRecalibrate()的任何地方。
+         */
+        public long tokensFor(long nanos) {
+            Fit f = fit;
+            double tokens = (nanos - f.overheadNanos) / f.nanosPerToken;
+            return (tokens > 0) ? (long) tokens : 0;
+        }
+
+        public void spin(long nanos) {
+            Blackhole.consumeCPU(tokensFor(nanos));
+        }
+
+        public double nanosPerToken() {
+            return fit.nanosPerToken;
+        }
+
+        public int calibrations() {
+            return calibrations;
+        }
+
+        /**
+         * Runs maybeRecalibrate() every CHECK_INTERVAL_NANOS on a daemon thread, until close().
+         * 在一个守护线程上每CHECK_INTERVAL_NANOS运行一次maybeRecalibrate()，直到close()。
+         */
+        public synchronized SpinCalibration startChecks() {
+            if (checker == null) {
+                checker = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "spin-calibration");
+                    t.setDaemon(true);
+                    return t;
+                });
+                checker.scheduleWithFixedDelay(this::maybeRecalibrate,
+                        CHECK_INTERVAL_NANOS, CHECK_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+            }
+            return this;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (checker != null) {
+                checker.shutdownNow();
+                checker = null;
+            }
+        }
+
+        /**
+         * Re-fits, if the CPU frequency changed, or the spin time drifted away from the
+         * prediction. consumeCPU is compiled by now, so the re-fit skips the JIT warmup.
+         * 如果CPU频率发生变化，或者自旋时间偏离了预测，就重新拟合。此时consumeCPU已经编译过了，
+         * 所以重新拟合会跳过JIT预热。
+         */
+        public synchronized void maybeRecalibrate() {
+            long freq = readCpuFreq();
+            if (freq > 0 && cpuFreq > 0 && Math.abs(freq - cpuFreq) > cpuFreq * FREQ_TOLERANCE) {
+                refit();
+                return;
+            }
+
+            Fit f = fit;
+            double predicted = f.overheadNanos + SMALL_TOKENS * f.nanosPerToken;
+            double actual = measure(SMALL_TOKENS);
+            if (Math.abs(actual - predicted) > predicted * DRIFT_TOLERANCE) {
+                refit();
+            }
+        }
+
+        /**
+         * Warms up consumeCPU, and fits the line through the median times of the small and
+         * the large spins.
+         * 预热consumeCPU，并用小自旋和大自旋的中位数时间拟合出直线。
+         */
+        public synchronized void calibrate() {
+            // Let the JIT compile consumeCPU first, otherwise we calibrate the interpreter.
+            long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+            while (System.nanoTime() - warmupEnd < 0) {
+                Blackhole.consumeCPU(SMALL_TOKENS);
+            }
+            refit();
+        }
+
+        private void refit() {
+            double small = measure(SMALL_TOKENS);
+            double large = measure(LARGE_TOKENS);
+
+            double slope = (large - small) / (LARGE_TOKENS - SMALL_TOKENS);
+            fit = new Fit(Math.max(slope, Double.MIN_VALUE), Math.max(0, small - SMALL_TOKENS * slope));
+            cpuFreq = readCpuFreq();
+            calibrations++;
+        }
+
+        private static double measure(long tokens) {
+            long[] times = new long[ROUNDS];
+            for (int r = 0; r < ROUNDS; r++) {
+                long start = System.nanoTime();
+                Blackhole.consumeCPU(tokens);
+                times[r] = System.nanoTime() - start;
+            }
+            Arrays.sort(times);
+            return times[ROUNDS / 2];
+        }
+
+        private static long readCpuFreq() {
+            try {
+                return Long.parseLong(new String(Files.readAllBytes(CPU_FREQ), StandardCharsets.US_ASCII).trim());
+            } catch (IOException | NumberFormatException | SecurityException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Computes the delay before the given retry attempt, counting from zero.
+     * 计算给定重试次数(从零开始计数)之前的延迟。
+     */
+    public interface BackoffPolicy {
+        long delayNanos(int attempt);
+
+        /*
+         * Saturates before shifting: minNanos << attempt overflows well before attempt 62,
+         * 50L << 58 is already negative. Every attempt, up to Integer.MAX_VALUE, gets a delay
+         * in [minNanos, maxNanos].
+         * 在移位之前先饱和：minNanos << attempt在attempt达到62之前很久就会溢出，50L << 58已经是负数。
+         * 每一次尝试(直到Integer.MAX_VALUE)得到的延迟都在[minNanos, maxNanos]之内。
+         */
+        static BackoffPolicy exponential(long minNanos, long maxNanos) {
+            return attempt -> (attempt >= Long.numberOfLeadingZeros(minNanos) - 1 || minNanos > (maxNanos >>> attempt))
+                    ? maxNanos : minNanos << attempt;
+        }
+
+        static BackoffPolicy jittered(long minNanos, long maxNanos) {
+            BackoffPolicy exp = exponential(minNanos, maxNanos);
+            return attempt -> ThreadLocalRandom.current().nextLong(exp.delayNanos(attempt) + 1);
+        }
+    }
+
+    /**
+     * Waits out the delays: short ones are spun, longer ones yield the CPU,
+     * and the longest ones park the thread.
+     * 等待延迟：短延迟通过自旋等待，较长的延迟让出CPU，最长的延迟则让线程挂起。
+     */
+    public static class Backoff {
+        private final BackoffPolicy policy;
+        private final SpinCalibration calibration;
+        private final long spinLimitNanos;
+        private final long yieldLimitNanos;
+
+        public Backoff(BackoffPolicy policy, SpinCalibration calibration, long spinLimitNanos, long yieldLimitNanos) {
+            this.policy = policy;
+            this.calibration = calibration;
+            this.spinLimitNanos = spinLimitNanos;
+            this.yieldLimitNanos = yieldLimitNanos;
+        }
+
+        public void idle(int attempt) {
+            long delay = policy.delayNanos(attempt);
+            if (delay <= spinLimitNanos) {
+                calibration.spin(delay);
+            } else if (delay <= yieldLimitNanos) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(delay);
+            }
+        }
+    }
+
+    /*
+     * ================================ CALIBRATION ACCURACY BENCHMARK ================================
+     */
+
+    @State(Scope.Thread)
+    @Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+    @Fork(3)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public static class Accuracy {
+
+        /*
+         * The score should match the target. Run with several forks: the calibration
+         * happens in every fork anew, and the fork-to-fork variance is part of the error.
+         * 分数应该与目标一致。使用多个fork运行：每个fork都会重新校准，fork之间的差异也是误差的一部分。
+         */
+
+        @Param({"50", "100", "1000", "10000", "100000"})
+        long targetNanos;
+
+        SpinCalibration calibration;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            calibration = new SpinCalibration().startChecks();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            calibration.close();
+        }
+
+        @Benchmark
+        public void spin() {
+            calibration.spin(targetNanos);
+        }
+
+        /*
+         * ============================== HOW TO RUN THIS TEST: ====================================
+         *
+         * You can run this test:
+         *
+         * a) Via the command line:
+         *    $ mvn clean install
+         *    $ java -jar target/benchmarks.jar JMHSample_43.*Accuracy
+         *
+         * b) Via the Java API:
+         *    (see the JMH homepage for possible caveats when running from IDE:
+         *      http://openjdk.java.net/projects/code-tools/jmh/)
+         */
+
+        public static void main(String[] args) throws RunnerException {
+            Options opt = new OptionsBuilder()
+                    .include(Accuracy.class.getCanonicalName())
+                    .verbosity(VerboseMode.SILENT)
+                    .build();
+
+            Collection<RunResult> results = new Runner(opt).run();
+
+            System.out.printf("%12s %12s %10s%n", "target, ns", "actual, ns", "error");
+            for (RunResult rr : results) {
+                double target = Double.parseDouble(rr.getParams().getParam("targetNanos"));
+                double actual = rr.getPrimaryResult().getScore();
+                System.out.printf("%12.0f %12.1f %9.1f%%%n", target, actual, (actual / target - 1) * 100);
+            }
+        }
+    }
+
+    /*
+     * ================================ CONTENDED CAS BENCHMARK ================================
+     */
+
+    @State(Scope.Benchmark)
+    @Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+    @Fork(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Contended {
+
+        /*
+         * All threads increment the same AtomicLong with a CAS loop. Without the backoff,
+         * the failed CASes keep the cache line bouncing between the cores. With the backoff,
+         * the losers step aside for a while, and let the winner get more work done.
+         * 所有线程都用CAS循环对同一个AtomicLong做自增。没有退避时，失败的CAS会让缓存行在核心之间不停地来回传递。
+         * 有了退避，失败者会暂时让开，让胜利者完成更多的工作。
+         */
+
+        @Param({"none", "onSpinWait", "spin", "exponential", "jittered"})
+        String backoff;
+
+        AtomicLong counter;
+        SpinCalibration calibration;
+        Backoff idler;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            counter = new AtomicLong();
+            calibration = new SpinCalibration().startChecks();
+            switch (backoff) {
+                case "none":
+                case "onSpinWait":
+                    idler = null;
+                    break;
+                case "spin":
+                    idler = new Backoff(attempt -> 100, calibration, 1_000, 10_000);
+                    break;
+                case "exponential":
+                    idler = new Backoff(BackoffPolicy.exponential(50, 100_000), calibration, 1_000, 10_000);
+                    break;
+                case "jittered":
+                    idler = new Backoff(BackoffPolicy.jittered(50, 100_000), calibration, 1_000, 10_000);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown backoff: " + backoff);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            calibration.close();
+        }
+
+        @Benchmark
+        public long increment() {
+            AtomicLong c = counter;
+            int attempt = 0;
+            while (true) {
+                long v = c.get();
+                if (c.compareAndSet(v, v + 1)) {
+                    return v;
+                }
+                if (idler != null) {
+                    idler.idle(attempt++);
+                } else if ("onSpinWait".equals(backoff)) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        /*
+         * ============================== HOW TO RUN THIS TEST: ====================================
+         *
+         * Note that with a single thread, all flavors are the same: CAS never fails. As the thread
+         * count grows, the flavors without backoff lose throughput, while the backoff flavors keep it.
+         * 注意在单线程时所有方式都是一样的：CAS从不失败。随着线程数的增长，
+         * 没有退避的方式会损失吞吐量，而带退避的方式则能保持吞吐量。
+         *
+         * You can run this test:
+         *
+         * a) Via the command line:
+         *    $ mvn clean install
+         *    $ java -jar target/benchmarks.jar JMHSample_43.*Contended -t 1
+         *    $ java -jar target/benchmarks.jar JMHSample_43.*Contended -t 8
+         *
+         * b) Via the Java API:
+         *    (see the JMH homepage for possible caveats when running from IDE:
+         *      http://openjdk.java.net/projects/code-tools/jmh/)
+         */
+
+        public static void main(String[] args) throws RunnerException {
+            int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+            String[] flavors = {"none", "onSpinWait", "spin", "exponential", "jittered"};
+
+            System.out.printf("%8s", "threads");
+            for (String flavor : flavors) {
+                System.out.printf("%14s", flavor);
+            }
+            System.out.println("   (ops/us)");
+
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                Options opt = new OptionsBuilder()
+                        .include(Contended.class.getCanonicalName())
+                        .threads(threads)
+                        .verbosity(VerboseMode.SILENT)
+                        .build();
+
+                Collection<RunResult> results = new Runner(opt).run();
+
+                System.out.printf("%8d", threads);
+                for (String flavor : flavors) {
+                    for (RunResult rr : results) {
+                        if (flavor.equals(rr.getParams().getParam("backoff"))) {
+                            System.out.printf("%14.2f", rr.getPrimaryResult().getScore());
+                        }
+                    }
+                }
+                System.out.println();
+            }
+        }
+    }
+
+}
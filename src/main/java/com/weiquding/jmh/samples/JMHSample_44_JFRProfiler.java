@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.ExternalProfiler;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JMHSample_44_JFRProfiler {
+
+    /*
+     * JMHSample_35_Profilers shows the profilers bundled with JMH. Each of them answers one
+     * question: where is the time spent, how much do we allocate, how many classes do we load.
+     * Java Flight Recorder answers most of these questions at once, at a low overhead, and it
+     * ships with the JDK (11+, and 8u262+).
+     * JMHSample_35_Profilers展示了JMH自带的profiler。它们每个都只回答一个问题：
+     * 时间花在了哪里，我们分配了多少内存，我们加载了多少个类。
+     * Java Flight Recorder以很低的开销一次性回答了其中的大部分问题，而且它随JDK一起提供(11+，以及8u262+)。
+     *
+     * JFRProfiler is an external profiler, and an internal profiler at the same time:
+     *  - the host side tells every fork where to put the recording, and parses the recording
+     *    after the fork is done;
+     *  - the fork side starts the recording at the first measurement iteration, marks every
+     *    iteration with a custom event, and dumps the recording after the last one.
+     * Only the events that fall within the measurement iterations make it into the results:
+     * the warmup, and the JMH housekeeping between iterations are left out.
+     * JFRProfiler既是外部profiler，同时也是内部profiler：
+     *  - 宿主一侧告诉每个fork把记录放在哪里，并在fork结束后解析记录；
+     *  - fork一侧在第一个度量迭代开始时启动记录，用自定义事件标记每个迭代，并在最后一个迭代之后导出记录。
+     * 只有落在度量迭代之内的事件才会进入结果：预热以及迭代之间JMH的内部工作都被排除在外。
+     *
+     * The results are reported as secondary results:
+     *  - jfr.alloc: sampled allocation per site (JDK 16+ allocation sampler);
+     *  - jfr.monitor: time blocked on contended monitors, per site;
+     *  - jfr.safepoint: safepoint count, time to safepoint (ttsp), and the pause from the
+     *    begin of the synchronization to the end of the safepoint (time);
+     *  - jfr.compile, jfr.deopt: JIT compilations and deoptimizations that happened during measurement.
+     * 结果以次要结果的形式报告：
+     *  - jfr.alloc：每个分配点采样到的分配量(JDK 16+的分配采样器)；
+     *  - jfr.monitor：每个位置在竞争监视器上阻塞的时间；
+     *  - jfr.safepoint：安全点的次数、到达安全点的时间(ttsp)，以及从开始同步到安全点结束的停顿(time)；
+     *  - jfr.compile，jfr.deopt：度量期间发生的JIT编译和反优化。
+     */
+
+    /*
+     * The workload: two threads that allocate, and contend on a single lock.
+     * 工作负载：两个线程分配内存，并竞争同一把锁。
+     */
+
+    final Object lock = new Object();
+
+    @Benchmark
+    public void contended(Blackhole bh) {
+        synchronized (lock) {
+            bh.consume(new long[64]);
+            Blackhole.consumeCPU(1000);
+        }
+    }
+
+    @Benchmark
+    public List<String> allocating() {
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            list.add(String.valueOf(i));
+        }
+        return list;
+    }
+
+    /**
+     * Marks one iteration in the recording.
+     * 在记录中标记一次迭代。
+     */
+    @Name("jmh.Iteration")
+    @Label("JMH Iteration")
+    @Category("JMH")
+    public static class IterationEvent extends Event {
+        @Label("Benchmark")
+        String benchmark;
+
+        @Label("Iteration")
+        int iteration;
+    }
+
+    public static class JFRProfiler implements ExternalProfiler, InternalProfiler {
+
+        static final String FILE_PROPERTY = "jmh.jfr.file";
+
+        static final int TOP = 3;
+
+        /*
+         * Host side: the recording of the current fork.
+         * 宿主一侧：当前fork的记录。
+         */
+        private File recordingFile;
+
+        /*
+         * Fork side: the recording, and the event of the current iteration.
+         * fork一侧：记录，以及当前迭代的事件。
+         */
+        private Recording recording;
+        private IterationEvent iterationEvent;
+        private int iteration;
+
+        @Override
+        public String getDescription() {
+            return "Java Flight Recorder, scoped to the measurement iterations";
+        }
+
+        /*
+         * ----------------------------- host side ------------------------------
+         */
+
+        @Override
+        public Collection<String> addJVMInvokeOptions(BenchmarkParams params) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Collection<String> addJVMOptions(BenchmarkParams params) {
+            try {
+                recordingFile = File.createTempFile("jmh-", ".jfr");
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create the recording file", e);
+            }
+            return Collections.singletonList("-D" + FILE_PROPERTY + "=" + recordingFile.getAbsolutePath());
+        }
+
+        @Override
+        public void beforeTrial(BenchmarkParams benchmarkParams) {
+            // do nothing
+        }
+
+        @Override
+        public Collection<? extends Result> afterTrial(BenchmarkResult br, long pid, File stdOut, File stdErr) {
+            if (recordingFile == null || recordingFile.length() == 0) {
+                return Collections.emptyList();
+            }
+            try {
+                return summarize(RecordingFile.readAllEvents(recordingFile.toPath()));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read the recording " + recordingFile, e);
+            } finally {
+                recordingFile.delete();
+            }
+        }
+
+        @Override
+        public boolean allowPrintOut() {
+            return true;
+        }
+
+        @Override
+        public boolean allowPrintErr() {
+            return false;
+        }
+
+        /*
+         * ----------------------------- fork side ------------------------------
+         */
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            if (iterationParams.getType() != IterationType.MEASUREMENT) {
+                return;
+            }
+            if (recording == null) {
+                recording = new Recording();
+                recording.setName("jmh");
+                recording.enable(IterationEvent.class);
+                recording.enable("jdk.ObjectAllocationSample").withStackTrace();
+                // the default 1 ms threshold hides the microsecond-long waits of contended()
+                recording.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ZERO).withStackTrace();
+                recording.enable("jdk.SafepointBegin").withThreshold(Duration.ZERO);
+                recording.enable("jdk.SafepointEnd").withThreshold(Duration.ZERO);
+                recording.enable("jdk.Compilation").withThreshold(Duration.ZERO);
+                recording.enable("jdk.Deoptimization").withStackTrace();
+                recording.start();
+            }
+            iteration++;
+            iterationEvent = new IterationEvent();
+            iterationEvent.benchmark = benchmarkParams.getBenchmark();
+            iterationEvent.iteration = iteration;
+            iterationEvent.begin();
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            if (iterationParams.getType() != IterationType.MEASUREMENT) {
+                return Collections.emptyList();
+            }
+            iterationEvent.commit();
+            if (iteration == iterationParams.getCount()) {
+                String file = System.getProperty(FILE_PROPERTY);
+                try {
+                    recording.stop();
+                    if (file != null) {
+                        recording.dump(new File(file).toPath());
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot dump the recording to " + file, e);
+                } finally {
+                    recording.close();
+                }
+            }
+            return Collections.emptyList();
+        }
+
+        /*
+         * ----------------------------- parsing ------------------------------
+         */
+
+        static List<Result> summarize(List<RecordedEvent> events) {
+            List<Instant[]> windows = new ArrayList<>();
+            for (RecordedEvent e : events) {
+                if (e.getEventType().getName().equals("jmh.Iteration")) {
+                    windows.add(new Instant[]{e.getStartTime(), e.getEndTime()});
+                }
+            }
+
+            Map<String, Double> allocBytes = new HashMap<>();
+            Map<String, Double> monitorMillis = new HashMap<>();
+            Map<String, Double> compileMillis = new HashMap<>();
+            Map<String, Double> deopts = new HashMap<>();
+            int safepoints = 0;
+            double timeToSafepointMillis = 0;
+            Map<Long, Instant> safepointBegins = new HashMap<>();
+            Map<Long, Instant> safepointEnds = new HashMap<>();
+            int compiles = 0;
+
+            for (RecordedEvent e : events) {
+                if (!withinIterations(e, windows)) {
+                    continue;
+                }
+                switch (e.getEventType().getName()) {
+                    case "jdk.ObjectAllocationSample":
+                        allocBytes.merge(site(e.getStackTrace()), (double) e.getLong("weight"), Double::sum);
+                        break;
+                    case "jdk.JavaMonitorEnter":
+                        monitorMillis.merge(site(e.getStackTrace()), millis(e.getDuration()), Double::sum);
+                        break;
+                    case "jdk.SafepointBegin":
+                        // the duration of the begin event is the synchronization, not the pause
+                        safepoints++;
+                        timeToSafepointMillis += millis(e.getDuration());
+                        safepointBegins.put(e.getLong("safepointId"), e.getStartTime());
+                        break;
+                    case "jdk.SafepointEnd":
+                        safepointEnds.put(e.getLong("safepointId"), e.getEndTime());
+                        break;
+                    case "jdk.Compilation":
+                        if (isRecorderMethod(e.getValue("method"))) {
+                            // the recorder compiling its own code
+                            break;
+                        }
+                        compiles++;
+                        compileMillis.merge(method(e.getValue("method")), millis(e.getDuration()), Double::sum);
+                        break;
+                    case "jdk.Deoptimization":
+                        deopts.merge(method(e.getValue("method")) + " (" + e.getString("reason") + ")", 1.0, Double::sum);
+                        break;
+                    default:
+                        // not interested
+                }
+            }
+
+            double safepointMillis = 0;
+            for (Map.Entry<Long, Instant> begin : safepointBegins.entrySet()) {
+                Instant end = safepointEnds.get(begin.getKey());
+                if (end != null) {
+                    safepointMillis += millis(Duration.between(begin.getValue(), end));
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            double totalAlloc = sum(allocBytes);
+            results.add(new ScalarResult("jfr.alloc", totalAlloc / 1024 / 1024, "MB", AggregationPolicy.AVG));
+            addTop(results, "jfr.alloc", allocBytes, 1.0 / 1024 / 1024, "MB");
+            results.add(new ScalarResult("jfr.monitor", sum(monitorMillis), "ms", AggregationPolicy.AVG));
+            addTop(results, "jfr.monitor", monitorMillis, 1, "ms");
+            results.add(new ScalarResult("jfr.safepoint.count", safepoints, "#", AggregationPolicy.AVG));
+            results.add(new ScalarResult("jfr.safepoint.ttsp", timeToSafepointMillis, "ms", AggregationPolicy.AVG));
+            results.add(new ScalarResult("jfr.safepoint.time", safepointMillis, "ms", AggregationPolicy.AVG));
+            results.add(new ScalarResult("jfr.compile.count", compiles, "#", AggregationPolicy.AVG));
+            addTop(results, "jfr.compile", compileMillis, 1, "ms");
+            results.add(new ScalarResult("jfr.deopt.count", sum(deopts), "#", AggregationPolicy.AVG));
+            addTop(results, "jfr.deopt", deopts, 1, "#");
+            return results;
+        }
+
+        private static boolean withinIterations(RecordedEvent e, List<Instant[]> windows) {
+            Instant t = e.getStartTime();
+            for (Instant[] w : windows) {
+                if (!t.isBefore(w[0]) && !t.isAfter(w[1])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static void addTop(List<Result> results, String prefix, Map<String, Double> values, double scale, String unit) {
+            List<Map.Entry<String, Double>> entries = new ArrayList<>(values.entrySet());
+            entries.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+            for (int i = 0; i < Math.min(TOP, entries.size()); i++) {
+                Map.Entry<String, Double> en = entries.get(i);
+                results.add(new ScalarResult(prefix + " #" + (i + 1) + " " + en.getKey(),
+                        en.getValue() * scale, unit, AggregationPolicy.AVG));
+            }
+        }
+
+        /**
+         * The first frame outside of the JDK and JMH: this is where the benchmark code asked for it.
+         * JDK和JMH之外的第一个栈帧：这正是基准测试代码发起请求的位置。
+         */
+        private static String site(RecordedStackTrace stack) {
+            if (stack == null || stack.getFrames().isEmpty()) {
+                return "<unknown>";
+            }
+            for (RecordedFrame frame : stack.getFrames()) {
+                String type = frame.getMethod().getType().getName();
+                if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")
+                        && !type.startsWith("org.openjdk.jmh.") && !type.contains("jmhTest")) {
+                    return frame(frame);
+                }
+            }
+            return frame(stack.getFrames().get(0));
+        }
+
+        private static String frame(RecordedFrame frame) {
+            return method(frame.getMethod()) + ":" + frame.getLineNumber();
+        }
+
+        private static String method(RecordedMethod method) {
+            if (method == null) {
+                return "<unknown>";
+            }
+            String type = method.getType().getName();
+            return type.substring(type.lastIndexOf('.') + 1) + "." + method.getName();
+        }
+
+        private static boolean isRecorderMethod(RecordedMethod method) {
+            return method != null && method.getType().getName().startsWith("jdk.jfr.");
+        }
+
+        private static double millis(Duration d) {
+            return d.toNanos() / 1e6;
+        }
+
+        private static double sum(Map<String, Double> values) {
+            double s = 0;
+            for (double v : values.values()) {
+                s += v;
+            }
+            return s;
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * Note the profiler is a nested class, and -prof needs its binary name. Also note the
+     * allocation sampler is throttled, the jfr.alloc numbers are estimates: use -prof gc
+     * for the precise allocation rate, and jfr.alloc to tell where it comes from.
+     * 注意profiler是一个嵌套类，-prof需要的是它的二进制名称。还要注意分配采样器是限流的，
+     * jfr.alloc的数值只是估计值：精确的分配速率请使用-prof gc，而jfr.alloc用来说明分配来自哪里。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_44 \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_44_JFRProfiler$JFRProfiler'
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_44_JFRProfiler.class.getSimpleName())
+                .addProfiler(JFRProfiler.class.getName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
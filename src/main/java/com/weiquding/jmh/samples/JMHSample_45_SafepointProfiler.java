@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.ExternalProfiler;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@State(Scope.Group)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JMHSample_45_SafepointProfiler {
+
+    /*
+     * JMHSample_11_Loops and JMHSample_34_SafeLooping run long loops in @Benchmark methods.
+     * A thread in such a loop may take a while to reach the safepoint, and all other threads
+     * have to wait for it: this is the time-to-safepoint (TTSP). Then the VM operation itself,
+     * for example the GC pause, runs with all Java threads stopped. None of this shows up in
+     * the ns/op of the looping thread, but it does show up in the tail latency of everything
+     * else running in the same JVM.
+     * JMHSample_11_Loops和JMHSample_34_SafeLooping在@Benchmark方法中运行长循环。
+     * 处在这种循环中的线程可能要过一段时间才能到达安全点，而其他所有线程都必须等待它：这就是到达安全点的时间(TTSP)。
+     * 然后VM操作本身，例如GC停顿，会在所有Java线程都停止的情况下运行。
+     * 这些都不会体现在循环线程的ns/op中，但会体现在同一JVM中运行的其他所有代码的尾延迟上。
+     *
+     * SafepointProfiler enables the unified safepoint and GC logging in the forked JVM, and
+     * attributes the log records to the iteration they were written in. Per measurement
+     * iteration, it reports:
+     *  - safepoint.ttsp: the time to reach the safepoint, total and max;
+     *  - safepoint.op: the time spent at the safepoint, running the VM operation;
+     *  - gc.pause: the GC pause time, which is a part of safepoint.op;
+     * in ms per iteration, and as a percentage of the iteration wall time.
+     * SafepointProfiler在fork出的JVM中启用统一的安全点和GC日志，并把日志记录归属到它们被写入时所在的迭代。
+     * 对每个度量迭代，它报告：
+     *  - safepoint.ttsp：到达安全点的时间，总和与最大值；
+     *  - safepoint.op：在安全点执行VM操作所花费的时间；
+     *  - gc.pause：GC停顿时间，它是safepoint.op的一部分；
+     * 单位是每次迭代的毫秒数，以及占迭代墙钟时间的百分比。
+     *
+     * The log records are attributed by position: before the iteration, the profiler remembers
+     * the end of the log file, and after the iteration, it parses everything written since.
+     * Unified logging is synchronous by default, so the records are in the file by then.
+     * 日志记录是按位置归属的：迭代开始前，profiler记住日志文件的末尾位置，迭代结束后，解析自那之后写入的所有内容。
+     * 统一日志默认是同步写入的，因此那时记录已经在文件中了。
+     */
+
+    public static class SafepointProfiler implements ExternalProfiler, InternalProfiler {
+
+        static final String FILE_PROPERTY = "jmh.safepoint.log";
+
+        /*
+         * JDK 11..17:
+         *   Safepoint "G1CollectForAllocation", Time since last: 1 ns, Reaching safepoint: 2 ns, [Cleanup: 3 ns,] At safepoint: 4 ns, Total: 5 ns
+         *   GC(3) Pause Young (Normal) (G1 Evacuation Pause) 24M->2M(256M) 1.234ms
+         */
+        static final Pattern SAFEPOINT = Pattern.compile("Safepoint \"[^\"]+\".*Reaching safepoint: (\\d+) ns.*At safepoint: (\\d+) ns");
+        static final Pattern GC_PAUSE = Pattern.compile("GC\\(\\d+\\) Pause .* (\\d+(?:\\.\\d+)?)ms");
+
+        /*
+         * Host side: the log of the current fork.
+         * 宿主一侧：当前fork的日志。
+         */
+        private File logFile;
+
+        /*
+         * Fork side: the log position and the time at the iteration start.
+         * fork一侧：迭代开始时的日志位置和时间。
+         */
+        private long position;
+        private long startNanos;
+
+        @Override
+        public String getDescription() {
+            return "Time-to-safepoint, safepoint and GC pause times per iteration";
+        }
+
+        /*
+         * ----------------------------- host side ------------------------------
+         */
+
+        @Override
+        public Collection<String> addJVMInvokeOptions(BenchmarkParams params) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Collection<String> addJVMOptions(BenchmarkParams params) {
+            try {
+                logFile = File.createTempFile("jmh-safepoint-", ".log");
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create the safepoint log file", e);
+            }
+            String path = logFile.getAbsolutePath();
+            return Arrays.asList(
+                    "-Xlog:safepoint=info,gc=info:file=" + path + ":uptime,tags",
+                    "-D" + FILE_PROPERTY + "=" + path);
+        }
+
+        @Override
+        public void beforeTrial(BenchmarkParams benchmarkParams) {
+            // do nothing
+        }
+
+        @Override
+        public Collection<? extends Result> afterTrial(BenchmarkResult br, long pid, File stdOut, File stdErr) {
+            if (logFile != null) {
+                logFile.delete();
+            }
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean allowPrintOut() {
+            return true;
+        }
+
+        @Override
+        public boolean allowPrintErr() {
+            return false;
+        }
+
+        /*
+         * ----------------------------- fork side ------------------------------
+         */
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            position = logLength();
+            startNanos = System.nanoTime();
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            long wallNanos = System.nanoTime() - startNanos;
+            if (iterationParams.getType() != IterationType.MEASUREMENT) {
+                return Collections.emptyList();
+            }
+
+            long ttsp = 0;
+            long ttspMax = 0;
+            long atSafepoint = 0;
+            int safepoints = 0;
+            double gcPauseMillis = 0;
+
+            for (String line : readLog(position)) {
+                Matcher m = SAFEPOINT.matcher(line);
+                if (m.find()) {
+                    long reaching = Long.parseLong(m.group(1));
+                    ttsp += reaching;
+                    ttspMax = Math.max(ttspMax, reaching);
+                    atSafepoint += Long.parseLong(m.group(2));
+                    safepoints++;
+                    continue;
+                }
+                m = GC_PAUSE.matcher(line);
+                if (m.find()) {
+                    gcPauseMillis += Double.parseDouble(m.group(1));
+                }
+            }
+
+            double wallMillis = wallNanos / 1e6;
+            double ttspMillis = ttsp / 1e6;
+            double opMillis = atSafepoint / 1e6;
+
+            List<Result> results = new ArrayList<>();
+            results.add(new ScalarResult("safepoint.count", safepoints, "#/iter", AggregationPolicy.AVG));
+            results.add(new ScalarResult("safepoint.ttsp", ttspMillis, "ms/iter", AggregationPolicy.AVG));
+            results.add(new ScalarResult("safepoint.ttsp.max", ttspMax / 1e6, "ms", AggregationPolicy.MAX));
+            results.add(new ScalarResult("safepoint.op", opMillis, "ms/iter", AggregationPolicy.AVG));
+            results.add(new ScalarResult("gc.pause", gcPauseMillis, "ms/iter", AggregationPolicy.AVG));
+            results.add(new ScalarResult("safepoint.ttsp.wall", ttspMillis * 100 / wallMillis, "%", AggregationPolicy.AVG));
+            results.add(new ScalarResult("safepoint.op.wall", opMillis * 100 / wallMillis, "%", AggregationPolicy.AVG));
+            results.add(new ScalarResult("gc.pause.wall", gcPauseMillis * 100 / wallMillis, "%", AggregationPolicy.AVG));
+            return results;
+        }
+
+        private static long logLength() {
+            String path = System.getProperty(FILE_PROPERTY);
+            return (path == null) ? 0 : new File(path).length();
+        }
+
+        private static List<String> readLog(long from) {
+            String path = System.getProperty(FILE_PROPERTY);
+            if (path == null) {
+                return Collections.emptyList();
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+                long to = raf.length();
+                if (to <= from) {
+                    return Collections.emptyList();
+                }
+                byte[] bytes = new byte[(int) (to - from)];
+                raf.seek(from);
+                raf.readFully(bytes);
+                return Arrays.asList(new String(bytes, StandardCharsets.UTF_8).split("\n"));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read the safepoint log " + path, e);
+            }
+        }
+    }
+
+    /*
+     * The workload is a thread running long counted loops, paired with a thread that
+     * allocates and therefore needs GC safepoints every now and then. Modern C2 puts
+     * safepoint polls into the counted loops, strip-mined to keep the overhead low. The
+     * "unpolled" group turns the polls off, so the GC has to wait for the whole loop.
+     * 工作负载是一个运行长计数循环的线程，搭配一个分配内存、因而时常需要GC安全点的线程。
+     * 现代的C2会在计数循环中放置安全点轮询，并通过循环条带挖掘(strip mining)保持较低的开销。
+     * "unpolled"组关闭了这些轮询，因此GC必须等待整个循环结束。
+     */
+
+    static final int SIZE = 4 * 1024 * 1024;
+
+    int[] xs;
+
+    @Setup
+    public void setup() {
+        xs = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            xs[i] = i;
+        }
+    }
+
+    int sum() {
+        int acc = 0;
+        for (int i = 0; i < xs.length; i++) {
+            acc += xs[i] * 31;
+        }
+        return acc;
+    }
+
+    @Benchmark
+    @Group("polled")
+    @Fork(1)
+    public int polled_loop() {
+        return sum();
+    }
+
+    @Benchmark
+    @Group("polled")
+    @Fork(1)
+    public byte[] polled_alloc() {
+        return new byte[1024];
+    }
+
+    @Benchmark
+    @Group("unpolled")
+    @Fork(value = 1, jvmArgsAppend = "-XX:-UseCountedLoopSafepoints")
+    public int unpolled_loop() {
+        return sum();
+    }
+
+    @Benchmark
+    @Group("unpolled")
+    @Fork(value = 1, jvmArgsAppend = "-XX:-UseCountedLoopSafepoints")
+    public byte[] unpolled_alloc() {
+        return new byte[1024];
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * Compare safepoint.ttsp.max of the two groups: without the polls, the time-to-safepoint
+     * approaches the duration of the entire loop, while the loop itself is slightly faster.
+     * 比较两个组的safepoint.ttsp.max：没有轮询时，到达安全点的时间接近整个循环的持续时间，
+     * 而循环本身则稍微快一些。
+     *
+     * The profiler works with any benchmark, for example:
+     * 这个profiler适用于任何基准测试，例如：
+     *    $ java -jar target/benchmarks.jar JMHSample_34 \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_45_SafepointProfiler$SafepointProfiler'
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_45 \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_45_SafepointProfiler$SafepointProfiler'
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_45_SafepointProfiler.class.getSimpleName())
+                .addProfiler(SafepointProfiler.class.getName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
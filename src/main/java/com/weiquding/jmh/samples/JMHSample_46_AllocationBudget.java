@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JMHSample_46_AllocationBudget {
+
+    /*
+     * JMHSample_35_Profilers shows -prof gc reporting gc.alloc.rate.norm, the bytes allocated
+     * per benchmark operation. That number is informational: nobody fails the build when an
+     * allocation-free path starts allocating, and that is how zero-garbage code slowly stops
+     * being zero-garbage.
+     * JMHSample_35_Profilers展示了-prof gc报告的gc.alloc.rate.norm，即每个基准测试操作分配的字节数。
+     * 这个数字只是参考信息：当一条无分配的路径开始分配内存时，没有人会让构建失败，
+     * 零垃圾的代码就是这样慢慢地不再是零垃圾的。
+     *
+     * @AllocationBudget declares the maximum bytes per op a benchmark may allocate, and
+     * BudgetProfiler enforces it: it measures the normalized allocation in every measurement
+     * iteration with the same thread allocation counters -prof gc uses, and fails the benchmark
+     * with its name and parameters when the budget is exceeded.
+     * @AllocationBudget声明了一个基准测试每个操作最多可以分配的字节数，而BudgetProfiler负责强制执行它：
+     * 它在每个度量迭代中使用与-prof gc相同的线程分配计数器来度量归一化后的分配量，
+     * 并在超出预算时让基准测试失败，同时给出它的名称和参数。
+     *
+     * Only the measurement iterations are checked: during warmup, the code may still run in
+     * the interpreter or C1, where escape analysis does not eliminate allocations yet.
+     * 只检查度量迭代：在预热期间，代码可能仍然运行在解释器或C1中，那里的逃逸分析还不能消除分配。
+     */
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.METHOD, ElementType.TYPE})
+    @Inherited
+    public @interface AllocationBudget {
+
+        /**
+         * Maximum bytes allocated per benchmark operation.
+         * 每个基准测试操作最多分配的字节数。
+         */
+        double bytesPerOp();
+
+        /**
+         * Tolerance for the allocations done by the harness itself, amortized over the operations.
+         * 对测试框架自身所做分配的容差，这些分配会被分摊到各个操作上。
+         */
+        double slack() default 0.1;
+    }
+
+    public static class BudgetProfiler implements InternalProfiler {
+
+        private final com.sun.management.ThreadMXBean threads;
+        private long allocatedBefore;
+
+        public BudgetProfiler() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+                throw new IllegalStateException("Thread allocation counters are not supported by this VM");
+            }
+            threads = (com.sun.management.ThreadMXBean) bean;
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                throw new IllegalStateException("Thread allocation counters are not supported by this VM");
+            }
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        @Override
+        public String getDescription() {
+            return "Fails the benchmarks exceeding their @AllocationBudget";
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            allocatedBefore = allocatedBytes();
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            long allocated = allocatedBytes() - allocatedBefore;
+            long ops = result.getMetadata().getAllOps();
+            if (ops == 0) {
+                return Collections.emptyList();
+            }
+            double perOp = (double) allocated / ops;
+
+            AllocationBudget budget = budgetOf(benchmarkParams);
+            if (budget != null && iterationParams.getType() == IterationType.MEASUREMENT
+                    && perOp > budget.bytesPerOp() + budget.slack()) {
+                throw new IllegalStateException(String.format(
+                        "Allocation budget exceeded: %s%s allocates %.2f bytes/op, the budget is %.2f bytes/op",
+                        benchmarkParams.getBenchmark(), describeParams(benchmarkParams), perOp, budget.bytesPerOp()));
+            }
+
+            List<Result> results = new ArrayList<>();
+            results.add(new ScalarResult("alloc.norm", perOp, "B/op", AggregationPolicy.AVG));
+            if (budget != null) {
+                results.add(new ScalarResult("alloc.budget", budget.bytesPerOp(), "B/op", AggregationPolicy.MAX));
+            }
+            return results;
+        }
+
+        private long allocatedBytes() {
+            long sum = 0;
+            for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                if (bytes > 0) {
+                    sum += bytes;
+                }
+            }
+            return sum;
+        }
+
+        /**
+         * The budget on the benchmark method wins over the budget on the benchmark class.
+         * Group benchmarks are named after the group, and can only take the class budget.
+         * 基准测试方法上的预算优先于基准测试类上的预算。组基准测试以组名命名，只能使用类上的预算。
+         */
+        static AllocationBudget budgetOf(BenchmarkParams params) {
+            String benchmark = params.getBenchmark();
+            int dot = benchmark.lastIndexOf('.');
+            Class<?> klass = benchmarkClass(benchmark.substring(0, dot));
+            String name = benchmark.substring(dot + 1);
+            for (Method m : klass.getMethods()) {
+                if (m.getName().equals(name) && m.isAnnotationPresent(AllocationBudget.class)) {
+                    return m.getAnnotation(AllocationBudget.class);
+                }
+            }
+            return klass.getAnnotation(AllocationBudget.class);
+        }
+
+        /**
+         * JMH names nested benchmark classes with dots, Outer.Inner, and Class.forName wants
+         * the binary name, Outer$Inner: turn the dots into '$' from the right until the class
+         * resolves. A class that does not resolve at all fails the run, rather than silently
+         * leaving the budget unchecked.
+         * JMH用点号命名嵌套的基准测试类，即Outer.Inner，而Class.forName需要二进制名称Outer$Inner：
+         * 从右向左把点号换成'$'，直到类能被解析。完全无法解析的类会让运行失败，而不是悄悄地不检查预算。
+         */
+        static Class<?> benchmarkClass(String className) {
+            String name = className;
+            while (true) {
+                try {
+                    return Class.forName(name);
+                } catch (ClassNotFoundException e) {
+                    int dot = name.lastIndexOf('.');
+                    if (dot < 0) {
+                        throw new IllegalStateException("Cannot resolve the benchmark class " + className
+                                + ", its allocation budget cannot be checked", e);
+                    }
+                    name = name.substring(0, dot) + '$' + name.substring(dot + 1);
+                }
+            }
+        }
+
+        static String describeParams(BenchmarkParams params) {
+            if (params.getParamsKeys().isEmpty()) {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String key : params.getParamsKeys()) {
+                sb.append(sb.length() == 0 ? " (" : ", ").append(key).append(" = ").append(params.getParam(key));
+            }
+            return sb.append(")").toString();
+        }
+    }
+
+    /*
+     * The benchmarks. Note the budget is about the code under test, and so it has to cover
+     * whatever the benchmark method itself allocates, too.
+     * 基准测试。注意预算针对的是被测代码，因此它也必须涵盖基准测试方法本身所分配的内存。
+     */
+
+    @Param({"10", "1000"})
+    int size;
+
+    long[] values;
+
+    @Setup
+    public void setup() {
+        values = new long[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = i;
+        }
+    }
+
+    static final class Point {
+        final long x;
+        final long y;
+
+        Point(long x, long y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        long dot(Point other) {
+            return x * other.x + y * other.y;
+        }
+    }
+
+    /*
+     * Allocation-free: primitives only.
+     * 无分配：只使用基本类型。
+     */
+    @Benchmark
+    @AllocationBudget(bytesPerOp = 0)
+    public long primitives() {
+        long sum = 0;
+        for (long v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    /*
+     * Allocation-free after JIT: the Points do not escape, and escape analysis scalarizes them.
+     * JIT之后无分配：Point对象没有逃逸，逃逸分析会将它们标量化。
+     */
+    @Benchmark
+    @AllocationBudget(bytesPerOp = 0)
+    public long scalarized() {
+        long sum = 0;
+        for (int i = 1; i < values.length; i++) {
+            sum += new Point(values[i - 1], values[i]).dot(new Point(i, i));
+        }
+        return sum;
+    }
+
+    /*
+     * Not allocation-free: boxing the values beyond the Long cache allocates, and the
+     * list escapes to the caller. This benchmark is expected to fail.
+     * 并非无分配：对Long缓存之外的值装箱会分配内存，并且列表逃逸到了调用者。这个基准测试预期会失败。
+     */
+    @Benchmark
+    @AllocationBudget(bytesPerOp = 0)
+    public List<Long> boxed() {
+        List<Long> list = new ArrayList<>(values.length);
+        for (long v : values) {
+            list.add(v * 1000);
+        }
+        return list;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * You are expected to see primitives and scalarized passing, and boxed failing with:
+     *   java.lang.IllegalStateException: Allocation budget exceeded:
+     *     com.weiquding.jmh.samples.JMHSample_46_AllocationBudget.boxed (size = 10) allocates ... bytes/op
+     * 你应该看到primitives和scalarized通过，而boxed失败，并给出上面的信息。
+     *
+     * Use -foe true to make the whole run fail on the first exceeded budget, e.g. in CI.
+     * 使用-foe true可以让整个运行在第一次超出预算时失败，例如在CI中。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_46 -foe true \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_46_AllocationBudget$BudgetProfiler'
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_46_AllocationBudget.class.getSimpleName())
+                .addProfiler(BudgetProfiler.class.getName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.ClassloaderProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JMHSample_47_ClassDefinition {
+
+    /*
+     * JMHSample_35_Profilers.Classy defines the same tiny class X over and over again, with a
+     * brand new XLoader per op. This is a fair model of plugin hosts and code generators, and
+     * it leaves a lot on the table:
+     *  - URLClassLoader is parallel-capable, but XLoader is not, and so it locks the loader
+     *    instance itself on every loadClass;
+     *  - every definition pays for a new loader, and the loader gets collected along with
+     *    its only class;
+     *  - the class is named, and so it goes through the loader's system dictionary bookkeeping.
+     * JMHSample_35_Profilers.Classy一次又一次地定义同一个很小的类X，每个操作都使用一个全新的XLoader。
+     * 这是插件宿主和代码生成器的一个相当真实的模型，而它还有很大的改进空间：
+     *  - URLClassLoader是支持并行的，但XLoader不是，因此每次loadClass都会锁住加载器实例本身；
+     *  - 每次定义都要付出创建新加载器的代价，而加载器会连同它唯一的类一起被回收；
+     *  - 类是有名字的，因此它要经过加载器在系统字典中的登记过程。
+     *
+     * ClassDefiner addresses all three:
+     *  - the bytecode is prepared once, and cached per class name;
+     *  - the loaders are parallel-capable, and define a batch of classes each, so that the
+     *    loader cost is amortized, and the classes unload in batches;
+     *  - with Lookup.defineHiddenClass (JDK 15+), there is no loader and no name to register
+     *    at all, and every hidden class can be unloaded on its own.
+     * ClassDefiner解决了这三个问题：
+     *  - 字节码只准备一次，并按类名缓存；
+     *  - 加载器是支持并行的，并且每个加载器定义一批类，这样加载器的开销就被分摊了，类也会成批地卸载；
+     *  - 使用Lookup.defineHiddenClass(JDK 15+)时，根本没有加载器，也没有需要登记的名字，
+     *    而且每个隐藏类都可以单独卸载。
+     */
+
+    /**
+     * Renames class X in the bytecode of JMHSample_35_Profilers.Classy.XLoader. This moves the class
+     * into our package, which Lookup.defineHiddenClass requires, and gives every batch slot its own name.
+     * 重命名JMHSample_35_Profilers.Classy.XLoader字节码中的类X。这会把类移到我们的包中，
+     * 这是Lookup.defineHiddenClass所要求的，同时也让批次中的每个位置都有自己的名字。
+     */
+    static byte[] rename(byte[] bytecode, String internalName) {
+        // CONSTANT_Utf8 "X": tag, u2 length, 'X'
+        byte[] pattern = {0x01, 0x00, 0x01, 'X'};
+        int at = -1;
+        for (int i = 0; i + pattern.length <= bytecode.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < pattern.length && match; j++) {
+                match = bytecode[i + j] == pattern[j];
+            }
+            if (match) {
+                if (at >= 0) {
+                    throw new IllegalArgumentException("Class name is ambiguous in the bytecode");
+                }
+                at = i;
+            }
+        }
+        if (at < 0) {
+            throw new IllegalArgumentException("Class name is not found in the bytecode");
+        }
+
+        byte[] name = internalName.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[bytecode.length - 1 + name.length];
+        System.arraycopy(bytecode, 0, result, 0, at + 1);
+        result[at + 1] = (byte) (name.length >>> 8);
+        result[at + 2] = (byte) name.length;
+        System.arraycopy(name, 0, result, at + 3, name.length);
+        System.arraycopy(bytecode, at + pattern.length, result, at + 3 + name.length, bytecode.length - at - pattern.length);
+        return result;
+    }
+
+    public static class ClassDefiner {
+
+        static final String PACKAGE = JMHSample_47_ClassDefinition.class.getPackage().getName();
+
+        private final byte[] template;
+        private final int batchSize;
+        private final String[] names;
+        private final Map<String, byte[]> cache = new ConcurrentHashMap<>();
+        private final AtomicReference<BatchLoader> current = new AtomicReference<>();
+        private final byte[] hiddenBytes;
+        private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        public ClassDefiner(byte[] template, int batchSize) {
+            this.template = template;
+            this.batchSize = batchSize;
+            this.names = new String[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                names[i] = PACKAGE + ".X" + i;
+            }
+            this.hiddenBytes = bytecodeFor(PACKAGE + ".X");
+            this.current.set(new BatchLoader(this));
+        }
+
+        byte[] bytecodeFor(String name) {
+            return cache.computeIfAbsent(name, n -> rename(template, n.replace('.', '/')));
+        }
+
+        /**
+         * Defines and initializes a new class in the current batch loader. When the batch
+         * is full, the loader is retired, and becomes unloadable along with its classes.
+         * 在当前的批量加载器中定义并初始化一个新类。当这一批满了时，加载器就会退役，并与它的类一起变得可以被卸载。
+         */
+        public Class<?> define() throws ClassNotFoundException {
+            while (true) {
+                BatchLoader loader = current.get();
+                int slot = loader.next.getAndIncrement();
+                if (slot < batchSize) {
+                    return Class.forName(names[slot], true, loader);
+                }
+                current.compareAndSet(loader, new BatchLoader(this));
+            }
+        }
+
+        /**
+         * Defines and initializes a new hidden class. It needs neither a loader nor a unique name.
+         * 定义并初始化一个新的隐藏类。它既不需要加载器，也不需要唯一的名字。
+         */
+        public Class<?> defineHidden() throws IllegalAccessException {
+            return lookup.defineHiddenClass(hiddenBytes, true).lookupClass();
+        }
+    }
+
+    /**
+     * Parallel-capable: loads of different classes do not serialize on the loader instance.
+     * 支持并行：不同类的加载不会在加载器实例上串行化。
+     */
+    static class BatchLoader extends ClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final ClassDefiner definer;
+
+        BatchLoader(ClassDefiner definer) {
+            super(BatchLoader.class.getClassLoader());
+            this.definer = definer;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = definer.bytecodeFor(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            // Our classes are not in the parent, skip the delegation for them.
+            if (name.startsWith(ClassDefiner.PACKAGE + ".X")) {
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> c = findLoadedClass(name);
+                    return (c != null) ? c : findClass(name);
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    /*
+     * The benchmarks: the XLoader baseline, a parallel-capable loader per class with the
+     * cached bytecode, the batched loaders, and the hidden classes.
+     * 基准测试：XLoader基线，每个类一个使用缓存字节码的并行加载器，批量加载器，以及隐藏类。
+     */
+
+    static final int BATCH = 64;
+
+    ClassDefiner singleDefiner;
+    ClassDefiner batchDefiner;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        singleDefiner = new ClassDefiner(JMHSample_35_Profilers.Classy.XLoader.X_BYTECODE, 1);
+        batchDefiner = new ClassDefiner(JMHSample_35_Profilers.Classy.XLoader.X_BYTECODE, BATCH);
+    }
+
+    @Benchmark
+    public Class<?> baseline() throws ClassNotFoundException {
+        return Class.forName("X", true, new JMHSample_35_Profilers.Classy.XLoader());
+    }
+
+    @Benchmark
+    public Class<?> cached() throws ClassNotFoundException {
+        return singleDefiner.define();
+    }
+
+    @Benchmark
+    public Class<?> batched() throws ClassNotFoundException {
+        return batchDefiner.define();
+    }
+
+    @Benchmark
+    public Class<?> hidden() throws IllegalAccessException {
+        return batchDefiner.defineHidden();
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method runs all the flavors single-threaded and with all the CPUs, under the
+     * ClassloaderProfiler, and prints the definition throughput along with the unload rate.
+     * The unload rate tells if the definitions are sustainable: if it falls behind the load
+     * rate, the classes pile up in Metaspace.
+     * main方法在单线程和使用全部CPU的情况下运行所有方式，同时启用ClassloaderProfiler，
+     * 并打印定义吞吐量以及卸载速率。卸载速率说明了这些定义是否可持续：如果它落后于加载速率，类就会在元空间中堆积。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_47 -prof cl -t 1
+     *    $ java -jar target/benchmarks.jar JMHSample_47 -prof cl -t max
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = (cpus > 1) ? new int[]{1, cpus} : new int[]{1};
+
+        System.out.printf("%-10s %8s %16s %16s %16s%n", "flavor", "threads", "classes/sec", "loaded/op", "unloaded/op");
+        for (int threads : threadCounts) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_47_ClassDefinition.class.getSimpleName())
+                    .addProfiler(ClassloaderProfiler.class)
+                    .threads(threads)
+                    .verbosity(VerboseMode.SILENT)
+                    .build();
+
+            Collection<RunResult> results = new Runner(opt).run();
+            for (RunResult rr : results) {
+                String label = rr.getPrimaryResult().getLabel();
+                double nsPerOp = rr.getPrimaryResult().getScore();
+                System.out.printf("%-10s %8d %16.0f %16.3f %16.3f%n", label, threads,
+                        threads * TimeUnit.SECONDS.toNanos(1) / nsPerOp,
+                        secondary(rr, "class.load.norm"), secondary(rr, "class.unload.norm"));
+            }
+        }
+    }
+
+    private static double secondary(RunResult rr, String suffix) {
+        for (Map.Entry<String, Result> e : rr.getSecondaryResults().entrySet()) {
+            if (e.getKey().endsWith(suffix)) {
+                return e.getValue().getScore();
+            }
+        }
+        return Double.NaN;
+    }
+
+}
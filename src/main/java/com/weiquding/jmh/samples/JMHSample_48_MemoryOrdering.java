@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JMHSample_48_MemoryOrdering {
+
+    /*
+     * JMHSample_35_Profilers.Atomic measures AtomicLong.incrementAndGet(), which is a locked
+     * read-modify-write with a full fence on x86. Many hot paths need far less than that:
+     *  - plain: no ordering at all, only for thread-confined data;
+     *  - opaque: the access itself is atomic and eventually visible, but not ordered
+     *    with respect to other variables. Good for progress flags and statistics;
+     *  - acquire/release: the classic publication pattern. The writer releases after filling
+     *    the data, and the reader acquires before reading it. lazySet is the release store
+     *    of the java.util.concurrent.atomic classes;
+     *  - volatile: sequentially consistent, the store needs a full fence.
+     * JMHSample_35_Profilers.Atomic度量的是AtomicLong.incrementAndGet()，在x86上它是一个带完整内存屏障的加锁读-改-写操作。
+     * 很多热点路径需要的远没有这么多：
+     *  - plain：没有任何顺序保证，只适用于线程封闭的数据；
+     *  - opaque：访问本身是原子的，并且最终可见，但与其他变量之间没有顺序保证。适合进度标志和统计数据；
+     *  - acquire/release：经典的发布模式。写者在填好数据之后release，读者在读取数据之前acquire。
+     *    lazySet就是java.util.concurrent.atomic中各个类的release存储；
+     *  - volatile：顺序一致，存储需要一个完整的内存屏障。
+     *
+     * On x86, all the loads cost the same, and so do all the stores but the volatile one:
+     * the differences come from what the compiler is allowed to reorder, and from the
+     * store fence. On weakly-ordered hardware, like AArch64, every step up is visible.
+     * 在x86上，所有的加载开销都一样，除了volatile之外的所有存储开销也都一样：
+     * 差异来自于编译器被允许做的重排序，以及存储屏障。在像AArch64这样的弱序硬件上，每提升一级都能看到差别。
+     *
+     * The read-modify-write section compares getAndAdd, which is a single LOCK XADD on x86,
+     * with the CAS loop that retries under contention, and the field updaters with the field
+     * VarHandles that replaced them.
+     * 读-改-写部分比较了getAndAdd(在x86上是一条LOCK XADD指令)与在竞争下会重试的CAS循环，
+     * 以及字段更新器与取代了它们的字段VarHandle。
+     */
+
+    static final VarHandle VALUE;
+    static final AtomicLongFieldUpdater<JMHSample_48_MemoryOrdering> UPDATER =
+            AtomicLongFieldUpdater.newUpdater(JMHSample_48_MemoryOrdering.class, "volatileValue");
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(JMHSample_48_MemoryOrdering.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    long value;
+    volatile long volatileValue;
+    final AtomicLong atomic = new AtomicLong();
+
+    /*
+     * The values to store come from the thread-local sequence, so that the stores
+     * are not the same value over and over again.
+     * 要存储的值来自线程本地的序列，这样存储的就不会总是同一个值。
+     */
+    @State(Scope.Thread)
+    public static class Sequence {
+        long next;
+    }
+
+    /*
+     * ----------------------------- loads ------------------------------
+     */
+
+    @Benchmark
+    public long get_plain() {
+        return (long) VALUE.get(this);
+    }
+
+    @Benchmark
+    public long get_opaque() {
+        return (long) VALUE.getOpaque(this);
+    }
+
+    @Benchmark
+    public long get_acquire() {
+        return (long) VALUE.getAcquire(this);
+    }
+
+    @Benchmark
+    public long get_volatile() {
+        return (long) VALUE.getVolatile(this);
+    }
+
+    /*
+     * ----------------------------- stores ------------------------------
+     */
+
+    @Benchmark
+    public void set_plain(Sequence s) {
+        VALUE.set(this, s.next++);
+    }
+
+    @Benchmark
+    public void set_opaque(Sequence s) {
+        VALUE.setOpaque(this, s.next++);
+    }
+
+    @Benchmark
+    public void set_release(Sequence s) {
+        VALUE.setRelease(this, s.next++);
+    }
+
+    @Benchmark
+    public void set_volatile(Sequence s) {
+        VALUE.setVolatile(this, s.next++);
+    }
+
+    @Benchmark
+    public void set_lazySet(Sequence s) {
+        atomic.lazySet(s.next++);
+    }
+
+    /*
+     * ----------------------------- read-modify-write ------------------------------
+     */
+
+    @Benchmark
+    public long rmw_atomicLong_incrementAndGet() {
+        return atomic.incrementAndGet();
+    }
+
+    @Benchmark
+    public long rmw_varHandle_getAndAdd() {
+        return (long) VALUE.getAndAdd(this, 1L);
+    }
+
+    @Benchmark
+    public long rmw_varHandle_getAndAddRelease() {
+        return (long) VALUE.getAndAddRelease(this, 1L);
+    }
+
+    @Benchmark
+    public long rmw_varHandle_casLoop() {
+        long v;
+        do {
+            v = (long) VALUE.getVolatile(this);
+        } while (!VALUE.compareAndSet(this, v, v + 1));
+        return v;
+    }
+
+    @Benchmark
+    public long rmw_varHandle_weakCasLoop() {
+        long v;
+        do {
+            v = (long) VALUE.getVolatile(this);
+        } while (!VALUE.weakCompareAndSetPlain(this, v, v + 1));
+        return v;
+    }
+
+    @Benchmark
+    public long rmw_updater_getAndAdd() {
+        return UPDATER.getAndAdd(this, 1L);
+    }
+
+    @Benchmark
+    public long rmw_updater_casLoop() {
+        long v;
+        do {
+            v = UPDATER.get(this);
+        } while (!UPDATER.compareAndSet(this, v, v + 1));
+        return v;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method runs the suite with one thread, where every access hits the core's own
+     * cache, and with all the CPUs hammering the same cache line, and prints both columns side
+     * by side. Expect the contended column to be dominated by the cache line transfers, and the
+     * CAS loops to fall behind getAndAdd as the failed CASes pile up.
+     * main方法先用单线程运行这套测试，此时每次访问都命中本核心的缓存；再用全部CPU冲击同一个缓存行，
+     * 并把两列结果并排打印出来。可以预期竞争那一列的结果由缓存行的传输所主导，
+     * 而随着失败的CAS越来越多，CAS循环会落后于getAndAdd。
+     *
+     * Note the loads are only meaningful single-threaded here: in the contended run, the other
+     * threads only load, and the cache line stays shared.
+     * 注意这里的加载只在单线程时有意义：在竞争的运行中，其他线程也只是加载，缓存行一直处于共享状态。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_48 -t 1
+     *    $ java -jar target/benchmarks.jar JMHSample_48 -t max
+     *    $ java -jar target/benchmarks.jar JMHSample_48.*set_ -prof perfasm -t 1 (Linux)
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        int contended = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        Map<String, double[]> scores = new TreeMap<>();
+        int[] threadCounts = {1, contended};
+        for (int t = 0; t < threadCounts.length; t++) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_48_MemoryOrdering.class.getSimpleName())
+                    .threads(threadCounts[t])
+                    .verbosity(VerboseMode.SILENT)
+                    .build();
+
+            Collection<RunResult> results = new Runner(opt).run();
+            for (RunResult rr : results) {
+                String label = rr.getPrimaryResult().getLabel();
+                scores.computeIfAbsent(label, k -> new double[threadCounts.length])[t] = rr.getPrimaryResult().getScore();
+            }
+        }
+
+        System.out.printf("%-32s %14s %14s%n", "ns/op", "1 thread", contended + " threads");
+        for (Map.Entry<String, double[]> e : scores.entrySet()) {
+            System.out.printf("%-32s %14.2f %14.2f%n", e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+    }
+
+}
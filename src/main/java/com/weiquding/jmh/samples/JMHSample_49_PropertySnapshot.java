@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JMHSample_49_PropertySnapshot {
+
+    /*
+     * JMHSample_33_SecurityManager shows System.getProperty is not free: it goes through the
+     * permission check when the SecurityManager is installed, and through the synchronized-
+     * then-concurrent Properties lookup even when it is not. A configuration layer that reads
+     * properties on the hot path pays this on every call, for values that almost never change.
+     * JMHSample_33_SecurityManager展示了System.getProperty并不是免费的：安装了SecurityManager时它要经过权限检查，
+     * 即使没有安装，也要经过Properties的查找。一个在热点路径上读取属性的配置层，
+     * 每次调用都要为这些几乎从不改变的值付出这个代价。
+     *
+     * PropertySnapshot keeps an immutable copy of the properties, and publishes it through
+     * a single volatile reference:
+     *  - the readers do one volatile load and one lookup in an immutable map, no locks,
+     *    no permission checks;
+     *  - the owner of the configuration calls refresh() when it is notified of a change.
+     *    The new snapshot is only published if something actually changed, so that the
+     *    readers do not lose the cache line with the reference for nothing.
+     * PropertySnapshot保存属性的一个不可变副本，并通过单个volatile引用发布它：
+     *  - 读者只需要一次volatile加载和一次不可变map中的查找，没有锁，也没有权限检查；
+     *  - 配置的所有者在收到变更通知时调用refresh()。只有在确实有变化时才会发布新的快照，
+     *    这样读者就不会白白失去保存该引用的缓存行。
+     */
+
+    public static class PropertySnapshot {
+
+        /**
+         * The map and its version, published together.
+         * map和它的版本号，一起发布。
+         */
+        static final class Snapshot {
+            final Map<String, String> values;
+            final long version;
+
+            Snapshot(Map<String, String> values, long version) {
+                this.values = values;
+                this.version = version;
+            }
+        }
+
+        private final Supplier<Map<String, String>> source;
+        private volatile Snapshot snapshot;
+
+        public PropertySnapshot(Supplier<Map<String, String>> source) {
+            this.source = source;
+            this.snapshot = new Snapshot(Map.copyOf(source.get()), 0);
+        }
+
+        public static PropertySnapshot ofSystemProperties() {
+            return new PropertySnapshot(() -> {
+                Properties props = System.getProperties();
+                Map<String, String> map = new HashMap<>();
+                for (String name : props.stringPropertyNames()) {
+                    map.put(name, props.getProperty(name));
+                }
+                return map;
+            });
+        }
+
+        public String get(String key) {
+            return snapshot.values.get(key);
+        }
+
+        public long version() {
+            return snapshot.version;
+        }
+
+        /**
+         * Re-reads the source, and publishes the new snapshot if anything changed.
+         * Concurrent refreshes are serialized, the readers are never blocked.
+         * 重新读取数据源，如果有任何变化就发布新的快照。并发的刷新是串行化的，读者永远不会被阻塞。
+         *
+         * @return true, if the new snapshot was published
+         */
+        public synchronized boolean refresh() {
+            Map<String, String> fresh = source.get();
+            Snapshot current = snapshot;
+            if (current.values.equals(fresh)) {
+                return false;
+            }
+            snapshot = new Snapshot(Map.copyOf(fresh), current.version + 1);
+            return true;
+        }
+    }
+
+    /*
+     * The lookups. The baselines are the same as in JMHSample_33_SecurityManager, and reuse its states.
+     * 查找。基线与JMHSample_33_SecurityManager中的相同，并复用了它的状态类。
+     */
+
+    @State(Scope.Benchmark)
+    public static class Snapshots {
+        PropertySnapshot properties;
+
+        @Setup
+        public void setup() {
+            properties = PropertySnapshot.ofSystemProperties();
+        }
+    }
+
+    @Benchmark
+    public String testWithSM(JMHSample_33_SecurityManager.SecurityManagerInstalled s) {
+        return System.getProperty("java.home");
+    }
+
+    @Benchmark
+    public String testWithoutSM(JMHSample_33_SecurityManager.SecurityManagerEmpty s) {
+        return System.getProperty("java.home");
+    }
+
+    @Benchmark
+    public String snapshotWithSM(JMHSample_33_SecurityManager.SecurityManagerInstalled s, Snapshots snapshots) {
+        return snapshots.properties.get("java.home");
+    }
+
+    @Benchmark
+    public String snapshotWithoutSM(JMHSample_33_SecurityManager.SecurityManagerEmpty s, Snapshots snapshots) {
+        return snapshots.properties.get("java.home");
+    }
+
+    /*
+     * The refreshes under concurrent readers: one thread changes a property and refreshes
+     * the snapshot, while the others keep reading. The writer score is the refresh latency,
+     * the reader score shows what the refreshes cost the readers.
+     * 在并发读者下的刷新：一个线程修改属性并刷新快照，而其他线程一直在读取。
+     * 写者的分数就是刷新延迟，读者的分数则说明了刷新给读者带来了多大的开销。
+     */
+
+    static final String KEY = "jmh.sample.config";
+
+    @State(Scope.Group)
+    public static class Refreshing {
+        PropertySnapshot properties;
+        long counter;
+
+        @Setup
+        public void setup() {
+            System.setProperty(KEY, "0");
+            properties = PropertySnapshot.ofSystemProperties();
+        }
+
+        @TearDown
+        public void tearDown() {
+            System.clearProperty(KEY);
+        }
+    }
+
+    @Benchmark
+    @Group("refresh")
+    @GroupThreads(3)
+    public String refresh_reader(Refreshing r) {
+        return r.properties.get(KEY);
+    }
+
+    @Benchmark
+    @Group("refresh")
+    @GroupThreads(1)
+    public boolean refresh_writer(Refreshing r) {
+        System.setProperty(KEY, Long.toString(++r.counter));
+        return r.properties.refresh();
+    }
+
+    @Benchmark
+    @Group("refreshUnchanged")
+    @GroupThreads(3)
+    public String refreshUnchanged_reader(Refreshing r) {
+        return r.properties.get(KEY);
+    }
+
+    @Benchmark
+    @Group("refreshUnchanged")
+    @GroupThreads(1)
+    public boolean refreshUnchanged_writer(Refreshing r) {
+        return r.properties.refresh();
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * Note the snapshot lookups cost the same with and without the SecurityManager: the
+     * permission check is paid once per refresh, not once per lookup. Also compare the
+     * readers in the two refresh groups: the unchanged refreshes never publish, and the
+     * readers keep their cache line.
+     * 注意快照查找在有无SecurityManager时的开销是一样的：权限检查在每次刷新时付出一次，而不是每次查找都付出。
+     * 还可以比较两个刷新组中的读者：没有变化的刷新从不发布，读者也就一直保有它们的缓存行。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_49 -f 1
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_49_PropertySnapshot.class.getSimpleName())
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.CompilerControl;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JMHSample_50_SinkStrategies {
+
+    /*
+     * JMHSample_34_SafeLooping sinks every work() result, either to the Blackhole, or to the
+     * non-inlineable sink(). Both are correct, and both cost something: Blackhole.consume
+     * does a few loads and compares per value, and the sink() call spills the registers
+     * around every call. Every sink also blocks a different set of loop optimizations:
+     * unrolling, vectorization, hoisting. The kernel score is always "kernel + sink".
+     * JMHSample_34_SafeLooping把每个work()的结果都沉入Blackhole，或者沉入不可内联的sink()。
+     * 两者都是正确的，而且都有开销：Blackhole.consume对每个值都要做几次加载和比较，
+     * 而sink()调用会在每次调用前后溢出寄存器。每种沉入方式还会阻止一组不同的循环优化：
+     * 展开、向量化、提升。核心代码的分数总是"核心代码 + 沉入"。
+     *
+     * This sample runs the same work() kernel through every sink strategy we know:
+     *  - blackhole: Blackhole.consume per value;
+     *  - dontInline: a DONT_INLINE static method;
+     *  - volatileStore: a store to a volatile field per value;
+     *  - arrayStore: a store to a result array, verified with a checksum after the iteration;
+     *  - compilerBlackhole: JDK 17 C2 "blackhole" compile command. The method is a real
+     *    intrinsic sink: the value is computed, then dropped, with no call and no memory effects;
+     * and the plain accumulate kernel as the sink-free reference. The main method fits the
+     * per-element cost of every strategy over the sizes, and prints how much each sink
+     * adds to it, so that it can be subtracted from the kernel measurements.
+     * 这个示例让同一个work()核心代码经过我们所知道的每一种沉入策略：
+     *  - blackhole：每个值调用一次Blackhole.consume；
+     *  - dontInline：一个DONT_INLINE的静态方法；
+     *  - volatileStore：每个值向volatile字段存储一次；
+     *  - arrayStore：存储到结果数组中，在迭代之后用校验和验证；
+     *  - compilerBlackhole：JDK 17 C2的"blackhole"编译命令。这个方法是一个真正的内建沉入点：
+     *    值会被计算出来，然后被丢弃，没有调用，也没有内存效果；
+     * 以及作为无沉入参照的普通累加核心代码。main方法根据各个大小拟合出每种策略的每元素开销，
+     * 并打印每种沉入方式在其上增加了多少，以便从核心代码的度量结果中减去。
+     */
+
+    static final int BASE = 42;
+
+    static int work(int x) {
+        return BASE + x;
+    }
+
+    @Param({"1", "10", "100", "1000"})
+    int size;
+
+    int[] xs;
+    int[] results;
+    volatile int volatileSink;
+
+    @Setup
+    public void setup() {
+        xs = new int[size];
+        results = new int[size];
+        for (int c = 0; c < size; c++) {
+            xs[c] = c;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void checksum(BenchmarkParams params) {
+        // Only arrayStore fills the results. Clear them after the check, so that every
+        // iteration has to store them again.
+        if (!params.getBenchmark().endsWith(".arrayStore")) {
+            return;
+        }
+        long sum = 0;
+        for (int r : results) {
+            sum += r;
+        }
+        long expected = (long) BASE * size + (long) size * (size - 1) / 2;
+        if (sum != expected) {
+            throw new IllegalStateException("Checksum mismatch: " + sum + ", expected " + expected);
+        }
+        Arrays.fill(results, 0);
+    }
+
+    @Benchmark
+    public int accumulate() {
+        int acc = 0;
+        for (int x : xs) {
+            acc += work(x);
+        }
+        return acc;
+    }
+
+    @Benchmark
+    public void blackhole(Blackhole bh) {
+        for (int x : xs) {
+            bh.consume(work(x));
+        }
+    }
+
+    @Benchmark
+    public void dontInline() {
+        for (int x : xs) {
+            sink(work(x));
+        }
+    }
+
+    @Benchmark
+    public void volatileStore() {
+        for (int x : xs) {
+            volatileSink = work(x);
+        }
+    }
+
+    @Benchmark
+    public void arrayStore() {
+        int[] xs = this.xs;
+        int[] rs = this.results;
+        for (int i = 0; i < xs.length; i++) {
+            rs[i] = work(xs[i]);
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 3, jvmArgsAppend = {
+            "-XX:+UnlockExperimentalVMOptions",
+            "-XX:CompileCommand=quiet",
+            "-XX:CompileCommand=blackhole,com.weiquding.jmh.samples.JMHSample_50_SinkStrategies::compilerSink"})
+    public void compilerBlackhole() {
+        for (int x : xs) {
+            compilerSink(work(x));
+        }
+    }
+
+    @CompilerControl(CompilerControl.Mode.DONT_INLINE)
+    public static void sink(int v) {
+        // The method intentionally does nothing.
+    }
+
+    public static void compilerSink(int v) {
+        // The method intentionally does nothing. With the blackhole compile command, C2 keeps
+        // the argument alive instead, and drops the call. Without the command, this method
+        // inlines, and the loop is dead code: the scores would not depend on $size anymore.
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The per-element cost is the slope of the least-squares line through the scores over
+     * $size, so that the fixed per-invocation costs do not count. The overhead column is the
+     * slope minus the slope of accumulate. Note accumulate is not the "true" kernel cost either:
+     * it is a reduction, and the compiler treats reductions differently. Also note arrayStore
+     * may get vectorized, and come out cheaper than the reference.
+     * 每元素开销是分数关于$size的最小二乘直线的斜率，这样每次调用的固定开销就不计算在内了。
+     * overhead一列是斜率减去accumulate的斜率。注意accumulate也不是"真正"的核心代码开销：
+     * 它是一个归约，而编译器对归约的处理方式有所不同。还要注意arrayStore可能会被向量化，从而比参照还要便宜。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_50
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_50_SinkStrategies.class.getSimpleName())
+                .verbosity(VerboseMode.SILENT)
+                .build();
+
+        Collection<RunResult> results = new Runner(opt).run();
+
+        // strategy -> size -> score
+        Map<String, TreeMap<Integer, Double>> scores = new TreeMap<>();
+        for (RunResult rr : results) {
+            String label = rr.getPrimaryResult().getLabel();
+            int size = Integer.parseInt(rr.getParams().getParam("size"));
+            scores.computeIfAbsent(label, k -> new TreeMap<>()).put(size, rr.getPrimaryResult().getScore());
+        }
+
+        double reference = slope(scores.get("accumulate"));
+
+        System.out.printf("%-20s", "ns/op");
+        for (int size : scores.get("accumulate").keySet()) {
+            System.out.printf("%12s", "size=" + size);
+        }
+        System.out.printf("%14s %14s%n", "ns/element", "overhead");
+        for (Map.Entry<String, TreeMap<Integer, Double>> e : scores.entrySet()) {
+            System.out.printf("%-20s", e.getKey());
+            for (double score : e.getValue().values()) {
+                System.out.printf("%12.2f", score);
+            }
+            double slope = slope(e.getValue());
+            System.out.printf("%14.3f %14.3f%n", slope, slope - reference);
+        }
+    }
+
+    private static double slope(Map<Integer, Double> points) {
+        double n = points.size();
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (Map.Entry<Integer, Double> p : points.entrySet()) {
+            double x = p.getKey();
+            double y = p.getValue();
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+        }
+        return (n * sxy - sx * sy) / (n * sxx - sx * sx);
+    }
+
+}
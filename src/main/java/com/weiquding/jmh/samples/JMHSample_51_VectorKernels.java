@@ -0,0 +1,659 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.lang.module.ModuleFinder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx2g"})
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JMHSample_51_VectorKernels {
+
+    /*
+     * JMHSample_34_SafeLooping sums work(x) over int[] xs. Whether C2 turns such a loop into
+     * SIMD code depends on its shape: a map over arrays is vectorized by SuperWord, an int sum
+     * is vectorized as a reduction, but a float sum is not (the vector order of additions would
+     * change the result), and neither are the loops with data-dependent control flow (filter)
+     * or with a loop-carried dependency (prefix sum).
+     * JMHSample_34_SafeLooping对int[] xs求work(x)的和。C2是否会把这样的循环变成SIMD代码取决于循环的形态：
+     * 数组上的map会被SuperWord向量化，int求和会作为归约被向量化，但float求和不会(向量化的加法顺序会改变结果)，
+     * 带有数据相关控制流的循环(filter)或者带有循环携带依赖的循环(前缀和)也都不会。
+     *
+     * The Vector API (jdk.incubator.vector, JDK 16+) lets us write the SIMD code explicitly.
+     * This sample has map, reduce, filter and prefix-sum kernels over int[], long[] and float[],
+     * in a scalar and in a vector flavor. The vector flavor is only loaded when the module is
+     * present at runtime, otherwise Kernels.create() falls back to the scalar one.
+     * Vector API(jdk.incubator.vector，JDK 16+)让我们可以显式地编写SIMD代码。
+     * 这个示例包含int[]、long[]和float[]上的map、reduce、filter和前缀和核心代码，分为标量和向量两种实现。
+     * 只有在运行时存在该模块时才会加载向量实现，否则Kernels.create()会回退到标量实现。
+     *
+     * Note that on JDK 17, there is no VectorMask-driven compress yet (it comes in JDK 19), and
+     * the vector filter writes out the matching lanes one by one. Also note the vector float
+     * reduction and prefix sum add in a different order, and may differ from the scalar results
+     * in the last bits.
+     * 注意在JDK 17上还没有基于VectorMask的compress操作(它在JDK 19中才出现)，向量filter只能逐个写出匹配的通道。
+     * 还要注意向量的float归约和前缀和的加法顺序不同，结果的最后几位可能与标量结果不同。
+     */
+
+    public interface Kernels {
+        void map(int[] src, int[] dst, int a, int b);
+
+        void map(long[] src, long[] dst, long a, long b);
+
+        void map(float[] src, float[] dst, float a, float b);
+
+        int reduce(int[] src);
+
+        long reduce(long[] src);
+
+        float reduce(float[] src);
+
+        int filter(int[] src, int[] dst, int threshold);
+
+        int filter(long[] src, long[] dst, long threshold);
+
+        int filter(float[] src, float[] dst, float threshold);
+
+        void prefixSum(int[] src, int[] dst);
+
+        void prefixSum(long[] src, long[] dst);
+
+        void prefixSum(float[] src, float[] dst);
+
+        /*
+         * No silent fallback: scalar code reported as impl=vector would be a lie.
+         * 不做悄悄的回退：把标量代码当作impl=vector来报告就是在撒谎。
+         */
+        static Kernels create(boolean vector) {
+            if (!vector) {
+                return new ScalarKernels();
+            }
+            if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+                throw new IllegalStateException("The Vector API is not available: run with --add-modules jdk.incubator.vector"
+                        + " on JDK 16+, this is " + System.getProperty("java.version"));
+            }
+            return new VectorKernels();
+        }
+    }
+
+    /**
+     * @return true if this JDK ships the Vector API module; the forks add it with --add-modules
+     */
+    static boolean jdkHasVectorApi() {
+        return ModuleFinder.ofSystem().find("jdk.incubator.vector").isPresent();
+    }
+
+    public static class ScalarKernels implements Kernels {
+
+        @Override
+        public void map(int[] src, int[] dst, int a, int b) {
+            for (int i = 0; i < src.length; i++) {
+                dst[i] = src[i] * a + b;
+            }
+        }
+
+        @Override
+        public void map(long[] src, long[] dst, long a, long b) {
+            for (int i = 0; i < src.length; i++) {
+                dst[i] = src[i] * a + b;
+            }
+        }
+
+        @Override
+        public void map(float[] src, float[] dst, float a, float b) {
+            for (int i = 0; i < src.length; i++) {
+                dst[i] = src[i] * a + b;
+            }
+        }
+
+        @Override
+        public int reduce(int[] src) {
+            int sum = 0;
+            for (int v : src) {
+                sum += v;
+            }
+            return sum;
+        }
+
+        @Override
+        public long reduce(long[] src) {
+            long sum = 0;
+            for (long v : src) {
+                sum += v;
+            }
+            return sum;
+        }
+
+        @Override
+        public float reduce(float[] src) {
+            float sum = 0;
+            for (float v : src) {
+                sum += v;
+            }
+            return sum;
+        }
+
+        @Override
+        public int filter(int[] src, int[] dst, int threshold) {
+            int n = 0;
+            for (int v : src) {
+                if (v > threshold) {
+                    dst[n++] = v;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int filter(long[] src, long[] dst, long threshold) {
+            int n = 0;
+            for (long v : src) {
+                if (v > threshold) {
+                    dst[n++] = v;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int filter(float[] src, float[] dst, float threshold) {
+            int n = 0;
+            for (float v : src) {
+                if (v > threshold) {
+                    dst[n++] = v;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void prefixSum(int[] src, int[] dst) {
+            int sum = 0;
+            for (int i = 0; i < src.length; i++) {
+                sum += src[i];
+                dst[i] = sum;
+            }
+        }
+
+        @Override
+        public void prefixSum(long[] src, long[] dst) {
+            long sum = 0;
+            for (int i = 0; i < src.length; i++) {
+                sum += src[i];
+                dst[i] = sum;
+            }
+        }
+
+        @Override
+        public void prefixSum(float[] src, float[] dst) {
+            float sum = 0;
+            for (int i = 0; i < src.length; i++) {
+                sum += src[i];
+                dst[i] = sum;
+            }
+        }
+    }
+
+    /**
+     * The vector kernels process SPECIES_PREFERRED lanes at a time, and finish the tails
+     * with the scalar code.
+     * 向量核心代码每次处理SPECIES_PREFERRED个通道，剩余的尾部用标量代码完成。
+     */
+    public static class VectorKernels implements Kernels {
+
+        static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+        static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+        static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+        @Override
+        public void map(int[] src, int[] dst, int a, int b) {
+            int i = 0;
+            for (int bound = INTS.loopBound(src.length); i < bound; i += INTS.length()) {
+                IntVector.fromArray(INTS, src, i).mul(a).add(b).intoArray(dst, i);
+            }
+            for (; i < src.length; i++) {
+                dst[i] = src[i] * a + b;
+            }
+        }
+
+        @Override
+        public void map(long[] src, long[] dst, long a, long b) {
+            int i = 0;
+            for (int bound = LONGS.loopBound(src.length); i < bound; i += LONGS.length()) {
+                LongVector.fromArray(LONGS, src, i).mul(a).add(b).intoArray(dst, i);
+            }
+            for (; i < src.length; i++) {
+                dst[i] = src[i] * a + b;
+            }
+        }
+
+        @Override
+        public void map(float[] src, float[] dst, float a, float b) {
+            int i = 0;
+            for (int bound = FLOATS.loopBound(src.length); i < bound; i += FLOATS.length()) {
+                FloatVector.fromArray(FLOATS, src, i).mul(a).add(b).intoArray(dst, i);
+            }
+            for (; i < src.length; i++) {
+                dst[i] = src[i] * a + b;
+            }
+        }
+
+        @Override
+        public int reduce(int[] src) {
+            IntVector acc = IntVector.zero(INTS);
+            int i = 0;
+            for (int bound = INTS.loopBound(src.length); i < bound; i += INTS.length()) {
+                acc = acc.add(IntVector.fromArray(INTS, src, i));
+            }
+            int sum = acc.reduceLanes(VectorOperators.ADD);
+            for (; i < src.length; i++) {
+                sum += src[i];
+            }
+            return sum;
+        }
+
+        @Override
+        public long reduce(long[] src) {
+            LongVector acc = LongVector.zero(LONGS);
+            int i = 0;
+            for (int bound = LONGS.loopBound(src.length); i < bound; i += LONGS.length()) {
+                acc = acc.add(LongVector.fromArray(LONGS, src, i));
+            }
+            long sum = acc.reduceLanes(VectorOperators.ADD);
+            for (; i < src.length; i++) {
+                sum += src[i];
+            }
+            return sum;
+        }
+
+        @Override
+        public float reduce(float[] src) {
+            FloatVector acc = FloatVector.zero(FLOATS);
+            int i = 0;
+            for (int bound = FLOATS.loopBound(src.length); i < bound; i += FLOATS.length()) {
+                acc = acc.add(FloatVector.fromArray(FLOATS, src, i));
+            }
+            float sum = acc.reduceLanes(VectorOperators.ADD);
+            for (; i < src.length; i++) {
+                sum += src[i];
+            }
+            return sum;
+        }
+
+        @Override
+        public int filter(int[] src, int[] dst, int threshold) {
+            int n = 0;
+            int i = 0;
+            for (int bound = INTS.loopBound(src.length); i < bound; i += INTS.length()) {
+                long bits = IntVector.fromArray(INTS, src, i).compare(VectorOperators.GT, threshold).toLong();
+                while (bits != 0) {
+                    dst[n++] = src[i + Long.numberOfTrailingZeros(bits)];
+                    bits &= bits - 1;
+                }
+            }
+            for (; i < src.length; i++) {
+                if (src[i] > threshold) {
+                    dst[n++] = src[i];
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int filter(long[] src, long[] dst, long threshold) {
+            int n = 0;
+            int i = 0;
+            for (int bound = LONGS.loopBound(src.length); i < bound; i += LONGS.length()) {
+                long bits = LongVector.fromArray(LONGS, src, i).compare(VectorOperators.GT, threshold).toLong();
+                while (bits != 0) {
+                    dst[n++] = src[i + Long.numberOfTrailingZeros(bits)];
+                    bits &= bits - 1;
+                }
+            }
+            for (; i < src.length; i++) {
+                if (src[i] > threshold) {
+                    dst[n++] = src[i];
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int filter(float[] src, float[] dst, float threshold) {
+            int n = 0;
+            int i = 0;
+            for (int bound = FLOATS.loopBound(src.length); i < bound; i += FLOATS.length()) {
+                long bits = FloatVector.fromArray(FLOATS, src, i).compare(VectorOperators.GT, threshold).toLong();
+                while (bits != 0) {
+                    dst[n++] = src[i + Long.numberOfTrailingZeros(bits)];
+                    bits &= bits - 1;
+                }
+            }
+            for (; i < src.length; i++) {
+                if (src[i] > threshold) {
+                    dst[n++] = src[i];
+                }
+            }
+            return n;
+        }
+
+        /*
+         * The prefix sum within a vector takes log2(lanes) shift-and-add steps; the running
+         * total of the previous vectors is then added to every lane.
+         * 向量内部的前缀和需要log2(通道数)步移位加法；然后把之前各个向量的累计总和加到每个通道上。
+         */
+
+        @Override
+        public void prefixSum(int[] src, int[] dst) {
+            int carry = 0;
+            int i = 0;
+            for (int bound = INTS.loopBound(src.length); i < bound; i += INTS.length()) {
+                IntVector v = IntVector.fromArray(INTS, src, i);
+                for (int shift = 1; shift < INTS.length(); shift <<= 1) {
+                    v = v.add(v.unslice(shift));
+                }
+                v = v.add(carry);
+                v.intoArray(dst, i);
+                carry = v.lane(INTS.length() - 1);
+            }
+            for (; i < src.length; i++) {
+                carry += src[i];
+                dst[i] = carry;
+            }
+        }
+
+        @Override
+        public void prefixSum(long[] src, long[] dst) {
+            long carry = 0;
+            int i = 0;
+            for (int bound = LONGS.loopBound(src.length); i < bound; i += LONGS.length()) {
+                LongVector v = LongVector.fromArray(LONGS, src, i);
+                for (int shift = 1; shift < LONGS.length(); shift <<= 1) {
+                    v = v.add(v.unslice(shift));
+                }
+                v = v.add(carry);
+                v.intoArray(dst, i);
+                carry = v.lane(LONGS.length() - 1);
+            }
+            for (; i < src.length; i++) {
+                carry += src[i];
+                dst[i] = carry;
+            }
+        }
+
+        @Override
+        public void prefixSum(float[] src, float[] dst) {
+            float carry = 0;
+            int i = 0;
+            for (int bound = FLOATS.loopBound(src.length); i < bound; i += FLOATS.length()) {
+                FloatVector v = FloatVector.fromArray(FLOATS, src, i);
+                for (int shift = 1; shift < FLOATS.length(); shift <<= 1) {
+                    v = v.add(v.unslice(shift));
+                }
+                v = v.add(carry);
+                v.intoArray(dst, i);
+                carry = v.lane(FLOATS.length() - 1);
+            }
+            for (; i < src.length; i++) {
+                carry += src[i];
+                dst[i] = carry;
+            }
+        }
+    }
+
+    /*
+     * The benchmarks. The 1M arrays still fit into the last level cache on most machines
+     * (for ints), the 64M arrays do not, and are bound by the memory bandwidth: expect the
+     * vector advantage to shrink there.
+     * 基准测试。在大多数机器上，1M大小的数组(对int而言)仍然能放进最后一级缓存，而64M大小的数组放不下，
+     * 会受限于内存带宽：可以预期向量化的优势在那里会缩小。
+     */
+
+    @Param({"1024", "1048576", "67108864"})
+    int size;
+
+    @Param({"int", "long", "float"})
+    String type;
+
+    @Param({"scalar", "vector"})
+    String impl;
+
+    Kernels kernels;
+
+    int[] ints;
+    int[] intsOut;
+    long[] longs;
+    long[] longsOut;
+    float[] floats;
+    float[] floatsOut;
+
+    @Setup
+    public void setup() {
+        kernels = Kernels.create(impl.equals("vector"));
+        Random r = new Random(42);
+        switch (type) {
+            case "int":
+                ints = new int[size];
+                intsOut = new int[size];
+                for (int i = 0; i < size; i++) {
+                    ints[i] = r.nextInt(1000);
+                }
+                break;
+            case "long":
+                longs = new long[size];
+                longsOut = new long[size];
+                for (int i = 0; i < size; i++) {
+                    longs[i] = r.nextInt(1000);
+                }
+                break;
+            case "float":
+                floats = new float[size];
+                floatsOut = new float[size];
+                for (int i = 0; i < size; i++) {
+                    floats[i] = r.nextInt(1000);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown type: " + type);
+        }
+    }
+
+    @Benchmark
+    public void map() {
+        switch (type) {
+            case "int":
+                kernels.map(ints, intsOut, 31, 7);
+                break;
+            case "long":
+                kernels.map(longs, longsOut, 31, 7);
+                break;
+            default:
+                kernels.map(floats, floatsOut, 31f, 7f);
+        }
+    }
+
+    @Benchmark
+    public void reduce(Blackhole bh) {
+        switch (type) {
+            case "int":
+                bh.consume(kernels.reduce(ints));
+                break;
+            case "long":
+                bh.consume(kernels.reduce(longs));
+                break;
+            default:
+                bh.consume(kernels.reduce(floats));
+        }
+    }
+
+    @Benchmark
+    public int filter() {
+        switch (type) {
+            case "int":
+                return kernels.filter(ints, intsOut, 500);
+            case "long":
+                return kernels.filter(longs, longsOut, 500);
+            default:
+                return kernels.filter(floats, floatsOut, 500f);
+        }
+    }
+
+    @Benchmark
+    public void prefixSum() {
+        switch (type) {
+            case "int":
+                kernels.prefixSum(ints, intsOut);
+                break;
+            case "long":
+                kernels.prefixSum(longs, longsOut);
+                break;
+            default:
+                kernels.prefixSum(floats, floatsOut);
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method answers the other question: which of the scalar loops does C2
+     * auto-vectorize? It runs the scalar kernels on cache-resident arrays twice, with the
+     * SuperWord optimization on and off, alongside the vector kernels. If switching SuperWord
+     * off makes the scalar loop noticeably slower, the loop was auto-vectorized; otherwise,
+     * the explicit vectors are the only way to get SIMD code for it.
+     * main方法回答另一个问题：C2会自动向量化哪些标量循环？它在能放进缓存的数组上把标量核心代码运行两次，
+     * 分别开启和关闭SuperWord优化，同时也运行向量核心代码。如果关闭SuperWord让标量循环明显变慢，
+     * 说明这个循环被自动向量化了；否则，显式的向量就是为它得到SIMD代码的唯一途径。
+     *
+     * The compiler needs "--add-modules jdk.incubator.vector", see pom.xml; the forked JVMs
+     * get the same flag from the @Fork annotation.
+     * 编译器需要"--add-modules jdk.incubator.vector"，见pom.xml；fork出的JVM从@Fork注解中获得同样的参数。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_51 -p type=int
+     *    $ java -cp target/benchmarks.jar com.weiquding.jmh.samples.JMHSample_51_VectorKernels
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    static final int CACHE_RESIDENT = 4096;
+    static final double AUTO_VECTORIZED = 1.5;
+
+    public static void main(String[] args) throws RunnerException {
+        Map<String, Double> superWord = run("scalar");
+        Map<String, Double> noSuperWord = run("scalar", "-XX:-UseSuperWord");
+        Map<String, Double> vector = new TreeMap<>();
+        if (jdkHasVectorApi()) {
+            vector = run("vector");
+        } else {
+            System.out.println("No Vector API on JDK " + System.getProperty("java.version") + ", skipping impl=vector.");
+        }
+
+        System.out.printf("%-18s %12s %14s %12s %16s%n", "ns/op, size=" + CACHE_RESIDENT,
+                "scalar", "-UseSuperWord", "vector", "auto-vectorized");
+        for (String key : superWord.keySet()) {
+            double s = superWord.get(key);
+            double n = noSuperWord.get(key);
+            Double v = vector.get(key);
+            System.out.printf("%-18s %12.1f %14.1f %12s %16s%n", key, s, n, (v == null) ? "n/a" : String.format("%.1f", v),
+                    (n / s >= AUTO_VECTORIZED) ? "yes" : "no");
+        }
+    }
+
+    /*
+     * The command line options replace the @Fork ones, so they have to be repeated here.
+     * 命令行选项会替换@Fork中的选项，因此这里必须重复一遍。
+     */
+    private static String[] forkArgs(String... extra) {
+        String[] fork = JMHSample_51_VectorKernels.class.getAnnotation(Fork.class).jvmArgsAppend();
+        String[] args = Arrays.copyOf(fork, fork.length + extra.length);
+        System.arraycopy(extra, 0, args, fork.length, extra.length);
+        return args;
+    }
+
+    private static Map<String, Double> run(String impl, String... jvmArgs) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_51_VectorKernels.class.getSimpleName())
+                .param("size", String.valueOf(CACHE_RESIDENT))
+                .param("impl", impl)
+                .jvmArgsAppend(forkArgs(jvmArgs))
+                .timeUnit(TimeUnit.NANOSECONDS)
+                .verbosity(VerboseMode.SILENT)
+                .build();
+
+        Collection<RunResult> results = new Runner(opt).run();
+
+        Map<String, Double> scores = new TreeMap<>();
+        for (RunResult rr : results) {
+            String label = rr.getPrimaryResult().getLabel() + " " + rr.getParams().getParam("type");
+            scores.put(label, rr.getPrimaryResult().getScore());
+        }
+        return scores;
+    }
+
+}
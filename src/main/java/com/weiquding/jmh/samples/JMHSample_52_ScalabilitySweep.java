@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+public class JMHSample_52_ScalabilitySweep {
+
+    /*
+     * JMHSample_17_SyncIterations runs at a single thread count, availableProcessors()*16.
+     * One point on the throughput curve says nothing about how the code scales: the interesting
+     * questions are where the curve flattens, and whether it goes down after that.
+     * JMHSample_17_SyncIterations只在单一的线程数availableProcessors()*16下运行。
+     * 吞吐量曲线上的一个点说明不了代码的扩展性：有意思的问题是曲线在哪里变平，以及在那之后它是否会下降。
+     *
+     * This launcher re-runs the benchmarks over a geometric series of thread counts, and fits
+     * the Universal Scalability Law (Gunther) to the throughput curve:
+     *
+     *    C(N) = X(N) / X(1) = N / (1 + sigma * (N - 1) + kappa * N * (N - 1))
+     *
+     *  - sigma is the contention: the serialized fraction of the work (Amdahl's law);
+     *  - kappa is the coherency: the cost of keeping the shared data consistent between
+     *    threads, which grows with the number of thread pairs, and makes the curve go down.
+     * With kappa > 0, the throughput peaks at N* = sqrt((1 - sigma) / kappa) threads.
+     * 这个启动器在一个几何级数的线程数序列上重复运行基准测试，并用通用可扩展性定律(Gunther)拟合吞吐量曲线：
+     *  - sigma是竞争：工作中被串行化的比例(阿姆达尔定律)；
+     *  - kappa是一致性：在线程之间保持共享数据一致的代价，它随线程对的数量增长，并使曲线下降。
+     * 当kappa > 0时，吞吐量在N* = sqrt((1 - sigma) / kappa)个线程处达到峰值。
+     *
+     * The fit uses the linearized form, N / C(N) - 1 = sigma * (N - 1) + kappa * N * (N - 1),
+     * with the ordinary least squares through the origin.
+     * 拟合使用线性化的形式，N / C(N) - 1 = sigma * (N - 1) + kappa * N * (N - 1)，并使用过原点的普通最小二乘法。
+     */
+
+    /*
+     * The default benchmark: a bit of thread-local work, and a short critical section.
+     * 默认的基准测试：一点线程本地的工作，加上一个很短的临界区。
+     */
+
+    private long counter;
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+    @Fork(1)
+    public long contended() {
+        Blackhole.consumeCPU(256);
+        synchronized (this) {
+            Blackhole.consumeCPU(16);
+            return counter++;
+        }
+    }
+
+    /**
+     * The fitted USL coefficients.
+     * 拟合出的USL系数。
+     */
+    public static class USL {
+        final double sigma;
+        final double kappa;
+
+        USL(double sigma, double kappa) {
+            this.sigma = sigma;
+            this.kappa = kappa;
+        }
+
+        /**
+         * Least squares through the origin of y = sigma * a + kappa * b,
+         * where a = N - 1, b = N * (N - 1), y = N / C(N) - 1.
+         * 对y = sigma * a + kappa * b做过原点的最小二乘，其中a = N - 1，b = N * (N - 1)，y = N / C(N) - 1。
+         *
+         * @param throughput thread count to throughput; must contain N = 1
+         */
+        public static USL fit(Map<Integer, Double> throughput) {
+            double x1 = throughput.get(1);
+            double saa = 0, sab = 0, sbb = 0, say = 0, sby = 0;
+            for (Map.Entry<Integer, Double> e : throughput.entrySet()) {
+                double n = e.getKey();
+                double c = e.getValue() / x1;
+                double a = n - 1;
+                double b = n * (n - 1);
+                double y = n / c - 1;
+                saa += a * a;
+                sab += a * b;
+                sbb += b * b;
+                say += a * y;
+                sby += b * y;
+            }
+            double det = saa * sbb - sab * sab;
+            if (det == 0) {
+                return new USL(0, 0);
+            }
+            double sigma = (say * sbb - sby * sab) / det;
+            double kappa = (saa * sby - sab * say) / det;
+            return new USL(sigma, kappa);
+        }
+
+        public double capacity(double n) {
+            return n / (1 + sigma * (n - 1) + kappa * n * (n - 1));
+        }
+
+        /**
+         * @return the thread count with the peak throughput, or infinity if the curve never goes down
+         */
+        public double peak() {
+            if (sigma >= 1) {
+                // fully serialized: more threads never help
+                return 1;
+            }
+            if (kappa <= 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return Math.sqrt((1 - sigma) / kappa);
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The launcher takes the usual JMH command line, and the sweep settings as properties:
+     *  -Dsweep.max=N       the largest thread count, availableProcessors()*4 by default;
+     *  -Dsweep.sync=MODE   syncIterations: "true", "false", or "both" (default "true").
+     * The benchmarks run in the throughput mode. When no benchmarks are given, it sweeps the
+     * contended() benchmark above.
+     * 启动器接受通常的JMH命令行，扫描设置则以属性的形式给出：
+     *  -Dsweep.max=N       最大的线程数，默认为availableProcessors()*4；
+     *  -Dsweep.sync=MODE   syncIterations："true"、"false"或"both"(默认为"true")。
+     * 基准测试以吞吐量模式运行。如果没有给出基准测试，就扫描上面的contended()基准测试。
+     *
+     * Note the fit is only as good as the machine: on a box with fewer cores than the thread
+     * counts, the threads time-share the cores, and the curve shows the scheduler rather
+     * than the code. Compare the two syncIterations modes to see how much the ramp-up and
+     * ramp-down of the threads skew the throughput at high thread counts.
+     * 注意拟合的好坏取决于机器：在核心数少于线程数的机器上，线程分时共享核心，曲线反映的是调度器而不是代码。
+     * 比较两种syncIterations模式，可以看出线程的启动和收尾在高线程数时对吞吐量的影响有多大。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -cp target/benchmarks.jar com.weiquding.jmh.samples.JMHSample_52_ScalabilitySweep
+     *    $ java -Dsweep.max=64 -Dsweep.sync=both -cp target/benchmarks.jar \
+     *        com.weiquding.jmh.samples.JMHSample_52_ScalabilitySweep JMHSample_03_States.measureShared -f 1 -wi 3 -i 3
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+
+        int max = Integer.getInteger("sweep.max", Runtime.getRuntime().availableProcessors() * 4);
+        String sync = System.getProperty("sweep.sync", "true");
+        List<Boolean> syncModes = new ArrayList<>();
+        if (!sync.equals("false")) {
+            syncModes.add(true);
+        }
+        if (!sync.equals("true")) {
+            syncModes.add(false);
+        }
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int t = 1; t <= max; t *= 2) {
+            threadCounts.add(t);
+        }
+
+        for (boolean syncIterations : syncModes) {
+            // benchmark -> threads -> ops/unit
+            Map<String, Map<Integer, Double>> curves = new LinkedHashMap<>();
+            Map<String, String> units = new TreeMap<>();
+
+            for (int threads : threadCounts) {
+                OptionsBuilder builder = new OptionsBuilder();
+                builder.parent(cmdOptions);
+                if (cmdOptions.getIncludes().isEmpty()) {
+                    builder.include(JMHSample_52_ScalabilitySweep.class.getName() + ".contended");
+                }
+                Options opt = builder
+                        .mode(Mode.Throughput)
+                        .threads(threads)
+                        .syncIterations(syncIterations)
+                        .verbosity(VerboseMode.SILENT)
+                        .build();
+
+                for (RunResult rr : new Runner(opt).run()) {
+                    String key = describe(rr.getParams());
+                    curves.computeIfAbsent(key, k -> new TreeMap<>()).put(threads, rr.getPrimaryResult().getScore());
+                    units.put(key, rr.getPrimaryResult().getScoreUnit());
+                }
+            }
+
+            System.out.println();
+            System.out.println("syncIterations = " + syncIterations);
+            for (Map.Entry<String, Map<Integer, Double>> e : curves.entrySet()) {
+                report(e.getKey(), units.get(e.getKey()), e.getValue());
+            }
+        }
+    }
+
+    private static void report(String benchmark, String unit, Map<Integer, Double> curve) {
+        System.out.println();
+        System.out.println(benchmark);
+        if (!curve.containsKey(1)) {
+            System.out.println("  no single-threaded run, cannot fit");
+            return;
+        }
+
+        USL usl = USL.fit(curve);
+        double x1 = curve.get(1);
+
+        System.out.printf("  %8s %16s %12s %12s%n", "threads", unit, "C(N)", "USL C(N)");
+        for (Map.Entry<Integer, Double> p : curve.entrySet()) {
+            System.out.printf("  %8d %16.3f %12.2f %12.2f%n",
+                    p.getKey(), p.getValue(), p.getValue() / x1, usl.capacity(p.getKey()));
+        }
+        System.out.printf("  contention sigma = %.5f, coherency kappa = %.6f%n", usl.sigma, usl.kappa);
+
+        double peak = usl.peak();
+        if (Double.isInfinite(peak)) {
+            System.out.printf("  no retrograde scaling; throughput approaches %.3f %s%n",
+                    (usl.sigma > 0) ? x1 / usl.sigma : Double.POSITIVE_INFINITY, unit);
+        } else {
+            System.out.printf("  predicted peak at %.1f threads, %.3f %s%n", peak, x1 * usl.capacity(peak), unit);
+        }
+    }
+
+    private static String describe(BenchmarkParams params) {
+        StringBuilder sb = new StringBuilder(params.getBenchmark());
+        for (String key : params.getParamsKeys()) {
+            sb.append(sb.indexOf("(") < 0 ? " (" : ", ").append(key).append(" = ").append(params.getParam(key));
+        }
+        if (!params.getParamsKeys().isEmpty()) {
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,653 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import jdk.jfr.consumer.RecordingStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JMHSample_53_VirtualThreads {
+
+    /*
+     * JMHSample_02_BenchmarkModes sleeps for 100 ms per op, and JMHSample_07_FixtureLevelInvocation
+     * submits its work to a cached thread pool. Request handlers look like that: they mostly
+     * wait, for the timer, for the queue, for the socket. With one platform thread per waiting
+     * task, the thread count is the limit: every thread is an OS thread with its own stack.
+     * JMHSample_02_BenchmarkModes每个操作睡眠100毫秒，JMHSample_07_FixtureLevelInvocation把工作提交给一个缓存线程池。
+     * 请求处理器看起来就是这样的：它们大部分时间都在等待，等待定时器、等待队列、等待套接字。
+     * 每个等待中的任务都占用一个平台线程时，线程数量就成了瓶颈：每个线程都是一个带有自己的栈的操作系统线程。
+     *
+     * One op here starts $tasks concurrent blocking tasks, and waits for all of them to finish:
+     *  - sleep: Thread.sleep(100), as in JMHSample_02_BenchmarkModes;
+     *  - queue: BlockingQueue.take(), fed by a producer thread;
+     *  - socket: a one-byte read from a loopback connection, fed by a writer thread.
+     * The tasks run on:
+     *  - cachedPool: a thread per task, as Executors.newCachedThreadPool() does under load;
+     *  - fixedPool: a fixed pool of POOL_SIZE platform threads, the classic request handler pool;
+     *  - virtual: a virtual thread per task (JDK 21+);
+     *  - async: no threads to block at all: timers, callbacks, and asynchronous channels.
+     * 这里的一个操作会启动$tasks个并发的阻塞任务，并等待它们全部完成：
+     *  - sleep：Thread.sleep(100)，与JMHSample_02_BenchmarkModes中的一样；
+     *  - queue：BlockingQueue.take()，由一个生产者线程提供数据；
+     *  - socket：从回环连接读取一个字节，由一个写线程提供数据。
+     * 这些任务运行在：
+     *  - cachedPool：每个任务一个线程，就像Executors.newCachedThreadPool()在负载下所做的那样；
+     *  - fixedPool：由POOL_SIZE个平台线程组成的固定线程池，经典的请求处理线程池；
+     *  - virtual：每个任务一个虚拟线程(JDK 21+)；
+     *  - async：根本没有需要阻塞的线程：定时器、回调以及异步通道。
+     *
+     * TaskProfiler reports, per iteration:
+     *  - tasks.throughput: the completed tasks per second;
+     *  - tasks.memory: resident memory growth per task, at the moment all tasks are submitted.
+     *    It includes the platform thread stacks, which the heap usage does not show;
+     *  - sched.latency: the time from the submission to the start of the task, mean and max.
+     *    async has no task to start: it reports register.latency instead, the time to register
+     *    the callback, which is not comparable;
+     *  - pinned: the virtual threads pinned to their carriers (jdk.VirtualThreadPinned JFR events).
+     *    Any non-zero value is flagged: the pinned thread holds the carrier while it waits.
+     * TaskProfiler对每次迭代报告：
+     *  - tasks.throughput：每秒完成的任务数；
+     *  - tasks.memory：在所有任务提交完毕时，每个任务带来的常驻内存增长。它包括平台线程的栈，而堆使用量体现不出这一点；
+     *  - sched.latency：从提交到任务开始执行的时间，平均值和最大值。
+     *    async没有要启动的任务：它改为报告register.latency，即注册回调的时间，两者不可比较；
+     *  - pinned：被钉在载体线程上的虚拟线程(jdk.VirtualThreadPinned JFR事件)。
+     *    任何非零值都会被标记出来：被钉住的线程在等待期间一直占着载体线程。
+     */
+
+    static final int SLEEP_MILLIS = 100;
+    static final int POOL_SIZE = 1000;
+    static final int CONNECTIONS = 100;
+
+    /*
+     * Beyond this, cachedPool would ask the OS for more threads than it is usually willing to give.
+     * 超过这个数量，cachedPool向操作系统申请的线程数就会超出它通常愿意提供的数量。
+     */
+    static final int MAX_PLATFORM_THREADS = 10_000;
+
+    /*
+     * The defaults stay within MAX_PLATFORM_THREADS, so that every flavor runs. The
+     * thread-less flavors go much further: -p flavor=virtual,async -p tasks=1000000.
+     * 默认值保持在MAX_PLATFORM_THREADS之内，这样每种方式都能运行。不使用线程的方式可以走得更远：
+     * -p flavor=virtual,async -p tasks=1000000。
+     */
+    @Param({"1000", "10000"})
+    int tasks;
+
+    @Param({"cachedPool", "fixedPool", "virtual", "async"})
+    String flavor;
+
+    @Param({"sleep", "queue", "socket"})
+    String blocking;
+
+    /*
+     * ----------------------------- executors ------------------------------
+     */
+
+    /**
+     * Creates the virtual thread per task executor, if the runtime has one.
+     * 如果运行时支持，创建每任务一个虚拟线程的执行器。
+     *
+     * @return executor, or null on JDKs without (final) virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            // JDK 19/20 without --enable-preview throws UnsupportedOperationException, wrapped or not
+            return null;
+        }
+    }
+
+    static boolean hasVirtualThreads() {
+        ExecutorService executor = newVirtualThreadExecutor();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /*
+     * ----------------------------- blocking sources ------------------------------
+     */
+
+    /**
+     * The callback counterpart of a blocking wait: a callback either consumes a credit
+     * right away, or waits for the next one.
+     * 阻塞等待的回调版本：回调要么立刻消耗一个额度，要么等待下一个额度。
+     */
+    static final class Credits {
+        private final ArrayDeque<Runnable> waiters = new ArrayDeque<>();
+        private long credits;
+
+        void await(Runnable callback) {
+            synchronized (this) {
+                if (credits == 0) {
+                    waiters.add(callback);
+                    return;
+                }
+                credits--;
+            }
+            callback.run();
+        }
+
+        void release(int n) {
+            for (int i = 0; i < n; i++) {
+                Runnable callback;
+                synchronized (this) {
+                    callback = waiters.poll();
+                    if (callback == null) {
+                        credits++;
+                        continue;
+                    }
+                }
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     * A loopback connection: the writer side is a plain socket, the reader side is either
+     * a blocking socket, or an asynchronous channel feeding the credits.
+     * 一个回环连接：写入端是普通的套接字，读取端要么是阻塞的套接字，要么是为额度提供数据的异步通道。
+     */
+    static final class Connection {
+        final Socket writer;
+        final Socket reader;
+        final InputStream in;
+        final AsynchronousSocketChannel channel;
+        final Credits credits;
+
+        Connection(ServerSocket server, boolean async) throws IOException, InterruptedException {
+            if (async) {
+                channel = AsynchronousSocketChannel.open();
+                try {
+                    channel.connect(server.getLocalSocketAddress()).get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+                reader = null;
+                in = null;
+                credits = new Credits();
+            } else {
+                reader = new Socket();
+                reader.connect(server.getLocalSocketAddress());
+                in = reader.getInputStream();
+                channel = null;
+                credits = null;
+            }
+            writer = server.accept();
+            writer.setTcpNoDelay(true);
+        }
+
+        void startReading() {
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            channel.read(buf, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer n, Void attachment) {
+                    if (n < 0) {
+                        return;
+                    }
+                    buf.clear();
+                    credits.release(n);
+                    channel.read(buf, null, this);
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    // closed at tear down
+                }
+            });
+        }
+
+        void close() throws IOException {
+            writer.close();
+            if (reader != null) {
+                reader.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /*
+     * ----------------------------- state ------------------------------
+     */
+
+    ExecutorService executor;
+    ScheduledExecutorService timer;
+    ServerSocket server;
+    List<Connection> connections;
+    LinkedBlockingQueue<Integer> queue;
+    Credits queueCredits;
+    PinningMonitor pinning;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        switch (flavor) {
+            case "cachedPool":
+                if (tasks > MAX_PLATFORM_THREADS) {
+                    throw new IllegalStateException("cachedPool would need " + tasks + " platform threads, the limit is "
+                            + MAX_PLATFORM_THREADS);
+                }
+                executor = Executors.newCachedThreadPool();
+                break;
+            case "fixedPool":
+                executor = Executors.newFixedThreadPool(POOL_SIZE);
+                break;
+            case "virtual":
+                executor = newVirtualThreadExecutor();
+                if (executor == null) {
+                    throw new IllegalStateException("Virtual threads need JDK 21+, this is " + System.getProperty("java.version"));
+                }
+                break;
+            case "async":
+                timer = Executors.newSingleThreadScheduledExecutor();
+                break;
+            default:
+                throw new IllegalStateException("Unknown flavor: " + flavor);
+        }
+
+        queue = new LinkedBlockingQueue<>();
+        queueCredits = new Credits();
+
+        if (blocking.equals("socket")) {
+            server = new ServerSocket(0, CONNECTIONS, InetAddress.getLoopbackAddress());
+            connections = new ArrayList<>();
+            for (int c = 0; c < CONNECTIONS; c++) {
+                Connection conn = new Connection(server, flavor.equals("async"));
+                if (conn.channel != null) {
+                    conn.startReading();
+                }
+                connections.add(conn);
+            }
+        }
+
+        pinning = new PinningMonitor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        pinning.close();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (connections != null) {
+            for (Connection c : connections) {
+                c.close();
+            }
+            server.close();
+        }
+    }
+
+    /*
+     * ----------------------------- the benchmark ------------------------------
+     */
+
+    @Benchmark
+    public long run() throws Exception {
+        CountDownLatch done = new CountDownLatch(tasks);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        LongAdder latencySum = new LongAdder();
+        LongAccumulator latencyMax = new LongAccumulator(Math::max, 0);
+        long pinnedBefore = pinning.count();
+
+        long memoryBefore = residentMemory();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < tasks; i++) {
+            long submitted = System.nanoTime();
+            int id = i;
+            if (executor != null) {
+                executor.execute(() -> {
+                    long latency = System.nanoTime() - submitted;
+                    latencySum.add(latency);
+                    latencyMax.accumulate(latency);
+                    try {
+                        block(id);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        // a failed task still counts down, or done.await() hangs until the JMH timeout
+                        done.countDown();
+                    }
+                });
+            } else {
+                // async: there is no task start, this is the callback registration
+                long latency = System.nanoTime() - submitted;
+                latencySum.add(latency);
+                latencyMax.accumulate(latency);
+                blockAsync(id, done::countDown);
+            }
+        }
+
+        long memory = residentMemory() - memoryBefore;
+        feed();
+
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        if (failure.get() != null) {
+            throw new IllegalStateException("A task failed", failure.get());
+        }
+
+        Stats.last = new Stats(tasks, elapsed, memory, executor == null, latencySum.sum() / tasks, latencyMax.get(),
+                pinning.count() - pinnedBefore);
+        return elapsed;
+    }
+
+    void block(int id) throws InterruptedException, IOException {
+        switch (blocking) {
+            case "sleep":
+                Thread.sleep(SLEEP_MILLIS);
+                break;
+            case "queue":
+                queue.take();
+                break;
+            case "socket":
+                if (connections.get(id % CONNECTIONS).in.read() < 0) {
+                    throw new IOException("Connection closed");
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown blocking: " + blocking);
+        }
+    }
+
+    void blockAsync(int id, Runnable callback) {
+        switch (blocking) {
+            case "sleep":
+                timer.schedule(callback, SLEEP_MILLIS, TimeUnit.MILLISECONDS);
+                break;
+            case "queue":
+                queueCredits.await(callback);
+                break;
+            case "socket":
+                connections.get(id % CONNECTIONS).credits.await(callback);
+                break;
+            default:
+                throw new IllegalStateException("Unknown blocking: " + blocking);
+        }
+    }
+
+    /**
+     * Feeds the queue or the sockets with exactly one item per task, from the current thread.
+     * 在当前线程中为队列或套接字提供数据，每个任务恰好一项。
+     */
+    void feed() throws IOException {
+        switch (blocking) {
+            case "queue":
+                if (executor != null) {
+                    for (int i = 0; i < tasks; i++) {
+                        queue.add(i);
+                    }
+                } else {
+                    queueCredits.release(tasks);
+                }
+                break;
+            case "socket":
+                int[] perConnection = new int[CONNECTIONS];
+                for (int i = 0; i < tasks; i++) {
+                    perConnection[i % CONNECTIONS]++;
+                }
+                for (int c = 0; c < CONNECTIONS; c++) {
+                    OutputStream out = connections.get(c).writer.getOutputStream();
+                    out.write(new byte[perConnection[c]]);
+                    out.flush();
+                }
+                break;
+            default:
+                // sleep needs no feeding
+        }
+    }
+
+    /**
+     * Resident set size from /proc, or the used heap where /proc is not available.
+     * 从/proc读取常驻内存大小，在没有/proc的地方则使用已用的堆内存。
+     */
+    static long residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // fall through
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /*
+     * ----------------------------- reporting ------------------------------
+     */
+
+    /**
+     * Counts the jdk.VirtualThreadPinned events. On JDKs without virtual threads,
+     * the event does not exist, and the count stays zero.
+     * 统计jdk.VirtualThreadPinned事件。在没有虚拟线程的JDK上，这个事件不存在，计数一直为零。
+     */
+    public static class PinningMonitor implements AutoCloseable {
+        private final RecordingStream stream;
+        private final AtomicLong pinned = new AtomicLong();
+
+        public PinningMonitor() {
+            stream = new RecordingStream();
+            stream.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            stream.onEvent("jdk.VirtualThreadPinned", e -> pinned.incrementAndGet());
+            stream.startAsync();
+        }
+
+        public long count() {
+            return pinned.get();
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+    }
+
+    static final class Stats {
+        static volatile Stats last;
+
+        final int tasks;
+        final long elapsedNanos;
+        final long memoryBytes;
+        final boolean registration;
+        final long latencyMeanNanos;
+        final long latencyMaxNanos;
+        final long pinned;
+
+        Stats(int tasks, long elapsedNanos, long memoryBytes, boolean registration, long latencyMeanNanos,
+              long latencyMaxNanos, long pinned) {
+            this.tasks = tasks;
+            this.elapsedNanos = elapsedNanos;
+            this.memoryBytes = memoryBytes;
+            this.registration = registration;
+            this.latencyMeanNanos = latencyMeanNanos;
+            this.latencyMaxNanos = latencyMaxNanos;
+            this.pinned = pinned;
+        }
+    }
+
+    public static class TaskProfiler implements InternalProfiler {
+
+        @Override
+        public String getDescription() {
+            return "Task throughput, memory per task, scheduling latency and pinning";
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            Stats.last = null;
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            Stats s = Stats.last;
+            if (s == null) {
+                return Arrays.asList();
+            }
+            if (s.pinned > 0) {
+                System.out.println("WARNING: " + s.pinned + " virtual threads were pinned to their carriers");
+            }
+            String latency = s.registration ? "register.latency" : "sched.latency";
+            return Arrays.asList(
+                    new ScalarResult("tasks.throughput", s.tasks * 1e9 / s.elapsedNanos, "tasks/s", AggregationPolicy.AVG),
+                    new ScalarResult("tasks.memory", (double) s.memoryBytes / s.tasks, "B/task", AggregationPolicy.AVG),
+                    new ScalarResult(latency, s.latencyMeanNanos / 1e3, "us", AggregationPolicy.AVG),
+                    new ScalarResult(latency + ".max", s.latencyMaxNanos / 1e3, "us", AggregationPolicy.MAX),
+                    new ScalarResult("pinned", s.pinned, "#", AggregationPolicy.SUM));
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * Expect fixedPool to take $tasks / POOL_SIZE rounds for sleep, cachedPool to pay the
+     * most resident memory per task, for the touched pages of the thread stacks and the
+     * kernel thread structures, and virtual to come close to async in both throughput and
+     * memory, while keeping the blocking code.
+     * 可以预期fixedPool在sleep时需要$tasks / POOL_SIZE轮，cachedPool每个任务付出的常驻内存最多，
+     * 用于线程栈中被访问过的页面以及内核的线程结构，
+     * 而virtual在吞吐量和内存两方面都接近async，同时保留了阻塞式的代码。
+     *
+     * The main method runs every flavor at the default task counts, then the thread-less
+     * flavors at 100000 and 1000000 tasks; it skips the virtual flavor on JDKs without
+     * virtual threads. The platform flavors stop at MAX_PLATFORM_THREADS: cachedPool fails
+     * its setup beyond that.
+     * main方法先在默认任务数下运行每种方式，再以100000和1000000个任务运行不使用线程的方式；
+     * 在没有虚拟线程的JDK上它会跳过virtual方式。平台线程方式止步于MAX_PLATFORM_THREADS：超过这个数量cachedPool的设置会失败。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_53 -p flavor=virtual,async -p tasks=1000000 \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_53_VirtualThreads$TaskProfiler'
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        List<String> flavors = new ArrayList<>(Arrays.asList("cachedPool", "fixedPool", "async"));
+        List<String> threadless = new ArrayList<>(Arrays.asList("async"));
+        if (hasVirtualThreads()) {
+            flavors.add("virtual");
+            threadless.add("virtual");
+        } else {
+            System.out.println("No virtual threads on JDK " + System.getProperty("java.version") + ", skipping the virtual flavor.");
+        }
+
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_53_VirtualThreads.class.getSimpleName())
+                .param("flavor", flavors.toArray(new String[0]))
+                .addProfiler(TaskProfiler.class.getName())
+                .build();
+        new Runner(opt).run();
+
+        Options large = new OptionsBuilder()
+                .include(JMHSample_53_VirtualThreads.class.getSimpleName())
+                .param("tasks", "100000", "1000000")
+                .param("flavor", threadless.toArray(new String[0]))
+                .addProfiler(TaskProfiler.class.getName())
+                .build();
+        new Runner(large).run();
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JMHSample_54_VirtualThreadPinning {
+
+    /*
+     * In JMHSample_29_StatesDAG, Shared.getMine(), setup() and tearDown() are synchronized,
+     * and every Local state takes its Counter from the Shared state. With a handful of platform
+     * threads, this costs nothing. With thousands of virtual threads, it is where they pin
+     * their carriers: a virtual thread that blocks inside synchronized, in Object.wait(), in a
+     * contended monitor enter, or in a sleep or an I/O call, holds on to its carrier thread,
+     * and no other virtual thread can run there until it is done (JDK 21).
+     * 在JMHSample_29_StatesDAG中，Shared.getMine()、setup()和tearDown()都是synchronized的，
+     * 每个Local状态都从Shared状态中获取它的Counter。只有少量平台线程时，这没有任何开销。
+     * 有成千上万个虚拟线程时，这里就是它们钉住载体线程的地方：一个在synchronized内部阻塞的虚拟线程，
+     * 无论是在Object.wait()中、在有竞争的监视器进入中，还是在睡眠或I/O调用中，都会一直占着它的载体线程，
+     * 在它完成之前，其他虚拟线程都无法在那里运行(JDK 21)。
+     *
+     * Here, $tasks threads each run the Local -> Shared acquisition: take a Counter from the
+     * pool, use it for a USE_MILLIS blocking call, and give it back. The pool holds POOL_SIZE
+     * counters, more than there are carriers, so that the threads that hold a counter can all
+     * wait at the same time, unless they are pinned. The pool comes in three flavors:
+     *  - synchronized: the JMHSample_29_StatesDAG style; wait()/notify() when the pool is
+     *    empty, and the counter is used under its monitor;
+     *  - reentrantLock: the same, with a ReentrantLock and a Condition, and the counter used
+     *    without a lock. The virtual threads unmount when they park on either;
+     *  - lockFree: a ConcurrentLinkedQueue, and Thread.yield() when the pool is empty.
+     * 这里，$tasks个线程各自执行Local -> Shared的获取过程：从池中取出一个Counter，
+     * 用它进行一次USE_MILLIS的阻塞调用，然后归还。池中有POOL_SIZE个计数器，比载体线程更多，
+     * 这样持有计数器的线程就可以同时等待，除非它们被钉住了。池有三种实现：
+     *  - synchronized：JMHSample_29_StatesDAG的风格；池为空时wait()/notify()，并在计数器的监视器下使用它；
+     *  - reentrantLock：同样的逻辑，使用ReentrantLock和Condition，并且不加锁地使用计数器。虚拟线程在这两者上挂起时都会卸载；
+     *  - lockFree：一个ConcurrentLinkedQueue，池为空时调用Thread.yield()。
+     *
+     * PinningProfiler reports the throughput in acquisitions per second, the carrier
+     * utilization (the CPU time of the carrier threads over the elapsed time and the
+     * scheduler parallelism), and the jdk.VirtualThreadPinned events, with the
+     * JMHSample_53_VirtualThreads.PinningMonitor. On JDKs without virtual threads, only the
+     * platform flavor runs; it is the reference, with a platform thread per task.
+     * PinningProfiler报告以每秒获取次数表示的吞吐量、载体线程利用率(载体线程的CPU时间除以经过的时间和调度器并行度)，
+     * 以及jdk.VirtualThreadPinned事件(使用JMHSample_53_VirtualThreads.PinningMonitor)。
+     * 在没有虚拟线程的JDK上，只有platform方式会运行；它是每个任务一个平台线程的参照。
+     */
+
+    static final int POOL_SIZE = 64;
+    static final int USE_MILLIS = 1;
+
+    @Param({"1000", "10000"})
+    int tasks;
+
+    @Param({"synchronized", "reentrantLock", "lockFree"})
+    String pool;
+
+    @Param({"virtual", "platform"})
+    String threads;
+
+    /**
+     * The Shared state of JMHSample_29_StatesDAG, reduced to the acquisition protocol.
+     * JMHSample_29_StatesDAG的Shared状态，简化为获取协议。
+     */
+    public interface CounterPool {
+        JMHSample_29_StatesDAG.Counter acquire() throws InterruptedException;
+
+        void use(JMHSample_29_StatesDAG.Counter c) throws InterruptedException;
+
+        void release(JMHSample_29_StatesDAG.Counter c);
+    }
+
+    public static class SynchronizedPool implements CounterPool {
+        private final Queue<JMHSample_29_StatesDAG.Counter> available = new ArrayDeque<>();
+
+        public SynchronizedPool(List<JMHSample_29_StatesDAG.Counter> all) {
+            available.addAll(all);
+        }
+
+        @Override
+        public synchronized JMHSample_29_StatesDAG.Counter acquire() throws InterruptedException {
+            while (available.isEmpty()) {
+                wait();
+            }
+            return available.poll();
+        }
+
+        @Override
+        public void use(JMHSample_29_StatesDAG.Counter c) throws InterruptedException {
+            synchronized (c) {
+                c.inc();
+                Thread.sleep(USE_MILLIS);
+            }
+        }
+
+        @Override
+        public synchronized void release(JMHSample_29_StatesDAG.Counter c) {
+            available.add(c);
+            notify();
+        }
+    }
+
+    public static class ReentrantLockPool implements CounterPool {
+        private final Queue<JMHSample_29_StatesDAG.Counter> available = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+
+        public ReentrantLockPool(List<JMHSample_29_StatesDAG.Counter> all) {
+            available.addAll(all);
+        }
+
+        @Override
+        public JMHSample_29_StatesDAG.Counter acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                while (available.isEmpty()) {
+                    notEmpty.await();
+                }
+                return available.poll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void use(JMHSample_29_StatesDAG.Counter c) throws InterruptedException {
+            // The counter is owned by this thread until it is released, no lock needed
+            c.inc();
+            Thread.sleep(USE_MILLIS);
+        }
+
+        @Override
+        public void release(JMHSample_29_StatesDAG.Counter c) {
+            lock.lock();
+            try {
+                available.add(c);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public static class LockFreePool implements CounterPool {
+        private final ConcurrentLinkedQueue<JMHSample_29_StatesDAG.Counter> available = new ConcurrentLinkedQueue<>();
+
+        public LockFreePool(List<JMHSample_29_StatesDAG.Counter> all) {
+            available.addAll(all);
+        }
+
+        @Override
+        public JMHSample_29_StatesDAG.Counter acquire() {
+            JMHSample_29_StatesDAG.Counter c;
+            while ((c = available.poll()) == null) {
+                Thread.yield();
+            }
+            return c;
+        }
+
+        @Override
+        public void use(JMHSample_29_StatesDAG.Counter c) throws InterruptedException {
+            c.inc();
+            Thread.sleep(USE_MILLIS);
+        }
+
+        @Override
+        public void release(JMHSample_29_StatesDAG.Counter c) {
+            available.add(c);
+        }
+    }
+
+    List<JMHSample_29_StatesDAG.Counter> all;
+    CounterPool counters;
+    ExecutorService executor;
+    JMHSample_53_VirtualThreads.PinningMonitor pinning;
+
+    @Setup
+    public void setup() {
+        all = new ArrayList<>();
+        for (int c = 0; c < POOL_SIZE; c++) {
+            all.add(new JMHSample_29_StatesDAG.Counter());
+        }
+
+        switch (pool) {
+            case "synchronized":
+                counters = new SynchronizedPool(all);
+                break;
+            case "reentrantLock":
+                counters = new ReentrantLockPool(all);
+                break;
+            case "lockFree":
+                counters = new LockFreePool(all);
+                break;
+            default:
+                throw new IllegalStateException("Unknown pool: " + pool);
+        }
+
+        switch (threads) {
+            case "virtual":
+                executor = JMHSample_53_VirtualThreads.newVirtualThreadExecutor();
+                if (executor == null) {
+                    throw new IllegalStateException("Virtual threads need JDK 21+, this is " + System.getProperty("java.version"));
+                }
+                break;
+            case "platform":
+                if (tasks > JMHSample_53_VirtualThreads.MAX_PLATFORM_THREADS) {
+                    throw new IllegalStateException("platform would need " + tasks + " threads, the limit is "
+                            + JMHSample_53_VirtualThreads.MAX_PLATFORM_THREADS);
+                }
+                AtomicInteger ids = new AtomicInteger();
+                executor = Executors.newCachedThreadPool(r -> new Thread(r, PLATFORM_PREFIX + ids.incrementAndGet()));
+                break;
+            default:
+                throw new IllegalStateException("Unknown threads: " + threads);
+        }
+
+        pinning = new JMHSample_53_VirtualThreads.PinningMonitor();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        pinning.close();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        for (JMHSample_29_StatesDAG.Counter c : all) {
+            c.dispose();
+        }
+    }
+
+    @Benchmark
+    public long acquire() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        LongAdder taskCpu = new LongAdder();
+        long pinnedBefore = pinning.count();
+        long carrierCpuBefore = carrierCpuTime();
+        boolean platform = threads.equals("platform");
+        long start = System.nanoTime();
+
+        for (int t = 0; t < tasks; t++) {
+            executor.execute(() -> {
+                long cpuStart = platform ? THREADS.getCurrentThreadCpuTime() : 0;
+                try {
+                    JMHSample_29_StatesDAG.Counter c = counters.acquire();
+                    try {
+                        counters.use(c);
+                    } finally {
+                        counters.release(c);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (platform) {
+                    // the platform threads are their own carriers, and the pool reuses them
+                    taskCpu.add(THREADS.getCurrentThreadCpuTime() - cpuStart);
+                }
+                done.countDown();
+            });
+        }
+
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        long cpu;
+        int parallelism;
+        if (platform) {
+            cpu = taskCpu.sum();
+            parallelism = Runtime.getRuntime().availableProcessors();
+        } else {
+            cpu = carrierCpuTime() - carrierCpuBefore;
+            parallelism = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                    Runtime.getRuntime().availableProcessors());
+        }
+
+        Stats.last = new Stats(tasks, elapsed, (double) cpu / elapsed / parallelism, pinning.count() - pinnedBefore);
+        return elapsed;
+    }
+
+    static final String PLATFORM_PREFIX = "jmh-pool-task-";
+    static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Total CPU time of the live virtual thread carriers. The default scheduler names them
+     * "ForkJoinPool-N-worker-M", unlike the common pool workers, "ForkJoinPool.commonPool-worker-M".
+     * 所有存活的虚拟线程载体线程的CPU时间总和。默认调度器把它们命名为"ForkJoinPool-N-worker-M"，
+     * 区别于公共池的工作线程"ForkJoinPool.commonPool-worker-M"。
+     */
+    static long carrierCpuTime() {
+        long sum = 0;
+        for (ThreadInfo info : THREADS.getThreadInfo(THREADS.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("ForkJoinPool-") && info.getThreadName().contains("-worker-")) {
+                long cpu = THREADS.getThreadCpuTime(info.getThreadId());
+                if (cpu > 0) {
+                    sum += cpu;
+                }
+            }
+        }
+        return sum;
+    }
+
+    static final class Stats {
+        static volatile Stats last;
+
+        final int tasks;
+        final long elapsedNanos;
+        final double utilization;
+        final long pinned;
+
+        Stats(int tasks, long elapsedNanos, double utilization, long pinned) {
+            this.tasks = tasks;
+            this.elapsedNanos = elapsedNanos;
+            this.utilization = utilization;
+            this.pinned = pinned;
+        }
+    }
+
+    public static class PinningProfiler implements InternalProfiler {
+
+        @Override
+        public String getDescription() {
+            return "Acquisition throughput, carrier utilization and pinning";
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            Stats.last = null;
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            Stats s = Stats.last;
+            if (s == null) {
+                return Arrays.asList();
+            }
+            return Arrays.asList(
+                    new ScalarResult("acquire.throughput", s.tasks * 1e9 / s.elapsedNanos, "ops/s", AggregationPolicy.AVG),
+                    new ScalarResult("carrier.util", 100 * s.utilization, "%", AggregationPolicy.AVG),
+                    new ScalarResult("pinned", s.pinned, "#", AggregationPolicy.SUM));
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * With POOL_SIZE counters and USE_MILLIS per use, the pool alone caps the throughput at
+     * POOL_SIZE / USE_MILLIS acquisitions per millisecond. Expect reentrantLock and lockFree
+     * to get close to it on virtual threads, and synchronized to fall to the number of
+     * carriers per millisecond, with a pinning event per sleep. JDK 21 compensates some of
+     * the pinning in Object.wait() with extra carriers, which shows as the carrier utilization
+     * below what the throughput suggests. The lockFree pool burns the CPU with the yields when
+     * the pool is empty; compare its carrier utilization with reentrantLock.
+     * 有POOL_SIZE个计数器且每次使用USE_MILLIS时，仅池本身就把吞吐量限制在每毫秒POOL_SIZE / USE_MILLIS次获取。
+     * 可以预期在虚拟线程上reentrantLock和lockFree接近这个值，而synchronized会降到每毫秒载体线程数那么多次，
+     * 每次睡眠都有一个钉住事件。JDK 21会用额外的载体线程补偿Object.wait()中的部分钉住，
+     * 这表现为载体利用率低于吞吐量所暗示的水平。lockFree池在池为空时用yield消耗CPU；可以比较它和reentrantLock的载体利用率。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_54 -p threads=virtual \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_54_VirtualThreadPinning$PinningProfiler'
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        List<String> threads = new ArrayList<>(Arrays.asList("platform"));
+        if (JMHSample_53_VirtualThreads.hasVirtualThreads()) {
+            threads.add("virtual");
+        } else {
+            System.out.println("No virtual threads on JDK " + System.getProperty("java.version") + ", running the platform reference only.");
+        }
+
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_54_VirtualThreadPinning.class.getSimpleName())
+                .param("threads", threads.toArray(new String[0]))
+                .addProfiler(PinningProfiler.class.getName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+@State(Scope.Thread)
+public class JMHSample_55_LatencySLO {
+
+    /*
+     * JMHSample_02_BenchmarkModes measures the throughput, the average time, and the sampled
+     * time distribution. All of them run the benchmark closed-loop: the next call starts when
+     * the previous one is done. A service does not get its requests that way: they arrive at
+     * some rate, whether it is done or not. Closed-loop, a slow call delays the calls behind
+     * it, and they are never measured as slow (the "coordinated omission"). And neither the
+     * maximum throughput nor the average time says at which rate the tail latency stays within
+     * the target, which is the number the capacity planning needs.
+     * JMHSample_02_BenchmarkModes度量吞吐量、平均时间和采样的时间分布。它们都以闭环方式运行基准测试：
+     * 下一次调用在上一次调用完成时才开始。服务接收请求的方式并非如此：无论它是否完成，请求都会以某个速率到达。
+     * 在闭环中，一次慢的调用会推迟它后面的调用，而这些调用永远不会被度量为慢的("协调遗漏")。
+     * 而且无论是最大吞吐量还是平均时间，都说明不了在什么速率下尾部延迟能保持在目标之内，
+     * 而这正是容量规划需要的数字。
+     *
+     * This sample adds the open-loop mode, and the search for the maximum sustainable rate:
+     *  - the Pacer state schedules the calls at $rate per second over all threads. The latency
+     *    counts from the scheduled start, not the actual one, so that the queueing behind a
+     *    slow call shows in the calls that waited for it;
+     *  - the PercentileProfiler reports the latency profile: p50, p90, p99, p99.9, p99.99,
+     *    max, and the SLO percentile;
+     *  - the main method binary-searches $rate for the highest rate with the SLO percentile
+     *    under the target, and prints the full profiles at, below and above the knee.
+     * 这个示例增加了开环模式，以及对最大可持续速率的搜索：
+     *  - Pacer状态按照所有线程合计每秒$rate次来安排调用。延迟从计划的开始时间算起，而不是从实际开始时间算起，
+     *    这样在慢调用后面的排队就会体现在等待它的那些调用中；
+     *  - PercentileProfiler报告延迟分布：p50、p90、p99、p99.9、p99.99、max，以及SLO百分位；
+     *  - main方法对$rate进行二分查找，找出SLO百分位低于目标的最高速率，并打印拐点处、拐点以下和拐点以上的完整分布。
+     *
+     * Any benchmark can run open-loop: take the Pacer state, and wrap the work into
+     * pacer.acquire() and pacer.record(). See service() below.
+     * 任何基准测试都可以以开环方式运行：引入Pacer状态，并用pacer.acquire()和pacer.record()包裹工作。参见下面的service()。
+     */
+
+    /**
+     * Log-linear latency histogram: every power of two is split into 2^SUB_BITS buckets,
+     * which keeps the relative error under 1 / 2^SUB_BITS, about 3%.
+     * 对数线性的延迟直方图：每个2的幂都被分成2^SUB_BITS个桶，这样相对误差保持在1 / 2^SUB_BITS以下，约为3%。
+     */
+    public static class LatencyHistogram {
+        static final int SUB_BITS = 5;
+        static final int SUB_COUNT = 1 << SUB_BITS;
+
+        final long[] counts = new long[(64 - SUB_BITS + 1) << SUB_BITS];
+        long total;
+        long max;
+
+        static int index(long v) {
+            if (v < SUB_COUNT) {
+                return (int) v;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int exp = (index >> SUB_BITS) + SUB_BITS - 1;
+            long sub = index & (SUB_COUNT - 1);
+            return ((1L << exp) | (sub << (exp - SUB_BITS))) + (1L << (exp - SUB_BITS)) - 1;
+        }
+
+        public void record(long v) {
+            counts[index(Math.max(0, v))]++;
+            total++;
+            max = Math.max(max, v);
+        }
+
+        public void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        public void reset() {
+            Arrays.fill(counts, 0);
+            total = 0;
+            max = 0;
+        }
+
+        /**
+         * @param p percentile, 0..100
+         * @return the value at the percentile, rounded up to its bucket bound
+         */
+        public long percentile(double p) {
+            long rank = (long) Math.ceil(p / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        public LatencyHistogram copy() {
+            LatencyHistogram h = new LatencyHistogram();
+            h.add(this);
+            return h;
+        }
+    }
+
+    /**
+     * Schedules the calls of one benchmark thread. $rate is the total over all threads;
+     * zero runs closed-loop, and measures the plain service time.
+     * 安排一个基准测试线程的调用。$rate是所有线程的总和；为零时以闭环方式运行，度量单纯的服务时间。
+     */
+    @State(Scope.Thread)
+    public static class Pacer {
+
+        static final ConcurrentLinkedQueue<LatencyHistogram> COMPLETED = new ConcurrentLinkedQueue<>();
+
+        @Param({"0"})
+        double rate;
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        long interval;
+        long next;
+
+        @Setup(Level.Iteration)
+        public void setup(BenchmarkParams params) {
+            interval = (rate > 0) ? (long) (1e9 * params.getThreads() / rate) : 0;
+            // spread the threads over one interval, so that they do not all start at once
+            next = System.nanoTime() + ThreadLocalRandom.current().nextLong(Math.max(1, interval));
+            histogram.reset();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            COMPLETED.add(histogram.copy());
+        }
+
+        /**
+         * Waits for the scheduled start of the next call.
+         * 等待下一次调用的计划开始时间。
+         *
+         * @return the scheduled start, to pass to {@link #record(long)}
+         */
+        public long acquire() {
+            if (interval == 0) {
+                return System.nanoTime();
+            }
+            long intended = next;
+            next += interval;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                if (wait > 50_000) {
+                    LockSupport.parkNanos(wait - 50_000);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+            return intended;
+        }
+
+        public void record(long intended) {
+            histogram.record(System.nanoTime() - intended);
+        }
+    }
+
+    /*
+     * The default service: a few microseconds of work, and one call in a hundred is
+     * thirty times slower. Try your own benchmarks with the Pacer.
+     * 默认的服务：几微秒的工作，每一百次调用中有一次要慢三十倍。可以用Pacer尝试你自己的基准测试。
+     */
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+    @Fork(1)
+    public void service(Pacer pacer) {
+        long intended = pacer.acquire();
+        int tokens = (ThreadLocalRandom.current().nextInt(100) == 0) ? 30 * 1_000 : 1_000;
+        Blackhole.consumeCPU(tokens);
+        pacer.record(intended);
+    }
+
+    /**
+     * Reports the latency profile of the Pacer states, in microseconds. The SLO percentile
+     * comes from -Dslo.percentile in the forked VM, 99 by default.
+     * 以微秒为单位报告Pacer状态的延迟分布。SLO百分位来自派生虚拟机中的-Dslo.percentile，默认为99。
+     */
+    public static class PercentileProfiler implements InternalProfiler {
+
+        static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+        @Override
+        public String getDescription() {
+            return "Latency percentiles of the paced benchmarks";
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            Pacer.COMPLETED.clear();
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            LatencyHistogram all = new LatencyHistogram();
+            LatencyHistogram h;
+            while ((h = Pacer.COMPLETED.poll()) != null) {
+                all.add(h);
+            }
+            List<Result> results = new ArrayList<>();
+            if (all.total == 0) {
+                return results;
+            }
+            for (double p : PERCENTILES) {
+                results.add(new ScalarResult(label(p), all.percentile(p) / 1e3, "us", AggregationPolicy.AVG));
+            }
+            results.add(new ScalarResult("max", all.max / 1e3, "us", AggregationPolicy.MAX));
+            double slo = Double.parseDouble(System.getProperty("slo.percentile", "99"));
+            results.add(new ScalarResult("slo", all.percentile(slo) / 1e3, "us", AggregationPolicy.MAX));
+            return results;
+        }
+
+        static String label(double p) {
+            return (p == Math.rint(p)) ? "p" + (long) p : "p" + p;
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The launcher takes the usual JMH command line, and the SLO as properties:
+     *  -Dslo.percentile=P   the percentile to hold, 99 by default;
+     *  -Dslo.target=US      the target latency at that percentile, in microseconds, 1000 by default;
+     *  -Dslo.steps=N        the binary search steps, 8 by default.
+     * It first runs closed-loop ($rate = 0) for the maximum throughput, which bounds the
+     * search from above. The SLO result aggregates as the maximum over the measurement
+     * iterations: the rate passes only when every iteration holds the target. When no
+     * benchmarks are given, it searches the service() benchmark above.
+     * 启动器接受通常的JMH命令行，SLO则以属性的形式给出：
+     *  -Dslo.percentile=P   要保证的百分位，默认为99；
+     *  -Dslo.target=US      该百分位上的目标延迟，以微秒为单位，默认为1000；
+     *  -Dslo.steps=N        二分查找的步数，默认为8。
+     * 它首先以闭环方式($rate = 0)运行以得到最大吞吐量，作为搜索的上界。SLO结果按测量迭代中的最大值聚合：
+     * 只有当每次迭代都满足目标时，该速率才算通过。如果没有给出基准测试，就搜索上面的service()基准测试。
+     *
+     * Note the maximum throughput is always above the sustainable rate: at the maximum
+     * throughput, the queue behind the service grows without bound, and so does the latency.
+     * 注意最大吞吐量总是高于可持续速率：在最大吞吐量下，服务后面的队列会无限增长，延迟也是如此。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -Dslo.percentile=99.9 -Dslo.target=500 -cp target/benchmarks.jar \
+     *        com.weiquding.jmh.samples.JMHSample_55_LatencySLO
+     *    $ java -jar target/benchmarks.jar JMHSample_55 -p rate=100000 \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_55_LatencySLO$PercentileProfiler'
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+
+        double percentile = Double.parseDouble(System.getProperty("slo.percentile", "99"));
+        double target = Double.parseDouble(System.getProperty("slo.target", "1000"));
+        int steps = Integer.getInteger("slo.steps", 8);
+
+        // rate -> profile
+        TreeMap<Double, Profile> probes = new TreeMap<>();
+
+        Profile closed = probe(cmdOptions, 0, percentile);
+        System.out.printf("closed-loop: %.0f ops/s, p%s = %.1f us%n", closed.achieved, fmt(percentile), closed.slo);
+
+        double lo = 0;
+        double hi = closed.achieved;
+        for (int s = 0; s < steps; s++) {
+            double rate = Math.rint((lo + hi) / 2);
+            Profile p = probe(cmdOptions, rate, percentile);
+            probes.put(rate, p);
+            boolean pass = p.slo <= target;
+            System.out.printf("rate %.0f ops/s: p%s = %.1f us, %s%n", rate, fmt(percentile), p.slo, pass ? "pass" : "FAIL");
+            if (pass) {
+                lo = rate;
+            } else {
+                hi = rate;
+            }
+        }
+
+        if (lo == 0) {
+            System.out.println();
+            System.out.printf("No rate down to %.0f ops/s holds p%s under %.1f us.%n", hi, fmt(percentile), target);
+            report(probes, percentile, target);
+            return;
+        }
+
+        for (double rate : new double[]{Math.rint(lo * 0.8), Math.rint(lo * 1.2)}) {
+            probes.computeIfAbsent(rate, r -> {
+                try {
+                    return probe(cmdOptions, r, percentile);
+                } catch (RunnerException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        System.out.println();
+        System.out.printf("Maximum sustainable rate: %.0f ops/s with p%s under %.1f us (closed-loop maximum: %.0f ops/s)%n",
+                lo, fmt(percentile), target, closed.achieved);
+        report(probes, percentile, target);
+    }
+
+    /**
+     * The result of one paced run.
+     * 一次按节奏运行的结果。
+     */
+    static final class Profile {
+        final double achieved;
+        final double slo;
+        final Map<String, Double> latencies = new LinkedHashMap<>();
+
+        Profile(RunResult rr) {
+            achieved = rr.getPrimaryResult().getScore();
+            Map<String, Result> secondary = rr.getSecondaryResults();
+            if (!secondary.containsKey("slo")) {
+                throw new IllegalStateException("No latencies recorded, does " + rr.getParams().getBenchmark() + " use the Pacer?");
+            }
+            slo = secondary.get("slo").getScore();
+            for (double p : PercentileProfiler.PERCENTILES) {
+                String label = PercentileProfiler.label(p);
+                latencies.put(label, secondary.get(label).getScore());
+            }
+            latencies.put("max", secondary.get("max").getScore());
+        }
+    }
+
+    private static Profile probe(CommandLineOptions cmdOptions, double rate, double percentile) throws RunnerException {
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cmdOptions);
+        if (cmdOptions.getIncludes().isEmpty()) {
+            builder.include(JMHSample_55_LatencySLO.class.getName() + ".service");
+        }
+        List<String> jvmArgs = new ArrayList<>(cmdOptions.getJvmArgsAppend().orElse(new ArrayList<>()));
+        jvmArgs.add("-Dslo.percentile=" + percentile);
+        Options opt = builder
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .param("rate", String.valueOf(rate))
+                .jvmArgsAppend(jvmArgs.toArray(new String[0]))
+                .addProfiler(PercentileProfiler.class.getName())
+                .verbosity(VerboseMode.SILENT)
+                .build();
+
+        Collection<RunResult> results = new Runner(opt).run();
+        if (results.size() != 1) {
+            throw new IllegalStateException("Expected one benchmark to search, got " + results.size());
+        }
+        return new Profile(results.iterator().next());
+    }
+
+    private static void report(TreeMap<Double, Profile> probes, double percentile, double target) {
+        System.out.println();
+        System.out.printf("%12s %12s", "offered/s", "achieved/s");
+        Profile first = probes.firstEntry().getValue();
+        for (String label : first.latencies.keySet()) {
+            System.out.printf(" %10s", label);
+        }
+        System.out.printf(" %10s%n", "p" + fmt(percentile) + " <= " + fmt(target));
+        for (Map.Entry<Double, Profile> e : probes.entrySet()) {
+            Profile p = e.getValue();
+            System.out.printf("%12.0f %12.0f", e.getKey(), p.achieved);
+            for (double v : p.latencies.values()) {
+                System.out.printf(" %10.1f", v);
+            }
+            System.out.printf(" %10s%n", p.slo <= target ? "pass" : "FAIL");
+        }
+        System.out.println("(latencies in us)");
+    }
+
+    private static String fmt(double v) {
+        return (v == Math.rint(v)) ? String.valueOf((long) v) : String.valueOf(v);
+    }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_56_SampleJournal {
+
+    /*
+     * Mode.SampleTime in JMHSample_02_BenchmarkModes.measureSamples collapses the samples into
+     * a histogram, and prints the percentiles. When the p99.9 is bad, the question is always
+     * "when": did the slow samples come together, in one iteration, right at a GC pause, or
+     * right after a deoptimization? The histogram has thrown the time away.
+     * JMHSample_02_BenchmarkModes.measureSamples中的Mode.SampleTime把样本汇总成一个直方图，并打印百分位。
+     * 当p99.9很糟糕时，问题总是"什么时候"：这些慢样本是不是聚集在一起出现的，在某一次迭代中，
+     * 恰好在GC暂停时，或者恰好在一次反优化之后？直方图已经把时间信息丢掉了。
+     *
+     * The journal keeps every sample: the time stamp, the duration, the thread index and the
+     * iteration, in a memory-mapped, append-only binary file:
+     *  - every thread reserves a chunk of CHUNK_RECORDS records at a time with one atomic
+     *    add, and fills it with absolute puts. Nothing allocates, nothing locks, and the
+     *    page cache writes the file behind our back;
+     *  - the file grows by REGION_CHUNKS chunks at a time: the first thread to reserve a
+     *    chunk in a new region maps it, so the file is only as big as the run needs;
+     *  - the time stamps are nanoseconds of JVM uptime, so they line up with the "uptime"
+     *    decoration of -Xlog:gc and -Xlog:jit+compilation;
+     *  - the iterations are numbered 1, 2, ... in measurement, and -1, -2, ... in warmup.
+     * The benchmark times itself with Journal.start() and Journal.stop(): JMH does not expose
+     * its own samples. The JMH SampleTime score is still there, for comparison.
+     * 日志保存每一个样本：时间戳、持续时间、线程索引和迭代，保存在一个内存映射的、只追加的二进制文件中：
+     *  - 每个线程每次用一次原子加法预留一个包含CHUNK_RECORDS条记录的块，并用绝对位置的put填充它。
+     *    没有分配，没有锁，页面缓存在背后写入文件；
+     *  - 文件每次增长REGION_CHUNKS个块：第一个在新区域中预留块的线程负责映射该区域，这样文件只会和这次运行所需的一样大；
+     *  - 时间戳是JVM运行时间的纳秒数，这样它们就能和-Xlog:gc及-Xlog:jit+compilation的"uptime"修饰对上；
+     *  - 迭代在测量阶段编号为1, 2, ...，在预热阶段编号为-1, -2, ...。
+     * 基准测试用Journal.start()和Journal.stop()给自己计时：JMH并不公开它自己的样本。JMH的SampleTime分数仍然保留，用于比较。
+     *
+     * JournalReader builds the histogram, the percentiles per time bucket, and the slowest
+     * samples from the file, offline.
+     * JournalReader离线地从文件中构建直方图、每个时间桶的百分位以及最慢的样本。
+     */
+
+    /*
+     * File layout, little endian:
+     *   header: magic "JMHJ" (int), version (int), used bytes (long), dropped samples (long),
+     *           padding to HEADER_BYTES;
+     *   records: uptime nanos at the end of the sample (long), duration nanos (long),
+     *            thread index + 1 (int, 0 for the unused tail of a chunk), iteration (int).
+     * 文件布局，小端序：
+     *   头部：魔数"JMHJ"(int)、版本(int)、已用字节数(long)、丢弃的样本数(long)，填充到HEADER_BYTES；
+     *   记录：样本结束时的JVM运行纳秒数(long)、持续纳秒数(long)、线程索引 + 1(int，块中未用的尾部为0)、迭代(int)。
+     */
+
+    static final int MAGIC = 0x4A4D484A;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 24;
+    static final int CHUNK_RECORDS = 4096;
+    static final long CHUNK_BYTES = (long) CHUNK_RECORDS * RECORD_BYTES;
+    static final int REGION_CHUNKS = 256;
+    static final long REGION_BYTES = REGION_CHUNKS * CHUNK_BYTES;
+
+    /**
+     * The shared file, mapped one region at a time. -Djournal.capacity caps its size in MB,
+     * 4096 by default; the samples past the cap are dropped and counted.
+     * 共享的文件，每次映射一个区域。-Djournal.capacity以MB为单位限制它的大小，默认为4096；
+     * 超出上限的样本会被丢弃并计数。
+     */
+    @State(Scope.Benchmark)
+    public static class JournalFile {
+        FileChannel channel;
+        MappedByteBuffer header;
+        AtomicReferenceArray<MappedByteBuffer> regions;
+        long limit;
+        final AtomicLong next = new AtomicLong(HEADER_BYTES);
+        final AtomicLong dropped = new AtomicLong();
+
+        /*
+         * JVM uptime = System.nanoTime() + uptimeOffset
+         */
+        long uptimeOffset;
+
+        @Setup(Level.Trial)
+        public void open(BenchmarkParams params) throws IOException {
+            Path dir = Paths.get(System.getProperty("journal.dir", System.getProperty("java.io.tmpdir")));
+            Path file = dir.resolve(params.getBenchmark() + "-" + ProcessHandle.current().pid() + ".jnl");
+            long capacity = Long.getLong("journal.capacity", 4096) << 20;
+            int regionCount = (int) Math.max(1, (capacity - HEADER_BYTES) / REGION_BYTES);
+            limit = HEADER_BYTES + regionCount * REGION_BYTES;
+            regions = new AtomicReferenceArray<>(regionCount);
+
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+
+            uptimeOffset = ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000 - System.nanoTime();
+            System.out.println("Journal: " + file);
+        }
+
+        /**
+         * @return the offset of a fresh chunk, or -1 when the file is full
+         */
+        long reserve() {
+            long offset = next.getAndAdd(CHUNK_BYTES);
+            return (offset + CHUNK_BYTES <= limit) ? offset : -1;
+        }
+
+        /**
+         * @return the mapped region that holds the chunk at this offset
+         */
+        MappedByteBuffer region(long offset) {
+            int index = (int) ((offset - HEADER_BYTES) / REGION_BYTES);
+            MappedByteBuffer region = regions.get(index);
+            return (region != null) ? region : map(index);
+        }
+
+        private synchronized MappedByteBuffer map(int index) {
+            MappedByteBuffer region = regions.get(index);
+            if (region == null) {
+                try {
+                    region = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + index * REGION_BYTES, REGION_BYTES);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                region.order(ByteOrder.LITTLE_ENDIAN);
+                regions.set(index, region);
+            }
+            return region;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            header.putLong(8, Math.min(next.get(), limit));
+            header.putLong(16, dropped.get());
+            for (int r = 0; r < regions.length(); r++) {
+                MappedByteBuffer region = regions.get(r);
+                if (region != null) {
+                    region.force();
+                }
+            }
+            header.force();
+            channel.close();
+        }
+    }
+
+    /**
+     * The per-thread appender, fed from the JournalFile, as Local is fed from Shared in
+     * JMHSample_29_StatesDAG. Once the file is full, the appender remembers it, and drops the
+     * samples without touching the shared counter again.
+     * 每个线程的追加器，由JournalFile提供数据，就像JMHSample_29_StatesDAG中Local由Shared提供一样。
+     * 一旦文件写满，追加器会记住这一点，之后丢弃样本时不再访问共享计数器。
+     */
+    @State(Scope.Thread)
+    public static class Journal {
+        JournalFile file;
+        MappedByteBuffer buffer;
+        int thread;
+        int iteration;
+        int warmups;
+        int measurements;
+        int position;
+        int chunkEnd;
+        boolean full;
+        long dropped;
+
+        @Setup(Level.Trial)
+        public void setup(JournalFile file, ThreadParams threadParams) {
+            this.file = file;
+            this.thread = threadParams.getThreadIndex() + 1;
+        }
+
+        @Setup(Level.Iteration)
+        public void iteration(IterationParams iterationParams) {
+            iteration = (iterationParams.getType() == IterationType.WARMUP) ? -(++warmups) : ++measurements;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            file.dropped.addAndGet(dropped);
+        }
+
+        public long start() {
+            return System.nanoTime();
+        }
+
+        public void stop(long start) {
+            long end = System.nanoTime();
+            if (position == chunkEnd && (full || !nextChunk())) {
+                dropped++;
+                return;
+            }
+            int p = position;
+            buffer.putLong(p, end + file.uptimeOffset);
+            buffer.putLong(p + 8, end - start);
+            buffer.putInt(p + 16, thread);
+            buffer.putInt(p + 20, iteration);
+            position = p + RECORD_BYTES;
+        }
+
+        private boolean nextChunk() {
+            long chunk = file.reserve();
+            if (chunk < 0) {
+                full = true;
+                return false;
+            }
+            buffer = file.region(chunk);
+            position = (int) ((chunk - HEADER_BYTES) % REGION_BYTES);
+            chunkEnd = position + (int) CHUNK_BYTES;
+            return true;
+        }
+    }
+
+    /*
+     * The workload: some computation, and some garbage, so that the GC pauses show in the journal.
+     * 工作负载：一些计算，加上一些垃圾，这样GC暂停就会在日志中体现出来。
+     */
+
+    static Object work() {
+        Blackhole.consumeCPU(100);
+        return new byte[256];
+    }
+
+    @Benchmark
+    public Object plain() {
+        return work();
+    }
+
+    @Benchmark
+    public Object journaled(Journal journal) {
+        long start = journal.start();
+        Object result = work();
+        journal.stop(start);
+        return result;
+    }
+
+    /**
+     * Reads the journal, and prints:
+     *  - the percentiles of every iteration;
+     *  - the percentiles of every time bucket, -Dbucket=MILLIS, 100 by default;
+     *  - the slowest samples, -Dslowest=N, 20 by default.
+     * 读取日志，并打印：
+     *  - 每次迭代的百分位；
+     *  - 每个时间桶的百分位，-Dbucket=MILLIS，默认为100；
+     *  - 最慢的样本，-Dslowest=N，默认为20。
+     */
+    public static class JournalReader {
+
+        public static void main(String[] args) throws IOException {
+            if (args.length != 1) {
+                System.err.println("Usage: JournalReader <file.jnl>");
+                System.exit(1);
+            }
+            long bucketNanos = Long.getLong("bucket", 100) * 1_000_000;
+            int slowest = Integer.getInteger("slowest", 20);
+
+            TreeMap<Integer, JMHSample_55_LatencySLO.LatencyHistogram> iterations = new TreeMap<>();
+            TreeMap<Long, JMHSample_55_LatencySLO.LatencyHistogram> buckets = new TreeMap<>();
+            // [uptime, duration, thread, iteration], min-heap by duration
+            PriorityQueue<long[]> top = new PriorityQueue<>((a, b) -> Long.compare(a[1], b[1]));
+            long count = 0;
+            long dropped;
+
+            try (FileChannel channel = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ)) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IOException("Not a journal, or a different version: " + args[0]);
+                }
+                long used = header.getLong(8);
+                dropped = header.getLong(16);
+
+                for (long base = HEADER_BYTES; base < used; base += REGION_BYTES) {
+                    int size = (int) Math.min(REGION_BYTES, used - base);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, size);
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    for (int p = 0; p + RECORD_BYTES <= size; p += RECORD_BYTES) {
+                        int thread = buffer.getInt(p + 16);
+                        if (thread == 0) {
+                            continue;
+                        }
+                        long uptime = buffer.getLong(p);
+                        long duration = buffer.getLong(p + 8);
+                        int iteration = buffer.getInt(p + 20);
+                        count++;
+
+                        iterations.computeIfAbsent(iteration, k -> new JMHSample_55_LatencySLO.LatencyHistogram()).record(duration);
+                        if (iteration > 0) {
+                            buckets.computeIfAbsent(uptime / bucketNanos, k -> new JMHSample_55_LatencySLO.LatencyHistogram())
+                                    .record(duration);
+                            if (top.size() < slowest || top.peek()[1] < duration) {
+                                top.add(new long[]{uptime, duration, thread - 1, iteration});
+                                if (top.size() > slowest) {
+                                    top.poll();
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            System.out.printf("%d samples, %d dropped (the journal was full)%n", count, dropped);
+
+            System.out.println();
+            System.out.println("Per iteration, ns (negative iterations are warmup):");
+            header("iteration");
+            for (Map.Entry<Integer, JMHSample_55_LatencySLO.LatencyHistogram> e : iterations.entrySet()) {
+                row(String.valueOf(e.getKey()), e.getValue());
+            }
+
+            System.out.println();
+            System.out.printf("Per %d ms of JVM uptime, measurement only, ns:%n", bucketNanos / 1_000_000);
+            header("uptime, s");
+            for (Map.Entry<Long, JMHSample_55_LatencySLO.LatencyHistogram> e : buckets.entrySet()) {
+                row(String.format("%.3f", e.getKey() * bucketNanos / 1e9), e.getValue());
+            }
+
+            System.out.println();
+            System.out.printf("Slowest %d samples in measurement:%n", top.size());
+            System.out.printf("%12s %14s %8s %10s%n", "uptime, s", "duration, ns", "thread", "iteration");
+            long[][] sorted = top.toArray(new long[0][]);
+            Arrays.sort(sorted, (a, b) -> Long.compare(b[1], a[1]));
+            for (long[] s : sorted) {
+                System.out.printf("%12.6f %14d %8d %10d%n", s[0] / 1e9, s[1], s[2], s[3]);
+            }
+        }
+
+        private static void header(String key) {
+            System.out.printf("%12s %10s %10s %10s %10s %10s %12s%n", key, "count", "p50", "p90", "p99", "p99.9", "max");
+        }
+
+        private static void row(String key, JMHSample_55_LatencySLO.LatencyHistogram h) {
+            System.out.printf("%12s %10d %10d %10d %10d %10d %12d%n", key, h.total,
+                    h.percentile(50), h.percentile(90), h.percentile(99), h.percentile(99.9), h.max);
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * Compare the plain and journaled scores first: the difference is the price of the
+     * journal, two System.nanoTime() calls and four stores per sample. Then run the reader
+     * on the printed journal file, next to the GC log: the slowest samples should sit at the
+     * GC pauses.
+     * 首先比较plain和journaled的分数：差值就是日志的代价，每个样本两次System.nanoTime()调用和四次存储。
+     * 然后对打印出的日志文件运行读取器，并对照GC日志：最慢的样本应该正好落在GC暂停处。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_56 -jvmArgsAppend "-Djournal.dir=/tmp -Xlog:gc:file=/tmp/gc.log:uptime"
+     *    $ java -Dbucket=250 -cp target/benchmarks.jar \
+     *        'com.weiquding.jmh.samples.JMHSample_56_SampleJournal$JournalReader' /tmp/<printed journal file>
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_56_SampleJournal.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_57_DoubleAccumulators {
+
+    /*
+     * JMHSample_03_States.measureShared does state.x++ on a shared volatile double. Volatile
+     * makes every read and every write visible, but not the read-modify-write: two threads
+     * read the same x, both add one, both write back, and one update is lost. On top of that,
+     * every write steals the cache line from the other threads.
+     * JMHSample_03_States.measureShared对一个共享的volatile double执行state.x++。volatile让每次读和每次写都可见，
+     * 但不能保证读-改-写：两个线程读到同一个x，都加一，都写回，于是丢失了一次更新。
+     * 除此之外，每次写都会从其他线程那里抢走缓存行。
+     *
+     * There is no AtomicDouble in the JDK. Here are the correct ways to add doubles concurrently:
+     *  - cas: a long field with the raw bits of the double, and a VarHandle CAS loop on
+     *    Double.doubleToRawLongBits. Correct, but every add is a contended CAS on one line;
+     *  - adder: java.util.concurrent.atomic.DoubleAdder, which grows the cells on contention;
+     *  - striped: our own fixed set of CAS cells, one cache line apart, each thread on its own
+     *    cell. No contention if there are enough cells, but the sum reads all of them;
+     *  - confined: JMHSample_03_States.ThreadState style, a plain double per thread, merged
+     *    into the shared cas accumulator every MERGE_EVERY adds. The cheapest, but the shared
+     *    sum lags behind by up to MERGE_EVERY adds per thread;
+     * and the volatile reference from JMHSample_03_States, which loses updates.
+     * JDK中没有AtomicDouble。以下是并发累加double的正确方式：
+     *  - cas：一个保存double原始位的long字段，以及在Double.doubleToRawLongBits上的VarHandle CAS循环。
+     *    正确，但每次加法都是在同一个缓存行上有竞争的CAS；
+     *  - adder：java.util.concurrent.atomic.DoubleAdder，它在出现竞争时扩展单元；
+     *  - striped：我们自己的一组固定的CAS单元，相隔一个缓存行，每个线程使用自己的单元。
+     *    单元足够多时就没有竞争，但求和时要读取所有单元；
+     *  - confined：JMHSample_03_States.ThreadState的风格，每个线程一个普通的double，
+     *    每MERGE_EVERY次加法合并到共享的cas累加器中。开销最小，但共享的总和每个线程最多落后MERGE_EVERY次加法；
+     * 以及来自JMHSample_03_States的volatile参照，它会丢失更新。
+     *
+     * Every thread counts its own adds, and after every iteration the sum is checked against
+     * the count. The increment is 1.0, so that the sums are exact integers, and any difference
+     * is a lost update, not a rounding error. The correct accumulators fail the run on a lost
+     * update; the volatile one only reports them.
+     * 每个线程都统计自己的加法次数，每次迭代之后都会用这个计数检查总和。增量为1.0，这样总和就是精确的整数，
+     * 任何差异都是丢失的更新，而不是舍入误差。正确的累加器在出现丢失更新时让运行失败；volatile累加器只报告它们。
+     */
+
+    static final double DELTA = 1.0;
+    static final int MERGE_EVERY = 1024;
+
+    /**
+     * A double with a CAS add on its raw bits.
+     * 在原始位上进行CAS加法的double。
+     */
+    public static class CasDouble {
+        private static final VarHandle BITS;
+
+        static {
+            try {
+                BITS = MethodHandles.lookup().findVarHandle(CasDouble.class, "bits", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private volatile long bits = Double.doubleToRawLongBits(0.0);
+
+        public void add(double delta) {
+            long prev;
+            long next;
+            do {
+                prev = (long) BITS.getVolatile(this);
+                next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + delta);
+            } while (!BITS.compareAndSet(this, prev, next));
+        }
+
+        public double sum() {
+            return Double.longBitsToDouble(bits);
+        }
+    }
+
+    /**
+     * Fixed CAS cells, CELL_STRIDE longs apart, so that no two cells share a cache line,
+     * including the adjacent line prefetch.
+     * 固定的CAS单元，相隔CELL_STRIDE个long，这样任何两个单元都不会共享一个缓存行，包括相邻缓存行预取。
+     */
+    public static class StripedDouble {
+        private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+        static final int CELL_STRIDE = 16;
+
+        private final long[] cells;
+        private final int mask;
+
+        public StripedDouble(int stripes) {
+            int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+            mask = n - 1;
+            // one leading stride of padding, so that the first cell is not next to the array header
+            cells = new long[(n + 1) * CELL_STRIDE];
+        }
+
+        public void add(int stripe, double delta) {
+            int i = ((stripe & mask) + 1) * CELL_STRIDE;
+            long prev;
+            long next;
+            do {
+                prev = (long) CELLS.getVolatile(cells, i);
+                next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + delta);
+            } while (!CELLS.compareAndSet(cells, i, prev, next));
+        }
+
+        public double sum() {
+            double sum = 0;
+            for (int c = 1; c <= mask + 1; c++) {
+                sum += Double.longBitsToDouble((long) CELLS.getVolatile(cells, c * CELL_STRIDE));
+            }
+            return sum;
+        }
+    }
+
+    /*
+     * ----------------------------- states ------------------------------
+     */
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        volatile double plain;
+        CasDouble cas;
+        DoubleAdder adder;
+        StripedDouble striped;
+        CasDouble merged;
+
+        String variant;
+        final ConcurrentLinkedQueue<Local> locals = new ConcurrentLinkedQueue<>();
+
+        @Setup(Level.Trial)
+        public void setup(BenchmarkParams params) {
+            cas = new CasDouble();
+            adder = new DoubleAdder();
+            striped = new StripedDouble(2 * Runtime.getRuntime().availableProcessors());
+            merged = new CasDouble();
+            String benchmark = params.getBenchmark();
+            variant = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+        }
+
+        /*
+         * All benchmark threads are done by now. The sums and the counts are cumulative over
+         * the trial: nothing is reset, so no reset can race with the adds.
+         * 此时所有基准测试线程都已经完成。总和与计数在整个试验中是累计的：没有任何重置，因此也不会有重置与加法发生竞争。
+         */
+        @TearDown(Level.Iteration)
+        public void check() {
+            long adds = 0;
+            double pending = 0;
+            for (Local l : locals) {
+                adds += l.adds;
+                pending += l.pending;
+            }
+            double sum;
+            switch (variant) {
+                case "volatileDouble":
+                    sum = plain;
+                    break;
+                case "cas":
+                    sum = cas.sum();
+                    break;
+                case "adder":
+                    sum = adder.sum();
+                    break;
+                case "striped":
+                    sum = striped.sum();
+                    break;
+                case "confined":
+                    sum = merged.sum() + pending;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown variant: " + variant);
+            }
+            double expected = adds * DELTA;
+            if (sum != expected) {
+                String message = String.format("%s lost %.0f of %d updates", variant, (expected - sum) / DELTA, adds);
+                if (variant.equals("volatileDouble")) {
+                    System.out.print("(" + message + ") ");
+                } else {
+                    throw new IllegalStateException(message);
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        long adds;
+        double pending;
+        int stripe;
+
+        @Setup(Level.Trial)
+        public void setup(Shared shared, ThreadParams threadParams) {
+            stripe = threadParams.getThreadIndex();
+            shared.locals.add(this);
+        }
+    }
+
+    /*
+     * ----------------------------- benchmarks ------------------------------
+     */
+
+    @Benchmark
+    public void volatileDouble(Shared s, Local l) {
+        s.plain += DELTA;
+        l.adds++;
+    }
+
+    @Benchmark
+    public void cas(Shared s, Local l) {
+        s.cas.add(DELTA);
+        l.adds++;
+    }
+
+    @Benchmark
+    public void adder(Shared s, Local l) {
+        s.adder.add(DELTA);
+        l.adds++;
+    }
+
+    @Benchmark
+    public void striped(Shared s, Local l) {
+        s.striped.add(l.stripe, DELTA);
+        l.adds++;
+    }
+
+    @Benchmark
+    public void confined(Shared s, Local l) {
+        l.pending += DELTA;
+        if ((++l.adds & (MERGE_EVERY - 1)) == 0) {
+            s.merged.add(l.pending);
+            l.pending = 0;
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method runs every accumulator at 1, 2, 4 and 8 threads, and prints the total
+     * throughput. Expect volatileDouble and cas to get slower with every thread added, adder
+     * and striped to scale once the cells are spread, and confined to scale almost linearly.
+     * Note the thread counts above the number of cores only show the time sharing.
+     * main方法以1、2、4和8个线程运行每个累加器，并打印总吞吐量。可以预期volatileDouble和cas每增加一个线程就变得更慢，
+     * adder和striped在单元分散开之后能够扩展，而confined几乎线性扩展。注意超过核心数的线程数只能体现分时共享。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_57 -t 4
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        int[] threadCounts = {1, 2, 4, 8};
+
+        // variant -> threads -> ops/us
+        Map<String, Map<Integer, Double>> scores = new TreeMap<>();
+        for (int threads : threadCounts) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_57_DoubleAccumulators.class.getSimpleName())
+                    .threads(threads)
+                    .verbosity(VerboseMode.SILENT)
+                    .build();
+            for (RunResult rr : new Runner(opt).run()) {
+                String label = rr.getPrimaryResult().getLabel();
+                scores.computeIfAbsent(label, k -> new TreeMap<>()).put(threads, rr.getPrimaryResult().getScore());
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-16s", "ops/us");
+        for (int threads : threadCounts) {
+            System.out.printf("%12s", threads + " threads");
+        }
+        System.out.println();
+        for (Map.Entry<String, Map<Integer, Double>> e : scores.entrySet()) {
+            System.out.printf("%-16s", e.getKey());
+            for (int threads : threadCounts) {
+                Double score = e.getValue().get(threads);
+                System.out.printf("%12s", (score == null) ? "failed" : String.format("%.2f", score));
+            }
+            System.out.println();
+        }
+    }
+
+}
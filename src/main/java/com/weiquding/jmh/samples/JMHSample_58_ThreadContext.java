@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+@Fork(1)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+public class JMHSample_58_ThreadContext {
+
+    /*
+     * JMHSample_03_States and JMHSample_04_DefaultState show the thread state JMH injects is
+     * just a field load. Production code does not get its per-thread context injected: it
+     * reaches it through a ThreadLocal, which is a hash lookup in the thread's own map, keyed
+     * by weak references. With a platform thread pool, the maps are few and long-lived. With
+     * a virtual thread per task, every task pays for a fresh map, and the memory for it.
+     * JMHSample_03_States和JMHSample_04_DefaultState展示了JMH注入的线程状态只是一次字段加载。
+     * 生产代码的线程上下文并不是注入的：它通过ThreadLocal获取，这是在线程自己的map中进行的哈希查找，
+     * 以弱引用作为键。使用平台线程池时，这样的map很少而且存活时间很长。每个任务一个虚拟线程时，
+     * 每个任务都要为一个新的map以及它占用的内存付出代价。
+     *
+     * The ways to get to the context, ACCESSES accesses per op:
+     *  - jmhState: the @State(Scope.Thread) field, the lower bound;
+     *  - threadLocal: ThreadLocal.get(), with $otherLocals other ThreadLocals set on the thread,
+     *    to fill its map the way frameworks do;
+     *  - inheritable: InheritableThreadLocal.get(), copied from the parent at thread creation;
+     *  - scopedValue: ScopedValue.get() inside ScopedValue.where(..).run(..) (JDK 21+, with
+     *    --enable-preview before JDK 25). The binding is immutable and bounded by the run;
+     *  - currentThread: Thread.currentThread() alone. A field of a custom Thread subclass is
+     *    this, and one load; JMH runs on its own threads, so the field itself is only measured
+     *    on the threads of the spawn benchmark below;
+     *  - indexedArray: an array slot indexed by the thread id, no hashing, no weak references,
+     *    but one slot per possible thread.
+     * 获取上下文的方式，每个操作访问ACCESSES次：
+     *  - jmhState：@State(Scope.Thread)的字段，下界；
+     *  - threadLocal：ThreadLocal.get()，线程上还设置了$otherLocals个其他的ThreadLocal，像各种框架那样填充它的map；
+     *  - inheritable：InheritableThreadLocal.get()，在线程创建时从父线程复制；
+     *  - scopedValue：在ScopedValue.where(..).run(..)内部调用ScopedValue.get()(JDK 21+，JDK 25之前需要--enable-preview)。
+     *    绑定是不可变的，并且受限于run的范围；
+     *  - currentThread：只调用Thread.currentThread()。自定义Thread子类的字段就是这个再加一次加载；
+     *    JMH在它自己的线程上运行，所以字段本身只在下面spawn基准测试的线程上度量；
+     *  - indexedArray：以线程id为索引的数组槽位，没有哈希，没有弱引用，但每个可能的线程都要占一个槽位。
+     *
+     * The spawn benchmark starts $count platform or virtual threads; each one binds its context,
+     * does ACCESSES accesses, and waits until all are alive. ContextProfiler reports the access
+     * latency on these threads, and the resident memory per thread, with all threads alive.
+     * spawn基准测试启动$count个平台线程或虚拟线程；每个线程绑定自己的上下文，访问ACCESSES次，并等待所有线程都存活。
+     * ContextProfiler报告这些线程上的访问延迟，以及所有线程都存活时每个线程的常驻内存。
+     */
+
+    static final int ACCESSES = 100;
+
+    /**
+     * The per-thread context: what a request handler would keep, a few fields.
+     * 每个线程的上下文：请求处理器会保存的东西，几个字段。
+     */
+    public static class Context {
+        final long requestId;
+        final String user;
+        final int[] counters = new int[4];
+
+        Context(long requestId) {
+            this.requestId = requestId;
+            this.user = "user-" + requestId;
+        }
+    }
+
+    /**
+     * A platform thread that carries its context in a field.
+     * 用一个字段携带其上下文的平台线程。
+     */
+    public static class ContextThread extends Thread {
+        Context context;
+
+        ContextThread(Runnable task) {
+            super(task);
+        }
+    }
+
+    static final ThreadLocal<Context> LOCAL = new ThreadLocal<>();
+    static final InheritableThreadLocal<Context> INHERITABLE = new InheritableThreadLocal<>();
+
+    static final int INDEXED_MASK = (1 << 20) - 1;
+    static final Context[] INDEXED = new Context[INDEXED_MASK + 1];
+
+    @SuppressWarnings("deprecation")
+    static int threadIndex() {
+        // Thread.threadId() is JDK 19+. Collisions of the ids modulo the array size are ignored here.
+        return (int) Thread.currentThread().getId() & INDEXED_MASK;
+    }
+
+    /**
+     * java.lang.ScopedValue through method handles: the sample compiles on JDK 17.
+     * 通过方法句柄使用java.lang.ScopedValue：这个示例要在JDK 17上编译。
+     */
+    static final class ScopedValues {
+        static final Object KEY;
+        static final MethodHandle WHERE;
+        static final MethodHandle RUN;
+        static final MethodHandle GET;
+
+        static {
+            Object key = null;
+            MethodHandle where = null;
+            MethodHandle run = null;
+            MethodHandle get = null;
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                Class<?> sv = Class.forName("java.lang.ScopedValue");
+                Class<?> carrier = Class.forName("java.lang.ScopedValue$Carrier");
+                key = lookup.findStatic(sv, "newInstance", MethodType.methodType(sv)).invoke();
+                where = lookup.findStatic(sv, "where", MethodType.methodType(carrier, sv, Object.class));
+                run = lookup.findVirtual(carrier, "run", MethodType.methodType(void.class, Runnable.class));
+                get = lookup.findVirtual(sv, "get", MethodType.methodType(Object.class));
+            } catch (Throwable e) {
+                // no ScopedValue, or a preview API without --enable-preview
+                key = null;
+            }
+            KEY = key;
+            WHERE = where;
+            RUN = run;
+            GET = get;
+        }
+
+        static boolean available() {
+            return KEY != null;
+        }
+
+        static void run(Context value, Runnable task) throws Throwable {
+            RUN.invoke(WHERE.invoke(KEY, value), task);
+        }
+
+        static Context get() throws Throwable {
+            return (Context) GET.invoke(KEY);
+        }
+    }
+
+    /*
+     * ----------------------------- access latency on the JMH threads ------------------------------
+     */
+
+    @State(Scope.Thread)
+    public static class Contexts {
+        @Param({"0", "64"})
+        int otherLocals;
+
+        Context context;
+        final List<ThreadLocal<Object>> others = new ArrayList<>();
+
+        @Setup
+        public void setup() {
+            context = new Context(Thread.currentThread().getName().hashCode());
+            LOCAL.set(context);
+            INHERITABLE.set(context);
+            INDEXED[threadIndex()] = context;
+            for (int i = 0; i < otherLocals; i++) {
+                ThreadLocal<Object> other = new ThreadLocal<>();
+                other.set(i);
+                others.add(other);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            LOCAL.remove();
+            INHERITABLE.remove();
+            INDEXED[threadIndex()] = null;
+            for (ThreadLocal<Object> other : others) {
+                other.remove();
+            }
+        }
+    }
+
+    /*
+     * The Blackhole in the loops is not only a sink: its volatile reads keep the compiler from
+     * hoisting the lookups out of the loop, see JMHSample_11_Loops. Its cost is in every score,
+     * and jmhState shows how much it is.
+     * 循环中的Blackhole不仅仅是一个沉入点：它的volatile读阻止编译器把查找提升到循环之外，参见JMHSample_11_Loops。
+     * 它的开销包含在每个分数中，jmhState展示了它有多少。
+     */
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(ACCESSES)
+    public void jmhState(Contexts c, Blackhole bh) {
+        for (int i = 0; i < ACCESSES; i++) {
+            bh.consume(c.context);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(ACCESSES)
+    public void threadLocal(Contexts c, Blackhole bh) {
+        for (int i = 0; i < ACCESSES; i++) {
+            bh.consume(LOCAL.get());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(ACCESSES)
+    public void inheritable(Contexts c, Blackhole bh) {
+        for (int i = 0; i < ACCESSES; i++) {
+            bh.consume(INHERITABLE.get());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(ACCESSES)
+    public void scopedValue(Contexts c, Blackhole bh) throws Throwable {
+        if (!ScopedValues.available()) {
+            throw new IllegalStateException("No ScopedValue on JDK " + System.getProperty("java.version")
+                    + ", it needs JDK 21+, and --enable-preview before JDK 25");
+        }
+        // the binding is part of the cost: the value is only there inside the run
+        ScopedValues.run(c.context, () -> {
+            try {
+                for (int i = 0; i < ACCESSES; i++) {
+                    bh.consume(ScopedValues.get());
+                }
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(ACCESSES)
+    public void currentThread(Blackhole bh) {
+        for (int i = 0; i < ACCESSES; i++) {
+            bh.consume(Thread.currentThread());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(ACCESSES)
+    public void indexedArray(Contexts c, Blackhole bh) {
+        for (int i = 0; i < ACCESSES; i++) {
+            bh.consume(INDEXED[threadIndex()]);
+        }
+    }
+
+    /*
+     * ----------------------------- many short-lived threads ------------------------------
+     */
+
+    @State(Scope.Benchmark)
+    public static class Population {
+        @Param({"10000"})
+        int count;
+
+        @Param({"platform", "virtual"})
+        String threads;
+
+        @Param({"threadLocal", "inheritable", "scopedValue", "threadField", "indexedArray"})
+        String mechanism;
+
+        ExecutorService virtual;
+
+        @Setup
+        public void setup() {
+            if (threads.equals("virtual")) {
+                virtual = JMHSample_53_VirtualThreads.newVirtualThreadExecutor();
+                if (virtual == null) {
+                    throw new IllegalStateException("Virtual threads need JDK 21+, this is " + System.getProperty("java.version"));
+                }
+                if (mechanism.equals("threadField")) {
+                    throw new IllegalStateException("Virtual threads cannot be subclassed, there is no thread field");
+                }
+            } else if (count > JMHSample_53_VirtualThreads.MAX_PLATFORM_THREADS) {
+                throw new IllegalStateException("platform would need " + count + " threads, the limit is "
+                        + JMHSample_53_VirtualThreads.MAX_PLATFORM_THREADS);
+            }
+            if (mechanism.equals("scopedValue") && !ScopedValues.available()) {
+                throw new IllegalStateException("No ScopedValue on JDK " + System.getProperty("java.version")
+                        + ", it needs JDK 21+, and --enable-preview before JDK 25");
+            }
+            if (mechanism.equals("indexedArray") && count > INDEXED_MASK) {
+                throw new IllegalStateException("indexedArray holds " + (INDEXED_MASK + 1) + " threads at most");
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            if (virtual != null) {
+                virtual.shutdown();
+                virtual.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public long spawn(Population p) throws InterruptedException {
+        CountDownLatch alive = new CountDownLatch(p.count);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(p.count);
+        LongAdder accessNanos = new LongAdder();
+
+        // for the inheritable flavor, the children copy this at creation
+        INHERITABLE.set(new Context(-1));
+
+        long memoryBefore = JMHSample_53_VirtualThreads.residentMemory();
+        long start = System.nanoTime();
+
+        for (int t = 0; t < p.count; t++) {
+            Context context = new Context(t);
+            Runnable task = () -> {
+                try {
+                    accessNanos.add(access(p.mechanism, context));
+                    alive.countDown();
+                    release.await();
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    if (p.mechanism.equals("indexedArray")) {
+                        INDEXED[threadIndex()] = null;
+                    }
+                    done.countDown();
+                }
+            };
+            if (p.virtual != null) {
+                p.virtual.execute(task);
+            } else {
+                new ContextThread(task).start();
+            }
+        }
+
+        alive.await();
+        long memory = JMHSample_53_VirtualThreads.residentMemory() - memoryBefore;
+        release.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        INHERITABLE.remove();
+
+        Stats.last = new Stats(p.count, (double) accessNanos.sum() / p.count / ACCESSES, (double) memory / p.count);
+        return elapsed;
+    }
+
+    /**
+     * Binds the context on the current thread, and times ACCESSES accesses to it.
+     * 在当前线程上绑定上下文，并对ACCESSES次访问计时。
+     */
+    static long access(String mechanism, Context context) throws Throwable {
+        long sum = 0;
+        long start;
+        switch (mechanism) {
+            case "threadLocal":
+                LOCAL.set(context);
+                start = System.nanoTime();
+                for (int i = 0; i < ACCESSES; i++) {
+                    sum += LOCAL.get().requestId;
+                }
+                break;
+            case "inheritable":
+                start = System.nanoTime();
+                for (int i = 0; i < ACCESSES; i++) {
+                    sum += INHERITABLE.get().requestId;
+                }
+                break;
+            case "scopedValue":
+                long[] elapsed = new long[1];
+                ScopedValues.run(context, () -> {
+                    long s = System.nanoTime();
+                    long acc = 0;
+                    try {
+                        for (int i = 0; i < ACCESSES; i++) {
+                            acc += ScopedValues.get().requestId;
+                        }
+                    } catch (Throwable e) {
+                        throw new IllegalStateException(e);
+                    }
+                    elapsed[0] = System.nanoTime() - s;
+                    sink = acc;
+                });
+                return elapsed[0];
+            case "threadField":
+                ((ContextThread) Thread.currentThread()).context = context;
+                start = System.nanoTime();
+                for (int i = 0; i < ACCESSES; i++) {
+                    sum += ((ContextThread) Thread.currentThread()).context.requestId;
+                }
+                break;
+            case "indexedArray":
+                INDEXED[threadIndex()] = context;
+                start = System.nanoTime();
+                for (int i = 0; i < ACCESSES; i++) {
+                    sum += INDEXED[threadIndex()].requestId;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown mechanism: " + mechanism);
+        }
+        long elapsed = System.nanoTime() - start;
+        sink = sum;
+        return elapsed;
+    }
+
+    /*
+     * Keeps the sums of the spawned threads alive. One store per thread, not per access.
+     * 让新启动线程的求和结果保持存活。每个线程存储一次，而不是每次访问存储一次。
+     */
+    static volatile long sink;
+
+    static final class Stats {
+        static volatile Stats last;
+
+        final int count;
+        final double accessNanos;
+        final double memoryPerThread;
+
+        Stats(int count, double accessNanos, double memoryPerThread) {
+            this.count = count;
+            this.accessNanos = accessNanos;
+            this.memoryPerThread = memoryPerThread;
+        }
+    }
+
+    public static class ContextProfiler implements InternalProfiler {
+
+        @Override
+        public String getDescription() {
+            return "Context access latency and resident memory per thread";
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            Stats.last = null;
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            Stats s = Stats.last;
+            if (s == null) {
+                return Arrays.asList();
+            }
+            return Arrays.asList(
+                    new ScalarResult("access", s.accessNanos, "ns", AggregationPolicy.AVG),
+                    new ScalarResult("memory", s.memoryPerThread, "B/thread", AggregationPolicy.AVG));
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * On the JMH threads, expect threadLocal to cost a few loads more than jmhState, and more
+     * with $otherLocals, when the lookup misses the first probe and walks the map. On the spawned
+     * threads, the first accesses run in the interpreter, so compare the access latency
+     * between the mechanisms, not with the JMH threads. The memory per thread includes the
+     * thread itself: compare the mechanisms at the same thread flavor.
+     * 在JMH线程上，可以预期threadLocal比jmhState多几次加载的开销，在$otherLocals较多、查找第一次探测未命中而需要遍历map时，开销更大。
+     * 在新启动的线程上，最初的访问运行在解释器中，所以应该在不同方式之间比较访问延迟，而不是与JMH线程比较。
+     * 每个线程的内存包括线程本身：应该在相同的线程类型下比较不同的方式。
+     *
+     * The main method skips the flavors this JDK does not have, and spawns virtual threads
+     * without threadField. On the command line, do the same with -p mechanism=... for
+     * -p threads=virtual.
+     * main方法会跳过当前JDK不支持的方式，并且在启动虚拟线程时不使用threadField。在命令行上，
+     * 对-p threads=virtual也要用-p mechanism=...做同样的处理。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_58 \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_58_ThreadContext$ContextProfiler'
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        List<String> mechanisms = new ArrayList<>(Arrays.asList("threadLocal", "inheritable", "threadField", "indexedArray"));
+        List<String> excludes = new ArrayList<>();
+        if (ScopedValues.available()) {
+            mechanisms.add("scopedValue");
+        } else {
+            System.out.println("No ScopedValue on JDK " + System.getProperty("java.version") + ", skipping it.");
+            excludes.add(".*scopedValue");
+        }
+
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.include(JMHSample_58_ThreadContext.class.getSimpleName() + "\\.(?!spawn)");
+        for (String exclude : excludes) {
+            builder.exclude(exclude);
+        }
+        new Runner(builder.build()).run();
+
+        spawn("platform", mechanisms);
+        if (JMHSample_53_VirtualThreads.hasVirtualThreads()) {
+            // virtual threads cannot be subclassed, Population rejects threadField for them
+            List<String> virtualMechanisms = new ArrayList<>(mechanisms);
+            virtualMechanisms.remove("threadField");
+            spawn("virtual", virtualMechanisms);
+        } else {
+            System.out.println("No virtual threads on JDK " + System.getProperty("java.version") + ", spawning platform threads only.");
+        }
+    }
+
+    private static void spawn(String threads, List<String> mechanisms) throws RunnerException {
+        Options spawn = new OptionsBuilder()
+                .include(JMHSample_58_ThreadContext.class.getSimpleName() + ".spawn")
+                .param("threads", threads)
+                .param("mechanism", mechanisms.toArray(new String[0]))
+                .addProfiler(ContextProfiler.class.getName())
+                .build();
+        new Runner(spawn).run();
+    }
+
+}
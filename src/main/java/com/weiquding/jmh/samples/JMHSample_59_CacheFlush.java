@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class JMHSample_59_CacheFlush {
+
+    /*
+     * JMHSample_07_FixtureLevelInvocation.LaggingState sleeps before every call of
+     * measureCold, so that the executor threads go to sleep, and have to be woken up.
+     * That is one kind of cold. But the caches stay warm through the sleep: nothing else
+     * ran in the meantime, the data and the code of the benchmark are still in L1/L2/LLC,
+     * and the branch predictors still remember the benchmark's branches. In production,
+     * between two requests to the same cold path, everything else runs.
+     * JMHSample_07_FixtureLevelInvocation.LaggingState在每次调用measureCold之前都会睡眠，
+     * 这样执行器线程就会进入睡眠，不得不被唤醒。这是一种"冷"。但缓存在睡眠期间保持温热：
+     * 这段时间里没有运行别的东西，基准测试的数据和代码仍然在L1/L2/LLC中，分支预测器也仍然记得基准测试的分支。
+     * 在生产环境中，在对同一条冷路径的两次请求之间，所有其他东西都在运行。
+     *
+     * FlushState runs before every call, in @Setup(Level.Invocation), outside the measured time:
+     *  - none: nothing, the hot reference;
+     *  - llc: reads one long per cache line over a buffer 1.5x the size of the last level
+     *    cache, read from /sys/devices/system/cpu/cpu0/cache. The buffer lines evict the
+     *    benchmark data from every level, the code from L2 and LLC, and the TLB entries.
+     *    Reads, not writes: the lines stay clean, and no write-backs of the sweep slow down
+     *    the measured call;
+     *  - llcBranches: llc, then a run of random, data-dependent branches, to scramble the
+     *    global branch history and the pattern tables.
+     * All three modes go through the same Level.Invocation machinery, so its timing overhead
+     * (see the Level.Invocation Javadoc) is the same in the cold and the hot scores.
+     * FlushState在每次调用之前运行，位于@Setup(Level.Invocation)中，在度量时间之外：
+     *  - none：什么都不做，热的参照；
+     *  - llc：在一个大小为末级缓存1.5倍的缓冲区上，每个缓存行读取一个long，末级缓存大小从
+     *    /sys/devices/system/cpu/cpu0/cache读取。缓冲区的缓存行会把基准测试的数据从每一级缓存中驱逐出去，
+     *    把代码从L2和LLC中驱逐出去，并驱逐TLB条目。用读而不是写：缓存行保持干净，扫描不会产生写回来拖慢被度量的调用；
+     *  - llcBranches：先执行llc，再执行一段随机的、依赖数据的分支，以打乱全局分支历史和模式表。
+     * 三种模式都经过相同的Level.Invocation机制，所以它的计时开销(参见Level.Invocation的Javadoc)
+     * 在冷分数和热分数中是一样的。
+     */
+
+    /**
+     * The last level cache, as the kernel reports it.
+     * 内核报告的末级缓存。
+     */
+    public static class CacheInfo {
+        static final long DEFAULT_LLC = 32L << 20;
+
+        /**
+         * @return the size of the highest level data or unified cache of cpu0, in bytes,
+         * -Dflush.llc=BYTES if set, or DEFAULT_LLC if the kernel does not say
+         */
+        public static long lastLevelCacheSize() {
+            Long override = Long.getLong("flush.llc");
+            if (override != null) {
+                return override;
+            }
+            int bestLevel = -1;
+            long bestSize = DEFAULT_LLC;
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get("/sys/devices/system/cpu/cpu0/cache"), "index*")) {
+                for (Path dir : dirs) {
+                    String type = read(dir.resolve("type"));
+                    if (type.equals("Instruction")) {
+                        continue;
+                    }
+                    int level = Integer.parseInt(read(dir.resolve("level")));
+                    if (level > bestLevel) {
+                        bestLevel = level;
+                        bestSize = parseSize(read(dir.resolve("size")));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // no sysfs: not Linux, or a container without it
+            }
+            return bestSize;
+        }
+
+        static long parseSize(String size) {
+            char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+            switch (unit) {
+                case 'K':
+                    return Long.parseLong(size.substring(0, size.length() - 1)) << 10;
+                case 'M':
+                    return Long.parseLong(size.substring(0, size.length() - 1)) << 20;
+                default:
+                    return Long.parseLong(size);
+            }
+        }
+
+        private static String read(Path file) throws IOException {
+            return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FlushState {
+        static final int LINE_LONGS = 64 / Long.BYTES;
+
+        @Param({"none", "llc", "llcBranches"})
+        String flush;
+
+        long[] sweep;
+        byte[] noise;
+        long sink;
+
+        @Setup(Level.Trial)
+        public void allocate() {
+            long bytes = Math.min(1L << 30, CacheInfo.lastLevelCacheSize() * 3 / 2);
+            sweep = new long[(int) (bytes / Long.BYTES)];
+            noise = new byte[1 << 16];
+            new Random(42).nextBytes(noise);
+        }
+
+        @Setup(Level.Invocation)
+        public void flush() {
+            switch (flush) {
+                case "none":
+                    break;
+                case "llcBranches":
+                    sweep();
+                    scramble();
+                    break;
+                case "llc":
+                    sweep();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown flush: " + flush);
+            }
+        }
+
+        private void sweep() {
+            long[] s = sweep;
+            long acc = 0;
+            for (int i = 0; i < s.length; i += LINE_LONGS) {
+                acc += s[i];
+            }
+            sink = acc;
+        }
+
+        private void scramble() {
+            long acc = 0;
+            for (byte b : noise) {
+                if ((b & 1) != 0) {
+                    acc += b;
+                }
+                if ((b & 2) != 0) {
+                    acc ^= acc << 1;
+                }
+                switch ((b >>> 2) & 7) {
+                    case 0: acc += 3; break;
+                    case 1: acc -= 5; break;
+                    case 2: acc *= 7; break;
+                    case 3: acc ^= 11; break;
+                    case 4: acc += b; break;
+                    case 5: acc -= b; break;
+                    case 6: acc >>>= 1; break;
+                    default: acc = ~acc; break;
+                }
+            }
+            sink = acc;
+        }
+    }
+
+    /*
+     * ----------------------------- the benchmarks ------------------------------
+     */
+
+    /*
+     * The cold call of JMHSample_07_FixtureLevelInvocation, now cold in the caches as well.
+     * JMHSample_07_FixtureLevelInvocation中的冷调用，现在在缓存中也是冷的。
+     */
+
+    @State(Scope.Benchmark)
+    public static class Executor {
+        ExecutorService service;
+
+        @Setup
+        public void up() {
+            service = Executors.newCachedThreadPool();
+        }
+
+        @TearDown
+        public void down() {
+            service.shutdown();
+        }
+    }
+
+    @Benchmark
+    public double submit(FlushState f, Executor e, JMHSample_07_FixtureLevelInvocation.Scratch s)
+            throws ExecutionException, InterruptedException {
+        return e.service.submit(new JMHSample_07_FixtureLevelInvocation.Task(s)).get();
+    }
+
+    /*
+     * Data-heavy: LOOKUPS binary searches over a 16 MB sorted array. Hot, the upper levels
+     * of the search stay in L1; cold, every step can be a miss to the memory.
+     * 数据密集：在一个16 MB的有序数组上进行LOOKUPS次二分查找。热的时候，查找的上面几层一直留在L1中；
+     * 冷的时候，每一步都可能是一次到内存的未命中。
+     */
+
+    static final int LOOKUPS = 16;
+
+    @State(Scope.Thread)
+    public static class Table {
+        int[] sorted;
+        int[] keys;
+        int next;
+
+        @Setup
+        public void setup() {
+            Random r = new Random(42);
+            sorted = new int[4 << 20];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = i * 2;
+            }
+            keys = new int[1 << 16];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = r.nextInt(sorted.length * 2);
+            }
+        }
+    }
+
+    @Benchmark
+    public int lookup(FlushState f, Table t) {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            int key = t.keys[t.next++ & (t.keys.length - 1)];
+            if (Arrays.binarySearch(t.sorted, key) >= 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /*
+     * Branch-heavy: a small interpreter over random opcodes. Hot, the predictor has learned
+     * the opcode sequence, because it is the same on every call; cold, it has to learn it again.
+     * 分支密集：一个在随机操作码上运行的小解释器。热的时候，预测器已经学会了操作码序列，因为每次调用都一样；
+     * 冷的时候，它必须重新学习。
+     */
+
+    @State(Scope.Thread)
+    public static class Program {
+        byte[] opcodes;
+
+        @Setup
+        public void setup() {
+            opcodes = new byte[256];
+            new Random(7).nextBytes(opcodes);
+        }
+    }
+
+    @Benchmark
+    public long interpret(FlushState f, Program p) {
+        long acc = 1;
+        for (byte op : p.opcodes) {
+            switch (op & 3) {
+                case 0:
+                    acc += op;
+                    break;
+                case 1:
+                    acc *= 3;
+                    break;
+                case 2:
+                    if (acc > 0) {
+                        acc -= op;
+                    }
+                    break;
+                default:
+                    acc ^= acc >>> 7;
+                    break;
+            }
+        }
+        return acc;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * Every invocation pays for a sweep of 1.5x the LLC in the setup, so the iterations do far
+     * fewer calls than usual: hence the longer measurement. The main method prints the hot and
+     * the cold scores of every benchmark side by side, with the ratio.
+     * 每次调用都要在setup中付出扫描1.5倍LLC的代价，所以每次迭代的调用次数比平时少得多：因此度量时间更长。
+     * main方法把每个基准测试的热分数和冷分数并排打印出来，并给出比值。
+     *
+     * Note the flush only evicts the caches of this core, and the LLC it shares. The L1
+     * instruction cache is only partly evicted, by the code of the sweep itself. On machines
+     * where the sysfs does not describe the caches, set -Dflush.llc=BYTES in the forked VM.
+     * 注意刷新只会驱逐当前核心的缓存以及它共享的LLC。L1指令缓存只被扫描代码本身部分地驱逐。
+     * 在sysfs没有描述缓存的机器上，请在派生的虚拟机中设置-Dflush.llc=BYTES。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_59 -p flush=none,llc
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        System.out.printf("Last level cache: %d KB%n", CacheInfo.lastLevelCacheSize() >> 10);
+
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_59_CacheFlush.class.getSimpleName())
+                .verbosity(VerboseMode.SILENT)
+                .build();
+
+        // benchmark -> flush -> ns/op
+        Map<String, Map<String, Double>> scores = new TreeMap<>();
+        for (RunResult rr : new Runner(opt).run()) {
+            scores.computeIfAbsent(rr.getPrimaryResult().getLabel(), k -> new TreeMap<>())
+                    .put(rr.getParams().getParam("flush"), rr.getPrimaryResult().getScore());
+        }
+
+        System.out.printf("%-12s %12s %12s %12s %10s %10s%n", "ns/op", "hot", "llc", "llcBranches", "llc/hot", "+br/hot");
+        for (Map.Entry<String, Map<String, Double>> e : scores.entrySet()) {
+            Map<String, Double> s = e.getValue();
+            double hot = s.get("none");
+            System.out.printf("%-12s %12.1f %12.1f %12.1f %10.2f %10.2f%n", e.getKey(),
+                    hot, s.get("llc"), s.get("llcBranches"), s.get("llc") / hot, s.get("llcBranches") / hot);
+        }
+    }
+
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.ScalarResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JMHSample_60_AsyncComposition {
+
+    /*
+     * JMHSample_07_FixtureLevelInvocation wraps Scratch.doWork() into a Callable, submits it,
+     * and blocks on Future.get(): one stage, one thread hop. The services chain many stages:
+     * parse, authorize, look up, transform, serialize, every one a CompletableFuture stage or
+     * a reactive operator. Every stage allocates its completion, and every async stage goes
+     * through the executor queue, and maybe to another thread, with its caches.
+     * JMHSample_07_FixtureLevelInvocation把Scratch.doWork()包装成一个Callable，提交它，并阻塞在Future.get()上：
+     * 一个阶段，一次线程跳转。而服务会串联许多阶段：解析、鉴权、查找、转换、序列化，
+     * 每一个都是一个CompletableFuture阶段或者一个响应式操作符。每个阶段都要分配它的完成对象，
+     * 每个异步阶段都要经过执行器的队列，还可能带着它的缓存跳到另一个线程上。
+     *
+     * The same $stages stages of work, composed in every way:
+     *  - direct: plain calls, the reference;
+     *  - thenApply, thenCompose: CompletableFuture stages on completed futures, run by the caller;
+     *  - thenApplyAsync, thenComposeAsync: the same, every stage through the executor;
+     *  - flow: a java.util.concurrent.Flow pipeline of SubmissionPublisher processors, one per
+     *    stage, built once per trial; every item hops through every processor.
+     * The work per stage is $work tokens of Blackhole.consumeCPU, plus a Math.log.
+     * 同样的$stages个阶段的工作，以各种方式组合：
+     *  - direct：普通的调用，参照；
+     *  - thenApply、thenCompose：在已完成的future上的CompletableFuture阶段，由调用者运行；
+     *  - thenApplyAsync、thenComposeAsync：同上，但每个阶段都经过执行器；
+     *  - flow：一个由SubmissionPublisher处理器组成的java.util.concurrent.Flow管道，每个阶段一个处理器，
+     *    每次试验构建一次；每个数据项都要跳过每个处理器。
+     * 每个阶段的工作是$work个Blackhole.consumeCPU的令牌，再加上一次Math.log。
+     *
+     * A chain of dependent stages never gets faster by going async: the stages still run one
+     * after another, now with the hops in between. The async stages pay off when there is
+     * something to overlap: the fanout benchmarks run FANOUT independent chains, one after
+     * another in fanoutDirect, and all at once on the executor in fanoutAsync.
+     * 一串相互依赖的阶段永远不会因为异步而变快：这些阶段仍然一个接一个地运行，只是中间多了跳转。
+     * 只有当存在可以重叠的东西时，异步阶段才划算：fanout基准测试运行FANOUT条相互独立的链，
+     * 在fanoutDirect中一条接一条地运行，在fanoutAsync中全部同时在执行器上运行。
+     *
+     * HopProfiler reports the thread hops per op: the stages that ran on a different thread
+     * than the stage before them. Run with -prof gc for the allocation per op.
+     * HopProfiler报告每个操作的线程跳转次数：与前一个阶段运行在不同线程上的阶段数。使用-prof gc运行可以得到每个操作的分配量。
+     */
+
+    static final int FANOUT = 4;
+
+    @Param({"5", "10", "20"})
+    int stages;
+
+    @Param({"0", "1000"})
+    int work;
+
+    ForkJoinPool executor;
+    SubmissionPublisher<Item> head;
+
+    /*
+     * submit() hands the item to the subscribers of the publisher, never to its own onNext():
+     * the head is a plain publisher, and the $stages processors all come after it.
+     * submit()把数据项交给发布者的订阅者，而不是它自己的onNext()：头部是一个普通的发布者，$stages个处理器全都在它之后。
+     */
+    @Setup
+    public void setup() {
+        executor = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+        head = new SubmissionPublisher<>(executor, Flow.defaultBufferSize());
+        SubmissionPublisher<Item> tail = head;
+        for (int s = 0; s < stages; s++) {
+            StageProcessor next = new StageProcessor(executor, work);
+            tail.subscribe(next);
+            tail = next;
+        }
+        tail.subscribe(new Sink());
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        head.close();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /*
+     * ----------------------------- the stage ------------------------------
+     */
+
+    static final LongAdder HOPS = new LongAdder();
+
+    /**
+     * The thread the previous stage of a chain ran on.
+     * 链中前一个阶段运行所在的线程。
+     */
+    static class Hops {
+        Thread last = Thread.currentThread();
+    }
+
+    static double stage(Hops h, double x, int work) {
+        Thread t = Thread.currentThread();
+        if (h.last != t) {
+            HOPS.increment();
+            h.last = t;
+        }
+        Blackhole.consumeCPU(work);
+        return Math.log(x + 2);
+    }
+
+    /*
+     * ----------------------------- the chains ------------------------------
+     */
+
+    @Benchmark
+    public double direct() {
+        Hops h = new Hops();
+        double x = 1;
+        for (int s = 0; s < stages; s++) {
+            x = stage(h, x, work);
+        }
+        return x;
+    }
+
+    @Benchmark
+    public double thenApply() {
+        Hops h = new Hops();
+        CompletableFuture<Double> f = CompletableFuture.completedFuture(1.0);
+        for (int s = 0; s < stages; s++) {
+            f = f.thenApply(x -> stage(h, x, work));
+        }
+        return f.join();
+    }
+
+    @Benchmark
+    public double thenApplyAsync() {
+        Hops h = new Hops();
+        CompletableFuture<Double> f = CompletableFuture.completedFuture(1.0);
+        for (int s = 0; s < stages; s++) {
+            f = f.thenApplyAsync(x -> stage(h, x, work), executor);
+        }
+        return f.join();
+    }
+
+    @Benchmark
+    public double thenCompose() {
+        Hops h = new Hops();
+        CompletableFuture<Double> f = CompletableFuture.completedFuture(1.0);
+        for (int s = 0; s < stages; s++) {
+            f = f.thenCompose(x -> CompletableFuture.completedFuture(stage(h, x, work)));
+        }
+        return f.join();
+    }
+
+    @Benchmark
+    public double thenComposeAsync() {
+        Hops h = new Hops();
+        CompletableFuture<Double> f = CompletableFuture.completedFuture(1.0);
+        for (int s = 0; s < stages; s++) {
+            f = f.thenCompose(x -> CompletableFuture.supplyAsync(() -> stage(h, x, work), executor));
+        }
+        return f.join();
+    }
+
+    @Benchmark
+    public double flow() {
+        Item item = new Item(1.0);
+        head.submit(item);
+        return item.done.join();
+    }
+
+    @Benchmark
+    public double fanoutDirect() {
+        double sum = 0;
+        for (int c = 0; c < FANOUT; c++) {
+            sum += direct();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public double fanoutAsync() {
+        CompletableFuture<Double>[] chains = new CompletableFuture[FANOUT];
+        for (int c = 0; c < FANOUT; c++) {
+            chains[c] = thenApplyAsyncChain();
+        }
+        double sum = 0;
+        for (CompletableFuture<Double> chain : chains) {
+            sum += chain.join();
+        }
+        return sum;
+    }
+
+    private CompletableFuture<Double> thenApplyAsyncChain() {
+        Hops h = new Hops();
+        CompletableFuture<Double> f = CompletableFuture.supplyAsync(() -> 1.0, executor);
+        for (int s = 0; s < stages; s++) {
+            f = f.thenApplyAsync(x -> stage(h, x, work), executor);
+        }
+        return f;
+    }
+
+    /*
+     * ----------------------------- the Flow pipeline ------------------------------
+     */
+
+    static final class Item extends Hops {
+        double value;
+        final CompletableFuture<Double> done = new CompletableFuture<>();
+
+        Item(double value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * One stage of the pipeline: takes the items from upstream, applies the stage, and
+     * publishes them downstream through its own executor-driven buffer.
+     * 管道的一个阶段：从上游获取数据项，应用阶段函数，然后通过它自己的由执行器驱动的缓冲区向下游发布。
+     */
+    static final class StageProcessor extends SubmissionPublisher<Item> implements Flow.Processor<Item, Item> {
+        private final int work;
+
+        StageProcessor(Executor executor, int work) {
+            super(executor, Flow.defaultBufferSize());
+            this.work = work;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(Item item) {
+            item.value = stage(item, item.value, work);
+            submit(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            closeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            close();
+        }
+    }
+
+    static final class Sink implements Flow.Subscriber<Item> {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(Item item) {
+            item.done.complete(item.value);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // items in flight are lost with the pipeline, the benchmark is over anyway
+        }
+
+        @Override
+        public void onComplete() {
+            // nothing to do
+        }
+    }
+
+    /*
+     * ----------------------------- reporting ------------------------------
+     */
+
+    public static class HopProfiler implements InternalProfiler {
+
+        @Override
+        public String getDescription() {
+            return "Thread hops per operation";
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+            HOPS.reset();
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                           IterationResult result) {
+            long ops = result.getMetadata().getAllOps();
+            double hops = (ops == 0) ? Double.NaN : (double) HOPS.sum() / ops;
+            return Arrays.asList(new ScalarResult("hops", hops, "#/op", AggregationPolicy.AVG));
+        }
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method prints, for every composition, the overhead per stage over the direct
+     * calls, in time and in allocation, and the hops per op. Expect the synchronous stages
+     * to cost tens of nanoseconds and one or two small objects each, and the async stages
+     * microseconds: the queueing, the wake-up of the worker, and the join. With $work = 1000,
+     * compare fanoutAsync with fanoutDirect: on a machine with FANOUT cores and more, the
+     * async chains overlap, and win once the work per stage outweighs the hop. On fewer cores
+     * they only time-share.
+     * main方法为每种组合方式打印相对于直接调用的每阶段开销(时间和分配量)，以及每个操作的跳转次数。
+     * 可以预期同步阶段每个花费几十纳秒和一两个小对象，而异步阶段要花费几微秒：排队、唤醒工作线程以及join。
+     * 当$work = 1000时，比较fanoutAsync和fanoutDirect：在有FANOUT个或更多核心的机器上，异步链会重叠执行，
+     * 一旦每个阶段的工作超过跳转的开销，异步就会胜出。在核心更少的机器上，它们只是分时共享。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_60 -prof gc \
+     *        -prof 'com.weiquding.jmh.samples.JMHSample_60_AsyncComposition$HopProfiler'
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_60_AsyncComposition.class.getSimpleName())
+                .addProfiler("gc")
+                .addProfiler(HopProfiler.class.getName())
+                .verbosity(VerboseMode.SILENT)
+                .build();
+
+        // "work/stages" -> benchmark -> {ns/op, B/op, hops/op}
+        Map<String, Map<String, double[]>> table = new TreeMap<>();
+        for (RunResult rr : new Runner(opt).run()) {
+            String key = "work=" + rr.getParams().getParam("work") + ", stages=" + rr.getParams().getParam("stages");
+            double alloc = Double.NaN;
+            for (Map.Entry<String, Result> e : rr.getSecondaryResults().entrySet()) {
+                if (e.getKey().endsWith("gc.alloc.rate.norm")) {
+                    alloc = e.getValue().getScore();
+                }
+            }
+            double hops = rr.getSecondaryResults().get("hops").getScore();
+            String benchmark = rr.getPrimaryResult().getLabel();
+            table.computeIfAbsent(key, k -> new TreeMap<>())
+                    .put(benchmark, new double[]{rr.getPrimaryResult().getScore(), alloc, hops});
+        }
+
+        for (Map.Entry<String, Map<String, double[]>> e : table.entrySet()) {
+            int stages = Integer.parseInt(e.getKey().substring(e.getKey().lastIndexOf('=') + 1));
+            double[] direct = e.getValue().get("direct");
+            System.out.println();
+            System.out.println(e.getKey());
+            System.out.printf("  %-18s %12s %14s %14s %10s%n", "", "ns/op", "+ns/stage", "+B/stage", "hops/op");
+            for (Map.Entry<String, double[]> b : e.getValue().entrySet()) {
+                double[] r = b.getValue();
+                boolean fanout = b.getKey().startsWith("fanout");
+                // the fanouts run FANOUT chains per op
+                int chainStages = fanout ? stages * FANOUT : stages;
+                double[] reference = fanout ? e.getValue().get("fanoutDirect") : direct;
+                System.out.printf("  %-18s %12.1f %14.1f %14.1f %10.2f%n", b.getKey(), r[0],
+                        (r[0] - reference[0]) / chainStages, (r[1] - reference[1]) / chainStages, r[2]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JMHSample_61_BatchExecutor {
+
+    /*
+     * JMHSample_07_FixtureLevelInvocation submits one Task at a time, and waits for its future.
+     * Every submit is one enqueue, under the queue lock, and often one wake-up of a parked
+     * worker; every task gets its own Future. When the tasks are small, the handoff is most
+     * of the cost, and a dispatcher under load pays it for every task.
+     * JMHSample_07_FixtureLevelInvocation一次提交一个Task，并等待它的future。每次提交都是一次入队(持有队列锁)，
+     * 并且常常要唤醒一个挂起的工作线程；每个任务都有自己的Future。当任务很小时，交接就是开销的主要部分，
+     * 而负载下的调度器要为每个任务都付出这个代价。
+     *
+     * BatchingExecutor is a front-end over any Executor: submitAll() enqueues the whole batch
+     * as one runnable, so the batch costs one enqueue and at most one wake-up, and completes
+     * through one CompletableFuture for the list of results. The price: the batch runs on one
+     * worker, in order, and its first result is only visible when the last task is done.
+     * BatchingExecutor是任意Executor之上的一个前端：submitAll()把整个批次作为一个runnable入队，
+     * 这样一个批次只花费一次入队和最多一次唤醒，并通过一个包含结果列表的CompletableFuture完成。
+     * 代价是：批次在一个工作线程上按顺序运行，并且只有当最后一个任务完成时，它的第一个结果才可见。
+     *
+     * Every op runs $batch tasks, and waits for all of them:
+     *  - submitAndGet: the JMHSample_07_FixtureLevelInvocation way, submit and wait, one by one;
+     *  - submitEach: submit all of them, then wait for every future;
+     *  - submitAll: one batch through the BatchingExecutor.
+     * 每个操作运行$batch个任务，并等待它们全部完成：
+     *  - submitAndGet：JMHSample_07_FixtureLevelInvocation的方式，逐个提交并等待；
+     *  - submitEach：先全部提交，再等待每一个future；
+     *  - submitAll：通过BatchingExecutor提交一个批次。
+     */
+
+    /**
+     * Runs batches of tasks as single units on the delegate executor.
+     * 在委托执行器上把一批任务作为一个单元运行。
+     */
+    public static class BatchingExecutor {
+        private final Executor delegate;
+
+        public BatchingExecutor(Executor delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * Submits the tasks in one enqueue. The tasks run in order on one thread; a failed
+         * task, even with an Error, does not stop the others, and never leaves the future
+         * incomplete.
+         * 用一次入队提交这些任务。任务在一个线程上按顺序运行；一个任务失败(即使是Error)不会阻止其他任务，
+         * 也不会让future一直处于未完成状态。
+         *
+         * @return the results, in the order of the tasks; completes exceptionally with the
+         * first failure, and the other failures suppressed
+         */
+        public <T> CompletableFuture<List<T>> submitAll(List<? extends Callable<T>> tasks) {
+            CompletableFuture<List<T>> done = new CompletableFuture<>();
+            delegate.execute(() -> {
+                List<T> results = new ArrayList<>(tasks.size());
+                Throwable failure = null;
+                for (Callable<T> task : tasks) {
+                    try {
+                        results.add(task.call());
+                    } catch (Throwable e) {
+                        results.add(null);
+                        if (failure == null) {
+                            failure = e;
+                        } else {
+                            failure.addSuppressed(e);
+                        }
+                    }
+                }
+                if (failure == null) {
+                    done.complete(results);
+                } else {
+                    done.completeExceptionally(failure);
+                }
+            });
+            return done;
+        }
+    }
+
+    /*
+     * The task: a small piece of computation, TASK_TOKENS of Blackhole.consumeCPU, and a
+     * Math.log as in JMHSample_07_FixtureLevelInvocation.Scratch. The tasks are stateless,
+     * so that the concurrent ones do not race on a shared Scratch.
+     * 任务：一小段计算，TASK_TOKENS个Blackhole.consumeCPU令牌，以及一次Math.log，
+     * 就像JMHSample_07_FixtureLevelInvocation.Scratch中那样。任务是无状态的，这样并发的任务就不会在共享的Scratch上产生竞争。
+     */
+
+    static final int TASK_TOKENS = 50;
+
+    static final class Task implements Callable<Double> {
+        private final double x;
+
+        Task(double x) {
+            this.x = x;
+        }
+
+        @Override
+        public Double call() {
+            Blackhole.consumeCPU(TASK_TOKENS);
+            return Math.log(x);
+        }
+    }
+
+    @Param({"1", "4", "16", "64", "256", "1024"})
+    int batch;
+
+    ExecutorService service;
+    BatchingExecutor batching;
+    List<Task> tasks;
+
+    @Setup
+    public void setup() {
+        service = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        batching = new BatchingExecutor(service);
+        tasks = new ArrayList<>();
+        for (int t = 0; t < batch; t++) {
+            tasks.add(new Task(t + 1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        service.shutdown();
+        service.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public double submitAndGet() throws ExecutionException, InterruptedException {
+        double sum = 0;
+        for (Task task : tasks) {
+            sum += service.submit(task).get();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double submitEach() throws ExecutionException, InterruptedException {
+        List<Future<Double>> futures = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            futures.add(service.submit(task));
+        }
+        double sum = 0;
+        for (Future<Double> f : futures) {
+            sum += f.get();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double submitAll() throws ExecutionException, InterruptedException {
+        double sum = 0;
+        for (double r : batching.submitAll(tasks).get()) {
+            sum += r;
+        }
+        return sum;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method prints the amortized time per task, and the task throughput, for every
+     * batch size. Expect submitAll to cost about the same as submitAndGet at $batch = 1, and
+     * to approach the bare task cost as the batch grows. submitEach sits in between: it keeps
+     * the workers busy in parallel, which wins on a machine with idle cores once the tasks are
+     * big enough, and the batch is the cheaper one until then. That is the crossover to look for.
+     * main方法为每个批次大小打印每个任务的摊销时间以及任务吞吐量。可以预期当$batch = 1时submitAll的开销与submitAndGet大致相同，
+     * 而随着批次增大，它会接近任务本身的开销。submitEach介于两者之间：它让工作线程并行地忙碌，
+     * 在有空闲核心的机器上，一旦任务足够大它就会胜出，而在那之前批次提交更便宜。这就是要寻找的交叉点。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_61
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_61_BatchExecutor.class.getSimpleName())
+                .verbosity(VerboseMode.SILENT)
+                .build();
+
+        // batch -> benchmark -> ns/op
+        Map<Integer, Map<String, Double>> scores = new TreeMap<>();
+        for (RunResult rr : new Runner(opt).run()) {
+            scores.computeIfAbsent(Integer.parseInt(rr.getParams().getParam("batch")), k -> new TreeMap<>())
+                    .put(rr.getPrimaryResult().getLabel(), rr.getPrimaryResult().getScore());
+        }
+
+        List<String> benchmarks = Arrays.asList("submitAndGet", "submitEach", "submitAll");
+        System.out.printf("%8s", "batch");
+        for (String b : benchmarks) {
+            System.out.printf(" %14s %14s", b + " ns", "tasks/us");
+        }
+        System.out.println();
+        for (Map.Entry<Integer, Map<String, Double>> e : scores.entrySet()) {
+            System.out.printf("%8d", e.getKey());
+            for (String b : benchmarks) {
+                double perTask = e.getValue().get(b) / e.getKey();
+                System.out.printf(" %14.1f %14.3f", perTask, 1e3 / perTask);
+            }
+            System.out.println();
+        }
+    }
+
+}
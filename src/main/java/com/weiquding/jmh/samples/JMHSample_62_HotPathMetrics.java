@@ -0,0 +1,595 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_62_HotPathMetrics {
+
+    /*
+     * JMHSample_23_AuxCounters exports plain int fields: OpCounters.case1/case2 become rates,
+     * EventCounters.wows becomes a count. That is all a field can say. A service under load
+     * wants more: the rate over the last second, not since the start, and the distribution of
+     * its latencies, not a sum. And it wants to record them on every request, from every
+     * thread, for a few nanoseconds and no garbage.
+     * JMHSample_23_AuxCounters导出普通的int字段：OpCounters.case1/case2成为速率，EventCounters.wows成为计数。
+     * 这就是一个字段能表达的全部。负载下的服务需要更多：最近一秒的速率，而不是从开始以来的速率；
+     * 以及延迟的分布，而不是总和。并且它要在每个请求上、从每个线程记录这些指标，只花几纳秒，并且不产生垃圾。
+     *
+     * The metrics below:
+     *  - StripedCounter: padded cells, one getAndAdd on the cell of the current thread;
+     *  - RateMeter: a StripedCounter, plus a ring of marks, one per slot of the window. The
+     *    first event of a new slot marks the count; the rate is the count since the oldest
+     *    mark in the window;
+     *  - ConcurrentHistogram: the log-linear buckets of JMHSample_55_LatencySLO.LatencyHistogram,
+     *    one row of buckets per stripe, read into a LatencyHistogram for the percentiles.
+     * None of them allocates, or takes a lock, when recording.
+     * 下面的指标：
+     *  - StripedCounter：填充的单元，对当前线程的单元进行一次getAndAdd；
+     *  - RateMeter：一个StripedCounter，加上一圈标记，窗口的每个槽一个。新槽的第一个事件标记当前计数；
+     *    速率就是从窗口中最早的标记以来的计数；
+     *  - ConcurrentHistogram：JMHSample_55_LatencySLO.LatencyHistogram的对数线性桶，每个条带一行桶，
+     *    读取到一个LatencyHistogram中来计算百分位数。
+     * 它们在记录时都不分配内存，也不加锁。
+     */
+
+    /*
+     * ----------------------------- metrics ------------------------------
+     */
+
+    static final int CELL_STRIDE = JMHSample_57_DoubleAccumulators.StripedDouble.CELL_STRIDE;
+
+    /**
+     * @return the stripe hint of the current thread, a hash of its id
+     */
+    static int probe() {
+        return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    static int stripes() {
+        return Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+    }
+
+    /**
+     * A counter over fixed cells, CELL_STRIDE longs apart.
+     * 一个基于固定单元的计数器，单元之间相隔CELL_STRIDE个long。
+     */
+    public static class StripedCounter {
+        private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final long[] cells;
+        private final int mask;
+
+        public StripedCounter() {
+            int n = stripes();
+            mask = n - 1;
+            cells = new long[(n + 1) * CELL_STRIDE];
+        }
+
+        public void add(long delta) {
+            CELLS.getAndAdd(cells, ((probe() & mask) + 1) * CELL_STRIDE, delta);
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public long sum() {
+            long sum = 0;
+            for (int c = 1; c <= mask + 1; c++) {
+                sum += (long) CELLS.getVolatile(cells, c * CELL_STRIDE);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Events per second over a sliding window of SLOTS - 1 full slots, and the current one.
+     * 在由SLOTS - 1个完整的槽加上当前槽组成的滑动窗口上的每秒事件数。
+     */
+    public static class RateMeter {
+        private static final VarHandle TICK;
+        private static final VarHandle MARK_TICKS = MethodHandles.arrayElementVarHandle(long[].class);
+        static final int SLOTS = 16;
+
+        static {
+            try {
+                TICK = MethodHandles.lookup().findVarHandle(RateMeter.class, "tick", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final StripedCounter count = new StripedCounter();
+        private final long slotNanos;
+        private final long[] marks = new long[SLOTS];
+        private final long[] markTicks = new long[SLOTS];
+        private volatile long tick;
+
+        public RateMeter(long window, TimeUnit unit) {
+            slotNanos = Math.max(1, unit.toNanos(window) / (SLOTS - 1));
+            tick = System.nanoTime() / slotNanos;
+            Arrays.fill(markTicks, Long.MIN_VALUE);
+            markTicks[(int) (tick & (SLOTS - 1))] = tick;
+        }
+
+        public void record() {
+            record(System.nanoTime());
+        }
+
+        /**
+         * @param now System.nanoTime() of the event, for the callers that have read it already
+         */
+        public void record(long now) {
+            count.increment();
+            long t = now / slotNanos;
+            if (t != tick) {
+                roll(t);
+            }
+        }
+
+        /*
+         * Only the thread that moves the tick writes the mark. The events that land between
+         * the new tick and the mark count in the new slot; none of them is lost.
+         * 只有推进tick的线程才写入标记。落在新tick和标记之间的事件计入新槽；它们一个也不会丢失。
+         */
+        private void roll(long t) {
+            long prev = tick;
+            if (t > prev && TICK.compareAndSet(this, prev, t)) {
+                int slot = (int) (t & (SLOTS - 1));
+                marks[slot] = count.sum();
+                MARK_TICKS.setRelease(markTicks, slot, t);
+            }
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double rate() {
+            long now = System.nanoTime();
+            long t = now / slotNanos;
+            roll(t);
+            long oldest = Long.MAX_VALUE;
+            long mark = 0;
+            for (int s = 0; s < SLOTS; s++) {
+                long markTick = (long) MARK_TICKS.getAcquire(markTicks, s);
+                if (markTick > t - SLOTS && markTick < oldest) {
+                    oldest = markTick;
+                    mark = marks[s];
+                }
+            }
+            if (oldest == Long.MAX_VALUE) {
+                return 0;
+            }
+            long elapsed = Math.max(1, now - oldest * slotNanos);
+            return (count.sum() - mark) * 1e9 / elapsed;
+        }
+    }
+
+    /**
+     * A lock-free JMHSample_55_LatencySLO.LatencyHistogram, one row of buckets per stripe.
+     * 一个无锁的JMHSample_55_LatencySLO.LatencyHistogram，每个条带一行桶。
+     */
+    public static class ConcurrentHistogram {
+        private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final VarHandle MAX;
+        static final int BUCKETS = (64 - JMHSample_55_LatencySLO.LatencyHistogram.SUB_BITS + 1)
+                << JMHSample_55_LatencySLO.LatencyHistogram.SUB_BITS;
+        static final int ROW = BUCKETS + CELL_STRIDE;
+
+        static {
+            try {
+                MAX = MethodHandles.lookup().findVarHandle(ConcurrentHistogram.class, "max", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final long[] counts;
+        private final int mask;
+        private volatile long max;
+
+        public ConcurrentHistogram() {
+            int n = stripes();
+            mask = n - 1;
+            counts = new long[CELL_STRIDE + n * ROW];
+        }
+
+        public void record(long v) {
+            v = Math.max(0, v);
+            int row = CELL_STRIDE + (probe() & mask) * ROW;
+            COUNTS.getAndAdd(counts, row + JMHSample_55_LatencySLO.LatencyHistogram.index(v), 1L);
+            long m;
+            while (v > (m = max)) {
+                if (MAX.compareAndSet(this, m, v)) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Reads the counts into the given histogram; the concurrent records may or may not
+         * be in it.
+         * 把计数读取到给定的直方图中；并发的记录可能在其中，也可能不在。
+         */
+        public void snapshot(JMHSample_55_LatencySLO.LatencyHistogram into) {
+            into.reset();
+            for (int s = 0; s <= mask; s++) {
+                int row = CELL_STRIDE + s * ROW;
+                for (int b = 0; b < BUCKETS; b++) {
+                    long c = (long) COUNTS.getVolatile(counts, row + b);
+                    into.counts[b] += c;
+                    into.total += c;
+                }
+            }
+            into.max = max;
+        }
+
+        /**
+         * Not atomic: call it when nobody records.
+         * 不是原子的：在没有人记录时调用。
+         */
+        public void reset() {
+            Arrays.fill(counts, 0);
+            max = 0;
+        }
+    }
+
+    /*
+     * ----------------------------- states ------------------------------
+     */
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+        final AtomicLong atomic = new AtomicLong();
+        final LongAdder adder = new LongAdder();
+        final StripedCounter counter = new StripedCounter();
+        final RateMeter meter = new RateMeter(1, TimeUnit.SECONDS);
+        final ConcurrentHistogram histogram = new ConcurrentHistogram();
+
+        int measurements;
+        boolean lastMeasurement;
+
+        /*
+         * The histogram covers all the measurement iterations: it is reset before the first one.
+         * 直方图覆盖所有的测量迭代：它在第一次测量迭代之前被重置。
+         */
+        @Setup(Level.Iteration)
+        public void nextIteration(IterationParams params) {
+            if (params.getType() == IterationType.MEASUREMENT) {
+                measurements++;
+                if (measurements == 1) {
+                    histogram.reset();
+                }
+            }
+            lastMeasurement = params.getType() == IterationType.MEASUREMENT && measurements == params.getCount();
+        }
+    }
+
+    /*
+     * The latencies to record: xorshift, so that the recording path allocates nothing, and
+     * about 1 in 64 values in the tail.
+     * 要记录的延迟：使用xorshift，这样记录路径不分配任何内存，并且大约每64个值中有1个在尾部。
+     */
+    @State(Scope.Thread)
+    public static class Source {
+        long seed;
+
+        @Setup
+        public void setup(ThreadParams params) {
+            seed = 0x9E3779B97F4A7C15L * (params.getThreadIndex() + 1);
+        }
+
+        long next() {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            long v = seed & 0xFFFF;
+            return ((v & 63) == 0) ? v << 4 : (v & 0x3FF) + 100;
+        }
+    }
+
+    /*
+     * ----------------------------- the AuxCounters adapter ------------------------------
+     *
+     * JMH creates one @AuxCounters state per thread and sums the counters of the threads;
+     * it resets the fields before an iteration, but reads the methods as they are. The
+     * metrics are shared, so the adapters below publish them from thread 0 only, the other
+     * threads report 0.
+     * JMH为每个线程创建一个@AuxCounters状态，并对各线程的计数器求和；它在迭代之前重置字段，
+     * 但按原样读取方法。指标是共享的，所以下面的适配器只从0号线程发布它们，其他线程报告0。
+     *
+     * Rates: Type.OPERATIONS divides by the iteration time, so the adapter publishes the
+     * count of the iteration, and JMH makes a rate of it. Use it in Mode.Throughput, where the
+     * rates of the threads add up; in Mode.AverageTime, the threads that report 0 come out
+     * as an infinite time per event.
+     * 速率：Type.OPERATIONS会除以迭代时间，所以适配器发布本次迭代的计数，由JMH把它变成速率。
+     * 要在Mode.Throughput中使用它，在那里各线程的速率相加；在Mode.AverageTime中，报告0的线程会得出无穷大的每事件时间。
+     *
+     * Gauges: Type.EVENTS is summed over the iterations too, which is right for counts, and
+     * wrong for a percentile. So the adapter publishes the gauges in the last measurement
+     * iteration only, as a snapshot at the end of the run; the other iterations print 0.
+     * 测量值：Type.EVENTS也会在各次迭代之间求和，这对计数是正确的，对百分位数则是错误的。
+     * 所以适配器只在最后一次测量迭代中发布测量值，作为运行结束时的快照；其他迭代打印0。
+     */
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rates {
+        private Registry registry;
+        private boolean publisher;
+        private long base;
+
+        @Setup(Level.Iteration)
+        public void setup(Registry registry, ThreadParams params) {
+            this.registry = registry;
+            publisher = params.getThreadIndex() == 0;
+            base = registry.meter.count();
+        }
+
+        public long events() {
+            return publisher ? registry.meter.count() - base : 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Gauges {
+        private final JMHSample_55_LatencySLO.LatencyHistogram snapshot = new JMHSample_55_LatencySLO.LatencyHistogram();
+        private Registry registry;
+        private boolean publisher;
+        private double windowRate;
+        private long p50;
+        private long p99;
+        private long p999;
+        private long max;
+
+        @Setup(Level.Iteration)
+        public void setup(Registry registry, ThreadParams params) {
+            this.registry = registry;
+            publisher = params.getThreadIndex() == 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            if (publisher && registry.lastMeasurement) {
+                registry.histogram.snapshot(snapshot);
+                windowRate = registry.meter.rate();
+                p50 = snapshot.percentile(50);
+                p99 = snapshot.percentile(99);
+                p999 = snapshot.percentile(99.9);
+                max = snapshot.max;
+            } else {
+                windowRate = 0;
+                p50 = p99 = p999 = max = 0;
+            }
+        }
+
+        public double windowRate() {
+            return windowRate;
+        }
+
+        public long p50() {
+            return p50;
+        }
+
+        public long p99() {
+            return p99;
+        }
+
+        public long p999() {
+            return p999;
+        }
+
+        public long max() {
+            return max;
+        }
+    }
+
+    /*
+     * ----------------------------- benchmarks ------------------------------
+     *
+     * The cost of one record, against AtomicLong and LongAdder.
+     * 一次记录的开销，与AtomicLong和LongAdder对比。
+     */
+
+    @Benchmark
+    public long atomic(Registry registry) {
+        return registry.atomic.incrementAndGet();
+    }
+
+    @Benchmark
+    public void longAdder(Registry registry) {
+        registry.adder.increment();
+    }
+
+    @Benchmark
+    public void counter(Registry registry) {
+        registry.counter.increment();
+    }
+
+    @Benchmark
+    public void meter(Registry registry) {
+        registry.meter.record();
+    }
+
+    @Benchmark
+    public void histogram(Registry registry, Source source) {
+        registry.histogram.record(source.next());
+    }
+
+    /*
+     * A timed piece of work, recorded in the meter and the histogram, and exported.
+     * 一段计时的工作，记录到计量器和直方图中，并被导出。
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void exported(Registry registry, Source source, Rates rates, Gauges gauges) {
+        long start = System.nanoTime();
+        Blackhole.consumeCPU(source.next() >> 6);
+        long end = System.nanoTime();
+        registry.histogram.record(end - start);
+        registry.meter.record(end);
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method runs everything at 1, 2 and 4 threads, with the gc profiler, and prints
+     * ns per record and bytes per record, then the metrics of the exported benchmark as the
+     * adapters published them: events/s, the window rate, and the percentiles in ns.
+     * Expect counter and histogram to stay within a few ns of LongAdder, at 0 B/op; atomic
+     * grows with the threads, once they run on separate cores. The meter pays for a
+     * System.nanoTime() on top of the counter, which is slow on some virtualized clocks:
+     * the exported benchmark passes in the timestamp it already has.
+     * main方法在1、2和4个线程下运行所有基准，并使用gc分析器，打印每次记录的纳秒数和字节数，
+     * 然后打印适配器为exported基准发布的指标：每秒事件数、窗口速率以及以纳秒为单位的百分位数。
+     * 可以预期counter和histogram与LongAdder相差在几纳秒之内，并且为0 B/op；一旦线程运行在不同的核心上，
+     * atomic的开销随线程数增长。meter在计数器之外还要付出一次System.nanoTime()的开销，这在某些虚拟化时钟上很慢：
+     * exported基准传入它已经拿到的时间戳。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_62 -t 4 -prof gc
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        int[] threadCounts = {1, 2, 4};
+        List<String> gauges = Arrays.asList("events", "windowRate", "p50", "p99", "p999", "max");
+
+        // benchmark -> threads -> {ns/op, B/op}
+        Map<String, Map<Integer, double[]>> scores = new TreeMap<>();
+        // threads -> gauge -> value
+        Map<Integer, Map<String, Double>> exported = new TreeMap<>();
+        for (int threads : threadCounts) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_62_HotPathMetrics.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler("gc")
+                    .verbosity(VerboseMode.SILENT)
+                    .build();
+            for (RunResult rr : new Runner(opt).run()) {
+                double alloc = Double.NaN;
+                for (Map.Entry<String, Result> e : rr.getSecondaryResults().entrySet()) {
+                    if (e.getKey().endsWith("gc.alloc.rate.norm")) {
+                        alloc = e.getValue().getScore();
+                    }
+                }
+                String label = rr.getPrimaryResult().getLabel();
+                if (label.equals("exported")) {
+                    Map<String, Double> values = exported.computeIfAbsent(threads, k -> new TreeMap<>());
+                    for (String g : gauges) {
+                        values.put(g, rr.getSecondaryResults().get(g).getScore());
+                    }
+                } else {
+                    scores.computeIfAbsent(label, k -> new TreeMap<>())
+                            .put(threads, new double[]{rr.getPrimaryResult().getScore(), alloc});
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-12s", "ns/op, B/op");
+        for (int threads : threadCounts) {
+            System.out.printf("%20s", threads + " threads");
+        }
+        System.out.println();
+        for (Map.Entry<String, Map<Integer, double[]>> e : scores.entrySet()) {
+            System.out.printf("%-12s", e.getKey());
+            for (int threads : threadCounts) {
+                double[] s = e.getValue().get(threads);
+                System.out.printf("%20s", String.format("%.1f, %.1f", s[0], s[1]));
+            }
+            System.out.println();
+        }
+
+        System.out.println();
+        System.out.printf("%-12s", "exported");
+        for (String g : gauges) {
+            System.out.printf("%14s", g);
+        }
+        System.out.println();
+        for (Map.Entry<Integer, Map<String, Double>> e : exported.entrySet()) {
+            System.out.printf("%-12s", e.getKey() + " threads");
+            for (String g : gauges) {
+                System.out.printf("%14.0f", e.getValue().get(g));
+            }
+            System.out.println();
+        }
+    }
+
+}
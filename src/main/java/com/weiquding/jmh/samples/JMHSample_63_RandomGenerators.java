@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2014, Oracle America, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of Oracle nor the names of its contributors may be used
+ *    to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF
+ * THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.weiquding.jmh.samples;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_63_RandomGenerators {
+
+    /*
+     * JMHSample_23_AuxCounters and JMHSample_13_RunToRun call Math.random(). It goes through
+     * one java.util.Random for the whole JVM, and every call is a CAS on its seed: with more
+     * threads, the calls queue up on one cache line, and the benchmark measures the RNG
+     * instead of the code. Random input belongs to the thread that consumes it.
+     * JMHSample_23_AuxCounters和JMHSample_13_RunToRun调用了Math.random()。它经过整个JVM唯一的一个java.util.Random，
+     * 每次调用都是对其种子的一次CAS：线程越多，调用就在一个缓存行上排队，基准测量的就是随机数生成器而不是代码。
+     * 随机输入应该属于消费它的线程。
+     *
+     * The generators below, behind one Generator interface:
+     *  - mathRandom: Math.random(), the baseline;
+     *  - threadLocal: ThreadLocalRandom, the seed lives in the Thread, not reproducible;
+     *  - splittable: one SplittableRandom per thread, split from a seeded root;
+     *  - xorshift: xorshift64*, one per thread, seeded by SplitMix64 from the stream number;
+     *  - xoroshiro: xoroshiro128++, one per thread, jumped 2^64 steps per stream, so that the
+     *    streams of the threads never overlap.
+     * All but threadLocal and mathRandom repeat themselves for the same -Drng.seed.
+     * 下面的生成器，都在同一个Generator接口之后：
+     *  - mathRandom：Math.random()，作为基线；
+     *  - threadLocal：ThreadLocalRandom，种子保存在Thread中，不可复现；
+     *  - splittable：每个线程一个SplittableRandom，从一个带种子的根生成器拆分而来；
+     *  - xorshift：xorshift64*，每个线程一个，由SplitMix64根据流编号设定种子；
+     *  - xoroshiro：xoroshiro128++，每个线程一个，每个流跳跃2^64步，这样各线程的流永远不会重叠。
+     * 除threadLocal和mathRandom之外，对于相同的-Drng.seed，它们都会重复相同的序列。
+     */
+
+    static final long SEED = Long.getLong("rng.seed", 42);
+
+    /*
+     * ----------------------------- generators ------------------------------
+     */
+
+    /**
+     * A source of random bits, owned by one thread.
+     * 一个随机位的来源，由一个线程拥有。
+     */
+    public interface Generator {
+        long nextLong();
+
+        default int nextInt() {
+            return (int) (nextLong() >>> 32);
+        }
+
+        /**
+         * @return uniform in [0, 1)
+         */
+        default double nextDouble() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+
+        default void nextInts(int[] into) {
+            for (int i = 0; i < into.length; i++) {
+                into[i] = nextInt();
+            }
+        }
+    }
+
+    /**
+     * @param kind   one of mathRandom, threadLocal, splittable, xorshift, xoroshiro
+     * @param seed   the seed of all the streams
+     * @param stream the stream number, usually the thread index
+     */
+    public static Generator create(String kind, long seed, int stream) {
+        switch (kind) {
+            case "mathRandom":
+                return new MathRandom();
+            case "threadLocal":
+                return new ThreadLocalGenerator();
+            case "splittable":
+                return new Splittable(seed, stream);
+            case "xorshift":
+                return new XorShift64Star(splitMix64(seed + stream));
+            case "xoroshiro":
+                Xoroshiro128PlusPlus g = new Xoroshiro128PlusPlus(seed);
+                for (int s = 0; s < stream; s++) {
+                    g.jump();
+                }
+                return g;
+            default:
+                throw new IllegalArgumentException("Unknown generator: " + kind);
+        }
+    }
+
+    /*
+     * SplitMix64 turns any seed, even 0 or 1, 2, 3, into well mixed state.
+     * SplitMix64把任意种子，即使是0或1、2、3，变成充分混合的状态。
+     */
+    static long splitMix64(long seed) {
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    static class MathRandom implements Generator {
+        @Override
+        public long nextLong() {
+            return (long) (Math.random() * 0x1.0p63) << 1;
+        }
+
+        @Override
+        public double nextDouble() {
+            return Math.random();
+        }
+    }
+
+    static class ThreadLocalGenerator implements Generator {
+        @Override
+        public long nextLong() {
+            return ThreadLocalRandom.current().nextLong();
+        }
+
+        @Override
+        public int nextInt() {
+            return ThreadLocalRandom.current().nextInt();
+        }
+
+        @Override
+        public double nextDouble() {
+            return ThreadLocalRandom.current().nextDouble();
+        }
+
+        @Override
+        public void nextInts(int[] into) {
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            for (int i = 0; i < into.length; i++) {
+                into[i] = r.nextInt();
+            }
+        }
+    }
+
+    static class Splittable implements Generator {
+        private final SplittableRandom random;
+
+        /*
+         * split() is not thread-safe, and the threads set up concurrently: each stream
+         * splits its own root, stream times.
+         * split()不是线程安全的，而各线程是并发设置的：每个流拆分它自己的根生成器，拆分stream次。
+         */
+        Splittable(long seed, int stream) {
+            SplittableRandom root = new SplittableRandom(seed);
+            SplittableRandom r = root.split();
+            for (int s = 0; s < stream; s++) {
+                r = root.split();
+            }
+            random = r;
+        }
+
+        @Override
+        public long nextLong() {
+            return random.nextLong();
+        }
+
+        @Override
+        public int nextInt() {
+            return random.nextInt();
+        }
+
+        @Override
+        public double nextDouble() {
+            return random.nextDouble();
+        }
+    }
+
+    public static class XorShift64Star implements Generator {
+        private long x;
+
+        public XorShift64Star(long seed) {
+            x = (seed == 0) ? 0x9E3779B97F4A7C15L : seed;
+        }
+
+        @Override
+        public long nextLong() {
+            x ^= x >>> 12;
+            x ^= x << 25;
+            x ^= x >>> 27;
+            return x * 0x2545F4914F6CDD1DL;
+        }
+    }
+
+    public static class Xoroshiro128PlusPlus implements Generator {
+        private static final long[] JUMP = {0x2bd7a6a6e99c2ddcL, 0x0992ccaf6a6f0c31L};
+
+        private long s0;
+        private long s1;
+
+        public Xoroshiro128PlusPlus(long seed) {
+            s0 = splitMix64(seed);
+            s1 = splitMix64(s0);
+        }
+
+        @Override
+        public long nextLong() {
+            long a = s0;
+            long b = s1;
+            long result = Long.rotateLeft(a + b, 17) + a;
+            b ^= a;
+            s0 = Long.rotateLeft(a, 49) ^ b ^ (b << 21);
+            s1 = Long.rotateLeft(b, 28);
+            return result;
+        }
+
+        /**
+         * Two ints out of every long.
+         * 每个long产生两个int。
+         */
+        @Override
+        public void nextInts(int[] into) {
+            int i = 0;
+            for (; i + 1 < into.length; i += 2) {
+                long v = nextLong();
+                into[i] = (int) (v >>> 32);
+                into[i + 1] = (int) v;
+            }
+            if (i < into.length) {
+                into[i] = nextInt();
+            }
+        }
+
+        /**
+         * Advances the state by 2^64 steps: the next 2^64 values are for someone else.
+         * 把状态推进2^64步：接下来的2^64个值留给别人。
+         */
+        public void jump() {
+            long j0 = 0;
+            long j1 = 0;
+            for (long jump : JUMP) {
+                for (int b = 0; b < 64; b++) {
+                    if ((jump & (1L << b)) != 0) {
+                        j0 ^= s0;
+                        j1 ^= s1;
+                    }
+                    nextLong();
+                }
+            }
+            s0 = j0;
+            s1 = j1;
+        }
+    }
+
+    /*
+     * ----------------------------- states ------------------------------
+     */
+
+    /**
+     * The generator for any @State, or @Benchmark, that needs random input: take it as a
+     * parameter, one per thread, stream = thread index. Pick the kind with -Drng, xoroshiro
+     * by default.
+     * 供任何需要随机输入的@State或@Benchmark使用的生成器：把它作为参数，每个线程一个，流编号等于线程索引。
+     * 用-Drng选择种类，默认是xoroshiro。
+     */
+    @State(Scope.Thread)
+    public static class Rng implements Generator {
+        Generator generator;
+
+        @Setup
+        public void setup(ThreadParams params) {
+            generator = create(System.getProperty("rng", "xoroshiro"), SEED, params.getThreadIndex());
+        }
+
+        @Override
+        public long nextLong() {
+            return generator.nextLong();
+        }
+
+        @Override
+        public int nextInt() {
+            return generator.nextInt();
+        }
+
+        @Override
+        public double nextDouble() {
+            return generator.nextDouble();
+        }
+
+        @Override
+        public void nextInts(int[] into) {
+            generator.nextInts(into);
+        }
+    }
+
+    static final int BULK = 1024;
+
+    @State(Scope.Thread)
+    public static class Sweep {
+        @Param({"mathRandom", "threadLocal", "splittable", "xorshift", "xoroshiro"})
+        String kind;
+
+        Generator generator;
+        final int[] ints = new int[BULK];
+
+        @Setup
+        public void setup(ThreadParams params) {
+            generator = create(kind, SEED, params.getThreadIndex());
+        }
+    }
+
+    /*
+     * ----------------------------- benchmarks ------------------------------
+     */
+
+    @Benchmark
+    public int nextInt(Sweep sweep) {
+        return sweep.generator.nextInt();
+    }
+
+    @Benchmark
+    public double nextDouble(Sweep sweep) {
+        return sweep.generator.nextDouble();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK)
+    public int[] nextInts(Sweep sweep) {
+        sweep.generator.nextInts(sweep.ints);
+        return sweep.ints;
+    }
+
+    /*
+     * ============================== HOW TO RUN THIS TEST: ====================================
+     *
+     * The main method runs every generator at 1, 2, 4 and 8 threads, and prints the total
+     * Mops/s. Expect mathRandom to stay flat, or fall, as the threads are added, and the
+     * per-thread generators to run several times faster and scale with the cores. nextInts
+     * pulls ahead of nextInt, once the call per value is gone; xorshift less so, as every
+     * value waits for the previous one.
+     * main方法在1、2、4和8个线程下运行每个生成器，并打印总的百万次操作每秒。可以预期随着线程增加，
+     * mathRandom保持不变甚至下降，而每线程的生成器要快好几倍，并随核心数扩展。一旦去掉了每个值一次的调用，
+     * nextInts就领先于nextInt；xorshift领先得少一些，因为每个值都要等待前一个值。
+     *
+     * You can run this test:
+     *
+     * a) Via the command line:
+     *    $ mvn clean install
+     *    $ java -jar target/benchmarks.jar JMHSample_63 -t 4
+     *
+     *    Other samples take JMHSample_63_RandomGenerators.Rng; choose its generator with:
+     *    $ java -jar target/benchmarks.jar JMHSample_23 -jvmArgsAppend -Drng=splittable
+     *
+     * b) Via the Java API:
+     *    (see the JMH homepage for possible caveats when running from IDE:
+     *      http://openjdk.java.net/projects/code-tools/jmh/)
+     */
+
+    public static void main(String[] args) throws RunnerException {
+        int[] threadCounts = {1, 2, 4, 8};
+
+        // benchmark/kind -> threads -> Mops/s
+        Map<String, Map<Integer, Double>> scores = new TreeMap<>();
+        for (int threads : threadCounts) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_63_RandomGenerators.class.getSimpleName())
+                    .threads(threads)
+                    .verbosity(VerboseMode.SILENT)
+                    .build();
+            for (RunResult rr : new Runner(opt).run()) {
+                String label = rr.getPrimaryResult().getLabel() + "/" + rr.getParams().getParam("kind");
+                scores.computeIfAbsent(label, k -> new TreeMap<>()).put(threads, rr.getPrimaryResult().getScore() / 1e6);
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-24s", "Mops/s");
+        for (int threads : threadCounts) {
+            System.out.printf("%12s", threads + " threads");
+        }
+        System.out.println();
+        for (Map.Entry<String, Map<Integer, Double>> e : scores.entrySet()) {
+            System.out.printf("%-24s", e.getKey());
+            for (int threads : threadCounts) {
+                System.out.printf("%12.1f", e.getValue().get(threads));
+            }
+            System.out.println();
+        }
+    }
+
+}